@@ -8,7 +8,11 @@ import com.google.common.annotations.VisibleForTesting;
 
 import java.io.FileInputStream;
 import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.LinkedHashSet;
 import java.util.Properties;
+import java.util.Set;
 
 public class HapiProperties {
     static final String ALLOW_EXTERNAL_REFERENCES = "allow_external_references";
@@ -37,6 +41,7 @@ public class HapiProperties {
     static final String SERVER_BASE = "server.base";
     static final String SERVER_ID = "server.id";
     static final String SERVER_NAME = "server.name";
+    static final String SERVER_NODE_ID = "server.node_id";
     static final String SUBSCRIPTION_EMAIL_ENABLED = "subscription.email.enabled";
     static final String SUBSCRIPTION_RESTHOOK_ENABLED = "subscription.resthook.enabled";
     static final String SUBSCRIPTION_WEBSOCKET_ENABLED = "subscription.websocket.enabled";
@@ -47,6 +52,26 @@ public class HapiProperties {
     static final String ALLOW_CONTAINS_SEARCHES = "allow_contains_searches";
     static final String ALLOW_OVERRIDE_DEFAULT_SEARCH_PARAMS = "allow_override_default_search_params";
     static final String EMAIL_FROM = "email.from";
+    static final String MEASURE_EVALUATION_THREADS = "measure.evaluation.threads";
+    static final String MEASURE_EVALUATION_MAX_THREADS = "measure.evaluation.max_threads";
+    static final String MEASURE_EVALUATION_BATCH_SIZE = "measure.evaluation.batch_size";
+    static final String MEASURE_EVALUATION_PAGE_SIZE = "measure.evaluation.page_size";
+    static final String MEASURE_EVALUATION_PREFETCH_SIZE = "measure.evaluation.prefetch_size";
+    static final String MEASURE_EVALUATION_ASYNC_THREADS = "measure.evaluation.async.threads";
+    static final String MEASURE_EVALUATION_ASYNC_QUEUE_SIZE = "measure.evaluation.async.queue_size";
+    static final String MEASURE_EVALUATION_EVALUATED_RESOURCES = "measure.evaluation.evaluated_resources";
+    static final String MEASURE_EVALUATION_EVALUATED_RESOURCES_MAX = "measure.evaluation.evaluated_resources.max";
+    static final String MEASURE_EVALUATION_EVALUATED_RESOURCES_DIRECTORY = "measure.evaluation.evaluated_resources.directory";
+    static final String RETRIEVE_PAGE_SIZE = "retrieve.page_size";
+    static final String RETRIEVE_QUERY_THREADS = "retrieve.query.threads";
+    static final String RETRIEVE_MAX_CODES_PER_QUERY = "retrieve.max_codes_per_query";
+    static final String RETRIEVE_IN_MEMORY_CODE_THRESHOLD = "retrieve.in_memory_code_threshold";
+    static final String LIBRARY_CACHE_SIZE = "library.cache.size";
+    static final String LIBRARY_STORE_DIRECTORY = "library.store.directory";
+    static final String LIBRARY_PREWARM_ENABLED = "library.prewarm.enabled";
+    static final String LIBRARY_TRANSLATION_THREADS = "library.translation.threads";
+    static final String LIBRARY_PREWARM_THREADS = "library.prewarm.threads";
+    static final String LIBRARY_PREWARM_RESOURCES = "library.prewarm.resources";
 
     private static Properties properties;
 
@@ -288,6 +313,21 @@ public class HapiProperties {
         return HapiProperties.getProperty(SERVER_ID, "home");
     }
 
+    // Identifies this server among the servers sharing its database, defaulting to the host name
+    public static String getServerNodeId() {
+        String nodeId = HapiProperties.getProperty(SERVER_NODE_ID);
+        if (nodeId != null && !nodeId.trim().isEmpty()) {
+            return nodeId.trim();
+        }
+
+        try {
+            return InetAddress.getLocalHost().getHostName();
+        }
+        catch (UnknownHostException e) {
+            return "localhost";
+        }
+    }
+
     public static Boolean getAllowPlaceholderReferences() {
         return HapiProperties.getBooleanProperty(ALLOW_PLACEHOLDER_REFERENCES, true);
     }
@@ -340,4 +380,104 @@ public class HapiProperties {
         String value = HapiProperties.getProperty(REUSE_CACHED_SEARCH_RESULTS_MILLIS, "-1");
         return Long.valueOf(value);
     }
+
+    public static Integer getMeasureEvaluationThreads() {
+        return HapiProperties.getIntegerProperty(MEASURE_EVALUATION_THREADS, 1);
+    }
+
+    public static Integer getMeasureEvaluationMaxThreads() {
+        return HapiProperties.getIntegerProperty(MEASURE_EVALUATION_MAX_THREADS, 8);
+    }
+
+    public static Integer getMeasureEvaluationBatchSize() {
+        return HapiProperties.getIntegerProperty(MEASURE_EVALUATION_BATCH_SIZE, 100);
+    }
+
+    public static Integer getMeasureEvaluationPageSize() {
+        return HapiProperties.getIntegerProperty(MEASURE_EVALUATION_PAGE_SIZE, 500);
+    }
+
+    public static Integer getMeasureEvaluationPrefetchSize() {
+        return HapiProperties.getIntegerProperty(MEASURE_EVALUATION_PREFETCH_SIZE, 500);
+    }
+
+    public static Integer getMeasureEvaluationAsyncThreads() {
+        return HapiProperties.getIntegerProperty(MEASURE_EVALUATION_ASYNC_THREADS, 2);
+    }
+
+    public static Integer getMeasureEvaluationAsyncQueueSize() {
+        return HapiProperties.getIntegerProperty(MEASURE_EVALUATION_ASYNC_QUEUE_SIZE, 10);
+    }
+
+    public static String getMeasureEvaluationEvaluatedResources() {
+        return HapiProperties.getProperty(MEASURE_EVALUATION_EVALUATED_RESOURCES, "full");
+    }
+
+    public static Integer getMeasureEvaluationEvaluatedResourcesMax() {
+        return HapiProperties.getIntegerProperty(MEASURE_EVALUATION_EVALUATED_RESOURCES_MAX, 0);
+    }
+
+    public static String getMeasureEvaluationEvaluatedResourcesDirectory() {
+        return HapiProperties.getProperty(MEASURE_EVALUATION_EVALUATED_RESOURCES_DIRECTORY,
+            System.getProperty("java.io.tmpdir") + "/evaluated-resources");
+    }
+
+    public static Integer getRetrievePageSize() {
+        return HapiProperties.getIntegerProperty(RETRIEVE_PAGE_SIZE, 500);
+    }
+
+    public static Integer getRetrieveQueryThreads() {
+        return HapiProperties.getIntegerProperty(RETRIEVE_QUERY_THREADS, 4);
+    }
+
+    public static Integer getRetrieveMaxCodesPerQuery() {
+        return HapiProperties.getIntegerProperty(RETRIEVE_MAX_CODES_PER_QUERY, 500);
+    }
+
+    public static Integer getRetrieveInMemoryCodeThreshold() {
+        return HapiProperties.getIntegerProperty(RETRIEVE_IN_MEMORY_CODE_THRESHOLD, 5000);
+    }
+
+    public static Integer getLibraryCacheSize() {
+        return HapiProperties.getIntegerProperty(LIBRARY_CACHE_SIZE, 500);
+    }
+
+    // Returns null if translated libraries are not stored on disk
+    public static String getLibraryStoreDirectory() {
+        String directory = HapiProperties.getProperty(LIBRARY_STORE_DIRECTORY);
+        return directory == null || directory.trim().isEmpty() ? null : directory.trim();
+    }
+
+    public static Integer getLibraryTranslationThreads() {
+        return HapiProperties.getIntegerProperty(LIBRARY_TRANSLATION_THREADS, 4);
+    }
+
+    public static Boolean getLibraryPrewarmEnabled() {
+        return HapiProperties.getBooleanProperty(LIBRARY_PREWARM_ENABLED, false);
+    }
+
+    public static Integer getLibraryPrewarmThreads() {
+        return HapiProperties.getIntegerProperty(LIBRARY_PREWARM_THREADS, 2);
+    }
+
+    // The resource types whose libraries are prewarmed: Library warms every Library, Measure and
+    // PlanDefinition warm only the libraries those resources reference
+    public static Set<String> getLibraryPrewarmResources() {
+        Set<String> resources = new LinkedHashSet<>();
+        for (String resource : HapiProperties.getProperty(LIBRARY_PREWARM_RESOURCES, "Library").split(",")) {
+            String trimmed = resource.trim();
+            if (trimmed.isEmpty()) {
+                continue;
+            }
+
+            if (!trimmed.equals("Library") && !trimmed.equals("Measure") && !trimmed.equals("PlanDefinition")) {
+                throw new ConfigurationException("Invalid " + LIBRARY_PREWARM_RESOURCES + " entry: " + trimmed
+                    + " (expected Library, Measure or PlanDefinition)");
+            }
+
+            resources.add(trimmed);
+        }
+
+        return resources;
+    }
 }
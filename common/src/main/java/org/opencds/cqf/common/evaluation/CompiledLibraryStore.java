@@ -0,0 +1,163 @@
+package org.opencds.cqf.common.evaluation;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.function.Function;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.cqframework.cql.elm.execution.Library;
+import org.hl7.elm.r1.VersionedIdentifier;
+import org.opencds.cqf.common.config.HapiProperties;
+import org.opencds.cqf.common.helpers.TranslatorHelper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.hash.Hashing;
+
+/**
+ * A directory of translated libraries, stored as compressed ELM XML, so that libraries do not
+ * have to be translated again after a restart. Reading a file is a full JAXB parse of the ELM,
+ * which costs less than translating the CQL but is not free.
+ *
+ * Each file is named for the library and a hash of its name, version, content hash and
+ * translator version and options, so a changed library or translator never reads a stale file.
+ * Ahead of the ELM each file lists the libraries the library includes, directly or transitively,
+ * as found in the IncludeDefs of the translated ELM, with the content hash of each when it was
+ * translated. A file is only used if every include still has the same content.
+ * A file that cannot be read for any reason is deleted and the library translated again.
+ * Files are written to a temporary file and moved into place, so concurrent writers and
+ * readers never see a partial file.
+ */
+public class CompiledLibraryStore {
+
+    private static final Logger logger = LoggerFactory.getLogger(CompiledLibraryStore.class);
+
+    private static final CompiledLibraryStore instance = HapiProperties.getLibraryStoreDirectory() == null ? null
+            : new CompiledLibraryStore(Paths.get(HapiProperties.getLibraryStoreDirectory()));
+
+    private Path directory;
+
+    public CompiledLibraryStore(Path directory) {
+        this.directory = directory;
+    }
+
+    // Returns null if libraries are not stored on disk
+    public static CompiledLibraryStore getInstance() {
+        return instance;
+    }
+
+    // Returns null if the library is not stored, its file cannot be read, or an include has changed since it was
+    // stored. The content hashes give the current content hash of a library, or null if it has no source.
+    public Library get(String name, String version, String contentHash, Function<VersionedIdentifier, String> contentHashes) {
+        Path path = getPath(name, version, contentHash);
+        if (!Files.exists(path)) {
+            return null;
+        }
+
+        try (DataInputStream stream = new DataInputStream(new GZIPInputStream(Files.newInputStream(path)))) {
+            int includeCount = stream.readInt();
+            for (int i = 0; i < includeCount; i++) {
+                String includeName = stream.readUTF();
+                String includeVersion = stream.readUTF();
+                String includeHash = stream.readUTF();
+                VersionedIdentifier include = new VersionedIdentifier().withId(includeName)
+                    .withVersion(includeVersion.isEmpty() ? null : includeVersion);
+                if (!includeHash.equals(contentHashes.apply(include))) {
+                    logger.debug("Deleting stored library {}, since its include {} has changed", path, includeName);
+                    delete(path);
+                    return null;
+                }
+            }
+
+            return TranslatorHelper.readLibrary(stream);
+        }
+        catch (Exception e) {
+            logger.warn("Deleting unreadable stored library {}: {}", path, e.getMessage());
+            delete(path);
+            return null;
+        }
+    }
+
+    // The includes are the libraries the library includes, directly or transitively. A library with an include
+    // without a source is not stored.
+    public void put(String name, String version, String contentHash, List<VersionedIdentifier> includes,
+            Function<VersionedIdentifier, String> contentHashes, org.hl7.elm.r1.Library library) {
+        String[] includeHashes = new String[includes.size()];
+        for (int i = 0; i < includes.size(); i++) {
+            includeHashes[i] = contentHashes.apply(includes.get(i));
+            if (includeHashes[i] == null) {
+                return;
+            }
+        }
+
+        Path path = getPath(name, version, contentHash);
+        Path temp = null;
+        try {
+            Files.createDirectories(this.directory);
+            temp = Files.createTempFile(this.directory, "library", ".tmp");
+            try (DataOutputStream stream = new DataOutputStream(new GZIPOutputStream(Files.newOutputStream(temp)))) {
+                stream.writeInt(includes.size());
+                for (int i = 0; i < includes.size(); i++) {
+                    stream.writeUTF(includes.get(i).getId());
+                    stream.writeUTF(includes.get(i).getVersion() == null ? "" : includes.get(i).getVersion());
+                    stream.writeUTF(includeHashes[i]);
+                }
+
+                TranslatorHelper.writeLibrary(library, stream);
+            }
+
+            Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        catch (IOException | IllegalArgumentException e) {
+            // The library is translated again on the next restart
+            logger.warn("Unable to store library {} in {}: {}", name, this.directory, e.getMessage());
+            if (temp != null) {
+                delete(temp);
+            }
+        }
+    }
+
+    // Deletes every version of the library
+    public void invalidate(String name) {
+        if (!Files.isDirectory(this.directory)) {
+            return;
+        }
+
+        try (DirectoryStream<Path> paths = Files.newDirectoryStream(this.directory, getFilePrefix(name) + "*.xml.gz")) {
+            for (Path path : paths) {
+                delete(path);
+            }
+        }
+        catch (IOException e) {
+            logger.warn("Unable to delete stored library {}: {}", name, e.getMessage());
+        }
+    }
+
+    private Path getPath(String name, String version, String contentHash) {
+        String key = LibraryCache.getKey(name, version, contentHash) + "|" + TranslatorHelper.getTranslatorInfo();
+        return this.directory.resolve(getFilePrefix(name) + Hashing.sha256().hashString(key, StandardCharsets.UTF_8).toString() + ".xml.gz");
+    }
+
+    // Library names are identifiers, but may be quoted and contain any character
+    private static String getFilePrefix(String name) {
+        return name.replaceAll("[^A-Za-z0-9_-]", "_") + ".";
+    }
+
+    private static void delete(Path path) {
+        try {
+            Files.deleteIfExists(path);
+        }
+        catch (IOException e) {
+            logger.warn("Unable to delete {}: {}", path, e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package org.opencds.cqf.common.evaluation;
+
+import java.util.HashMap;
+import java.util.Map;
+
+public enum EvaluatedResourcesMode {
+    NONE("none", "None", "Evaluated resources are not included in the report"),
+
+    REFERENCES("references", "References", "Evaluated resources are referenced by id without contained copies"),
+
+    FULL("full", "Full", "Evaluated resources are contained in the report, up to a maximum number of resources"),
+
+    NDJSON("ndjson", "NDJSON", "Evaluated resources are written to an NDJSON file referenced from the report");
+
+    private String code;
+    private String display;
+    private String definition;
+
+    EvaluatedResourcesMode(String code, String display, String definition) {
+        this.code = code;
+        this.display = display;
+        this.definition = definition;
+    }
+
+    private static final Map<String, EvaluatedResourcesMode> lookup = new HashMap<>();
+
+    static {
+        for (EvaluatedResourcesMode mode : EvaluatedResourcesMode.values()) {
+            lookup.put(mode.toCode(), mode);
+        }
+    }
+
+    public static EvaluatedResourcesMode fromCode(String code) {
+        if (code != null && !code.isEmpty()) {
+            return lookup.get(code);
+        }
+
+        return null;
+    }
+
+    public String toCode() {
+        return this.code;
+    }
+
+    public String getDefinition() {
+        return this.definition;
+    }
+
+    public String getDisplay() {
+        return this.display;
+    }
+}
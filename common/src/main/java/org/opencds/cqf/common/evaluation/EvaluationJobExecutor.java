@@ -0,0 +1,60 @@
+package org.opencds.cqf.common.evaluation;
+
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs asynchronous evaluation jobs on a fixed number of threads with a bounded queue, and
+ * keeps track of the jobs that have not finished yet so that they can be cancelled.
+ */
+public class EvaluationJobExecutor {
+
+    private ThreadPoolExecutor executor;
+    private Map<String, Future<?>> jobs = new ConcurrentHashMap<>();
+
+    public EvaluationJobExecutor(int threadCount, int queueSize) {
+        if (threadCount < 1) {
+            throw new IllegalArgumentException("The thread count must be at least 1.");
+        }
+
+        if (queueSize < 1) {
+            throw new IllegalArgumentException("The queue size must be at least 1.");
+        }
+
+        this.executor = new ThreadPoolExecutor(threadCount, threadCount, 0L, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<>(queueSize));
+    }
+
+    // Throws a RejectedExecutionException when every thread is busy and the queue is full
+    public void submit(String jobId, Runnable job) {
+        FutureTask<Void> task = new FutureTask<>(() -> {
+            try {
+                job.run();
+            }
+            finally {
+                this.jobs.remove(jobId);
+            }
+        }, null);
+
+        this.jobs.put(jobId, task);
+        try {
+            this.executor.execute(task);
+        }
+        catch (RejectedExecutionException e) {
+            this.jobs.remove(jobId);
+            throw e;
+        }
+    }
+
+    // Returns false if the job is unknown or has already finished
+    public boolean cancel(String jobId) {
+        Future<?> job = this.jobs.remove(jobId);
+        return job != null && job.cancel(true);
+    }
+}
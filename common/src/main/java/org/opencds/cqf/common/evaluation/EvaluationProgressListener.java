@@ -0,0 +1,10 @@
+package org.opencds.cqf.common.evaluation;
+
+/**
+ * Receives the progress of a measure evaluation as patients are evaluated.
+ */
+public interface EvaluationProgressListener {
+
+    // The total is null when the number of patients is not known up front
+    void onProgress(int patientsEvaluated, Integer patientsTotal);
+}
@@ -0,0 +1,170 @@
+package org.opencds.cqf.common.evaluation;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.google.gson.Gson;
+
+/**
+ * The population membership of every patient evaluated for a measure and period, kept
+ * between runs so that an incremental evaluation only re-evaluates the patients whose data
+ * has changed since the last run and recomputes the report from the stored membership.
+ *
+ * The membership of each patient is stored separately, and the population totals with the
+ * state itself, so a run only reads and writes the memberships of the patients it
+ * re-evaluates (and reads the others only to list the patients of a patient-list report).
+ * Changes are kept in memory until the state is saved. Patients that are in no population
+ * are not stored.
+ */
+public class IncrementalEvaluationState {
+
+    /**
+     * Reads the memberships stored for a state.
+     */
+    public interface MembershipReader {
+        // Returns null if the patient has no stored membership
+        List<Map<String, Integer>> read(String patientId);
+
+        Map<String, List<Map<String, Integer>>> readAll();
+    }
+
+    private long lastEvaluated;
+
+    // The size of each population, by population code, for every group in group order
+    private List<Map<String, Integer>> totals = new ArrayList<>();
+
+    // Null for a state that has not been stored yet
+    private transient MembershipReader storedMemberships;
+    private transient String version;
+
+    // Memberships changed since the state was loaded, with null for memberships to remove
+    private transient Map<String, List<Map<String, Integer>>> changedMemberships = new LinkedHashMap<>();
+
+    public Date getLastEvaluated() {
+        return new Date(this.lastEvaluated);
+    }
+
+    public void setLastEvaluated(Date lastEvaluated) {
+        this.lastEvaluated = lastEvaluated.getTime();
+    }
+
+    // The version of the stored state this state was loaded from, or null if it has not been stored
+    public String getVersion() {
+        return this.version;
+    }
+
+    public Map<String, List<Map<String, Integer>>> getChangedMemberships() {
+        return Collections.unmodifiableMap(this.changedMemberships);
+    }
+
+    public void setMembership(String patientId, List<Map<String, Integer>> groupCounts) {
+        for (Map<String, Integer> counts : groupCounts) {
+            if (!counts.isEmpty()) {
+                changeMembership(patientId, groupCounts);
+                return;
+            }
+        }
+
+        changeMembership(patientId, null);
+    }
+
+    public void removePatient(String patientId) {
+        changeMembership(patientId, null);
+    }
+
+    private void changeMembership(String patientId, List<Map<String, Integer>> groupCounts) {
+        List<Map<String, Integer>> previous = getMembership(patientId);
+        if (previous == null && groupCounts == null) {
+            return;
+        }
+
+        addToTotals(previous, -1);
+        addToTotals(groupCounts, 1);
+        this.changedMemberships.put(patientId, groupCounts);
+    }
+
+    private List<Map<String, Integer>> getMembership(String patientId) {
+        if (this.changedMemberships.containsKey(patientId)) {
+            return this.changedMemberships.get(patientId);
+        }
+
+        return this.storedMemberships == null ? null : this.storedMemberships.read(patientId);
+    }
+
+    private void addToTotals(List<Map<String, Integer>> groupCounts, int sign) {
+        if (groupCounts == null) {
+            return;
+        }
+
+        for (int i = 0; i < groupCounts.size(); i++) {
+            while (this.totals.size() <= i) {
+                this.totals.add(new HashMap<>());
+            }
+
+            for (Map.Entry<String, Integer> count : groupCounts.get(i).entrySet()) {
+                this.totals.get(i).merge(count.getKey(), sign * count.getValue(), Integer::sum);
+            }
+        }
+    }
+
+    // The size of each population of the group, by population code
+    public Map<String, Integer> getTotals(int groupIndex) {
+        return groupIndex < this.totals.size() ? new HashMap<>(this.totals.get(groupIndex)) : new HashMap<>();
+    }
+
+    // The ids of the patients in a population of the group. Reads every stored membership.
+    public List<String> getPatientIds(int groupIndex, String populationCode) {
+        Map<String, List<Map<String, Integer>>> memberships = new LinkedHashMap<>();
+        if (this.storedMemberships != null) {
+            memberships.putAll(this.storedMemberships.readAll());
+        }
+
+        memberships.putAll(this.changedMemberships);
+
+        List<String> patientIds = new ArrayList<>();
+        for (Map.Entry<String, List<Map<String, Integer>>> patient : memberships.entrySet()) {
+            List<Map<String, Integer>> groupCounts = patient.getValue();
+            if (groupCounts != null && groupIndex < groupCounts.size() && groupCounts.get(groupIndex).containsKey(populationCode)) {
+                patientIds.add(patient.getKey());
+            }
+        }
+
+        return patientIds;
+    }
+
+    public String toJson() {
+        return new Gson().toJson(this);
+    }
+
+    public static IncrementalEvaluationState fromJson(String json, String version, MembershipReader storedMemberships) {
+        IncrementalEvaluationState state = new Gson().fromJson(json, IncrementalEvaluationState.class);
+        state.version = version;
+        state.storedMemberships = storedMemberships;
+        state.changedMemberships = new LinkedHashMap<>();
+        return state;
+    }
+
+    public static String membershipToJson(String patientId, List<Map<String, Integer>> groupCounts) {
+        PatientMembership membership = new PatientMembership();
+        membership.patient = patientId;
+        membership.groups = groupCounts;
+        return new Gson().toJson(membership);
+    }
+
+    // The patient id and the population counts of each group stored by membershipToJson
+    public static Map.Entry<String, List<Map<String, Integer>>> membershipFromJson(String json) {
+        PatientMembership membership = new Gson().fromJson(json, PatientMembership.class);
+        return new AbstractMap.SimpleImmutableEntry<>(membership.patient, membership.groups);
+    }
+
+    private static class PatientMembership {
+        private String patient;
+        private List<Map<String, Integer>> groups;
+    }
+}
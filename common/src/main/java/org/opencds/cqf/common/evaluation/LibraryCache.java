@@ -0,0 +1,73 @@
+package org.opencds.cqf.common.evaluation;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.cqframework.cql.elm.execution.Library;
+import org.opencds.cqf.common.config.HapiProperties;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A process-wide cache of translated libraries shared by every LibraryLoader, so that a
+ * library is translated once rather than on every request.
+ *
+ * Libraries are keyed by name, version and a hash of their CQL source, so a changed source
+ * is never served from the cache. Entries are also evicted by name when a Library resource
+ * is created, updated or deleted, and the least recently used entries are evicted once the
+ * cache is full. Cached libraries are shared between threads and must not be modified.
+ */
+public class LibraryCache {
+
+    private static final Logger logger = LoggerFactory.getLogger(LibraryCache.class);
+
+    private static final LibraryCache instance = new LibraryCache(HapiProperties.getLibraryCacheSize());
+
+    private int maxSize;
+    private Map<String, Library> libraries;
+
+    public LibraryCache(int maxSize) {
+        this.maxSize = maxSize;
+        this.libraries = new LinkedHashMap<String, Library>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Library> eldest) {
+                return size() > LibraryCache.this.maxSize;
+            }
+        };
+    }
+
+    public static LibraryCache getInstance() {
+        return instance;
+    }
+
+    public static String getKey(String name, String version, String contentHash) {
+        return name + "|" + (version == null ? "" : version) + "|" + contentHash;
+    }
+
+    // Returns null if the library is not cached
+    public synchronized Library get(String key) {
+        return this.libraries.get(key);
+    }
+
+    public synchronized void put(String key, Library library) {
+        if (this.maxSize > 0) {
+            this.libraries.put(key, library);
+        }
+    }
+
+    // Evicts every version of the library
+    public synchronized void invalidate(String name) {
+        String prefix = name + "|";
+        if (this.libraries.keySet().removeIf(key -> key.startsWith(prefix))) {
+            logger.info("Evicted library {} from the library cache", name);
+        }
+    }
+
+    public synchronized void clear() {
+        this.libraries.clear();
+    }
+
+    public synchronized int size() {
+        return this.libraries.size();
+    }
+}
@@ -0,0 +1,60 @@
+package org.opencds.cqf.common.evaluation;
+
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The libraries that include each library, by name, so that a change to a library evicts every
+ * library translated against it, directly or transitively, and nothing else.
+ *
+ * Dependencies are recorded from the includes of each library as it is loaded and from the
+ * depends-on relatedArtifacts of Library resources as they are stored. Dependencies that no
+ * longer hold are only removed when a library is deleted, which at worst evicts a library
+ * unnecessarily.
+ */
+public class LibraryDependencyGraph {
+
+    private static final LibraryDependencyGraph instance = new LibraryDependencyGraph();
+
+    private Map<String, Set<String>> dependentsByName = new HashMap<>();
+
+    public static LibraryDependencyGraph getInstance() {
+        return instance;
+    }
+
+    public synchronized void addIncludes(String name, Collection<String> includes) {
+        for (String include : includes) {
+            if (!include.equals(name)) {
+                this.dependentsByName.computeIfAbsent(include, x -> new HashSet<>()).add(name);
+            }
+        }
+    }
+
+    public synchronized void remove(String name) {
+        this.dependentsByName.remove(name);
+        for (Set<String> dependents : this.dependentsByName.values()) {
+            dependents.remove(name);
+        }
+    }
+
+    // Returns the library and every library that includes it, directly or transitively
+    public synchronized Set<String> getDependents(String name) {
+        Set<String> names = new LinkedHashSet<>();
+        Deque<String> queue = new ArrayDeque<>();
+        queue.add(name);
+        while (!queue.isEmpty()) {
+            String current = queue.remove();
+            if (names.add(current)) {
+                queue.addAll(this.dependentsByName.getOrDefault(current, new HashSet<>()));
+            }
+        }
+
+        return names;
+    }
+}
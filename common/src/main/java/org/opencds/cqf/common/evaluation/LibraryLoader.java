@@ -6,16 +6,30 @@ import org.cqframework.cql.cql2elm.LibraryManager;
 import org.cqframework.cql.cql2elm.ModelManager;
 import org.cqframework.cql.cql2elm.CqlTranslatorException.ErrorSeverity;
 import org.cqframework.cql.cql2elm.LibraryBuilder.SignatureLevel;
+import org.cqframework.cql.cql2elm.model.TranslatedLibrary;
+import org.cqframework.cql.elm.execution.IncludeDef;
 import org.cqframework.cql.elm.execution.Library;
 import org.cqframework.cql.elm.execution.VersionedIdentifier;
+import org.opencds.cqf.common.providers.LibrarySourceProvider;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
-import javax.xml.bind.JAXBException;
-import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Deque;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.hash.Hashing;
 
 import static org.opencds.cqf.common.helpers.TranslatorHelper.*;
 
@@ -24,9 +38,16 @@ public class LibraryLoader implements org.opencds.cqf.cql.execution.LibraryLoade
     private LibraryManager libraryManager;
     private ModelManager modelManager;
     private Map<String, Library> libraries = new HashMap<>();
+    private Map<String, String> contentHashes = new HashMap<>();
+    private LibrarySourceProvider<?, ?> librarySourceProvider;
+    private LibraryCache libraryCache = LibraryCache.getInstance();
+    private CompiledLibraryStore libraryStore = CompiledLibraryStore.getInstance();
+
+    // Counts libraries loaded from attached ELM and libraries translated from CQL instead, which are logged at debug level
+    private static final AtomicLong elmHits = new AtomicLong();
+    private static final AtomicLong elmFallbacks = new AtomicLong();
 
-    // private static final Logger logger =
-    // LoggerFactory.getLogger(LibraryLoader.class);
+    private static final Logger logger = LoggerFactory.getLogger(LibraryLoader.class);
 
     public Collection<Library> getLibraries() {
         return this.libraries.values();
@@ -41,8 +62,14 @@ public class LibraryLoader implements org.opencds.cqf.cql.execution.LibraryLoade
     }
 
     public LibraryLoader(LibraryManager libraryManager, ModelManager modelManager) {
+        this(libraryManager, modelManager, null);
+    }
+
+    // Libraries are loaded from ELM attached by the source provider when possible, rather than translated
+    public LibraryLoader(LibraryManager libraryManager, ModelManager modelManager, LibrarySourceProvider<?, ?> librarySourceProvider) {
         this.libraryManager = libraryManager;
         this.modelManager = modelManager;
+        this.librarySourceProvider = librarySourceProvider;
     }
 
     private Library resolveLibrary(VersionedIdentifier libraryIdentifier) {
@@ -58,13 +85,41 @@ public class LibraryLoader implements org.opencds.cqf.cql.execution.LibraryLoade
 
         Library library = libraries.get(mangledId);
         if (library == null) {
-            library = loadLibrary(libraryIdentifier);
+            library = loadLibrary(libraryIdentifier, mangledId);
             libraries.put(mangledId, library);
         }
 
         return library;
     }
 
+    // A hash of the sources of the library and every library it includes, or null if any of them has no source,
+    // so that results derived from a library's logic can be cached until any of that logic changes
+    public String getContentKey(VersionedIdentifier libraryIdentifier) {
+        Set<String> contents = new TreeSet<>();
+        List<VersionedIdentifier> pending = new ArrayList<>();
+        pending.add(libraryIdentifier);
+        while (!pending.isEmpty()) {
+            VersionedIdentifier identifier = pending.remove(pending.size() - 1);
+            Library library = resolveLibrary(identifier);
+            String contentHash = this.contentHashes.get(this.mangleIdentifer(identifier));
+            if (contentHash == null) {
+                return null;
+            }
+
+            if (!contents.add(identifier.getId() + "|" + identifier.getVersion() + "|" + contentHash)) {
+                continue;
+            }
+
+            if (library.getIncludes() != null) {
+                for (IncludeDef include : library.getIncludes().getDef()) {
+                    pending.add(new VersionedIdentifier().withId(include.getPath()).withVersion(include.getVersion()));
+                }
+            }
+        }
+
+        return Hashing.sha256().hashString(String.join(",", contents), StandardCharsets.UTF_8).toString();
+    }
+
     private String mangleIdentifer(VersionedIdentifier libraryIdentifier) {
         String id = libraryIdentifier.getId();
         String version = libraryIdentifier.getVersion();
@@ -72,35 +127,169 @@ public class LibraryLoader implements org.opencds.cqf.cql.execution.LibraryLoade
         return version == null ? id : id + "-" + version;
     }
 
-    private Library loadLibrary(VersionedIdentifier libraryIdentifier) {
+    private Library loadLibrary(VersionedIdentifier libraryIdentifier, String mangledId) {
         org.hl7.elm.r1.VersionedIdentifier identifier = new org.hl7.elm.r1.VersionedIdentifier()
                 .withId(libraryIdentifier.getId()).withSystem(libraryIdentifier.getSystem())
                 .withVersion(libraryIdentifier.getVersion());
 
-        ArrayList<CqlTranslatorException> errors = new ArrayList<>();
-        org.hl7.elm.r1.Library translatedLibrary = libraryManager.resolveLibrary(identifier, ErrorSeverity.Error,
-                SignatureLevel.All,
-                new CqlTranslator.Options[] { CqlTranslator.Options.EnableAnnotations,
-                        CqlTranslator.Options.EnableLocators, CqlTranslator.Options.DisableListDemotion,
-                        CqlTranslator.Options.DisableListPromotion, CqlTranslator.Options.DisableMethodInvocation },
-                errors).getLibrary();
+        // Libraries without a source cannot be keyed by their content, so they are not cached
+        String contentHash = getContentHash(identifier);
+        if (contentHash != null) {
+            this.contentHashes.put(mangledId, contentHash);
+        }
 
-        if (CqlTranslatorException.HasErrors(errors)) {
-            throw new IllegalArgumentException(errorsToString(errors));
+        String cacheKey = contentHash == null ? null : LibraryCache.getKey(identifier.getId(), identifier.getVersion(), contentHash);
+        if (cacheKey != null) {
+            Library library = this.libraryCache.get(cacheKey);
+            if (library != null) {
+                return library;
+            }
+        }
+
+        Library library = null;
+        boolean stored = this.libraryStore != null && contentHash != null;
+        if (stored) {
+            library = this.libraryStore.get(identifier.getId(), identifier.getVersion(), contentHash, this::getContentHash);
+        }
+
+        if (library == null) {
+            library = loadElmLibrary(identifier);
+        }
+
+        if (library == null) {
+            org.hl7.elm.r1.Library translatedLibrary = translateLibrary(identifier);
+            if (stored) {
+                this.libraryStore.put(identifier.getId(), identifier.getVersion(), contentHash,
+                    getTranslatedIncludes(translatedLibrary), this::getContentHash, translatedLibrary);
+            }
+
+            library = readLibrary(translatedLibrary);
+        }
+
+        LibraryDependencyGraph.getInstance().addIncludes(identifier.getId(), getIncludedLibraryNames(library));
+        if (cacheKey != null) {
+            this.libraryCache.put(cacheKey, library);
+        }
+
+        return library;
+    }
+
+    // Translates ad hoc CQL, such as the expression of a dynamic value, sharing the translation with every
+    // request for the same source until a library it includes changes
+    public Library translateLocalLibrary(String name, String source) {
+        String cacheKey = LibraryCache.getKey(name, null, Hashing.sha256().hashString(source, StandardCharsets.UTF_8).toString());
+        Library library = this.libraryCache.get(cacheKey);
+        if (library != null) {
+            return library;
+        }
+
+        CqlTranslator translator = getTranslator(source, this.libraryManager, this.modelManager);
+        library = readLibrary(translator.toELM());
+        if (translator.getErrors().isEmpty()) {
+            LibraryDependencyGraph.getInstance().addIncludes(name, getIncludedLibraryNames(library));
+            this.libraryCache.put(cacheKey, library);
+        }
+
+        return library;
+    }
+
+    private static List<String> getIncludedLibraryNames(Library library) {
+        List<String> names = new ArrayList<>();
+        if (library.getIncludes() != null) {
+            for (IncludeDef include : library.getIncludes().getDef()) {
+                names.add(include.getPath());
+            }
         }
+
+        return names;
+    }
+
+    private Library loadElmLibrary(org.hl7.elm.r1.VersionedIdentifier identifier) {
+        if (this.librarySourceProvider == null) {
+            return null;
+        }
+
+        Library library = null;
         try {
-            CqlTranslator translator = getTranslator("", libraryManager, modelManager);
+            library = this.librarySourceProvider.getElmLibrary(identifier);
+        }
+        catch (IllegalArgumentException e) {
+            logger.warn("Unable to read the ELM attached to library {}, translating the CQL instead: {}", identifier.getId(), e.getMessage());
+        }
+
+        if (library == null) {
+            elmFallbacks.incrementAndGet();
+            logger.debug("No usable ELM attached to library {}, translating the CQL ({} hits, {} fallbacks)", identifier.getId(),
+                elmHits.get(), elmFallbacks.get());
+            return null;
+        }
 
-            if (translator.getErrors().size() > 0) {
-                throw new IllegalArgumentException(errorsToString(translator.getErrors()));
+        elmHits.incrementAndGet();
+        logger.debug("Loaded library {} from attached ELM ({} hits, {} fallbacks)", identifier.getId(), elmHits.get(), elmFallbacks.get());
+        return library;
+    }
+
+    private String getContentHash(org.hl7.elm.r1.VersionedIdentifier identifier) {
+        try (InputStream source = this.libraryManager.getLibrarySourceLoader().getLibrarySource(identifier)) {
+            if (source == null) {
+                return null;
             }
 
-            return readLibrary(new ByteArrayInputStream(
-                    translator.convertToXml(translatedLibrary).getBytes(StandardCharsets.UTF_8)));
-        } catch (JAXBException e) {
-            throw new IllegalArgumentException(String.format("Errors occurred translating library %s%s.",
-                    identifier.getId(), identifier.getVersion() != null ? ("-" + identifier.getVersion()) : ""));
+            return Hashing.sha256().hashBytes(source.readAllBytes()).toString();
         }
+        catch (IOException e) {
+            return null;
+        }
+    }
+
+    // The libraries the translated library includes, directly or transitively, from the IncludeDefs of its ELM and of
+    // the ELM of its includes, which the library manager has already translated
+    private List<org.hl7.elm.r1.VersionedIdentifier> getTranslatedIncludes(org.hl7.elm.r1.Library translatedLibrary) {
+        List<org.hl7.elm.r1.VersionedIdentifier> includes = new ArrayList<>();
+        Set<String> visited = new HashSet<>();
+        Deque<org.hl7.elm.r1.Library> pending = new ArrayDeque<>();
+        pending.add(translatedLibrary);
+        while (!pending.isEmpty()) {
+            org.hl7.elm.r1.Library library = pending.remove();
+            if (library.getIncludes() == null) {
+                continue;
+            }
+
+            for (org.hl7.elm.r1.IncludeDef include : library.getIncludes().getDef()) {
+                org.hl7.elm.r1.VersionedIdentifier identifier = new org.hl7.elm.r1.VersionedIdentifier()
+                    .withId(include.getPath()).withVersion(include.getVersion());
+                if (!visited.add(identifier.getId() + "|" + identifier.getVersion())) {
+                    continue;
+                }
+
+                includes.add(identifier);
+                TranslatedLibrary includedLibrary = this.libraryManager.resolveLibrary(identifier, ErrorSeverity.Error,
+                    SignatureLevel.All, getTranslatorOptions(), new ArrayList<>());
+                if (includedLibrary != null && includedLibrary.getLibrary() != null) {
+                    pending.add(includedLibrary.getLibrary());
+                }
+            }
+        }
+
+        return includes;
+    }
+
+    private org.hl7.elm.r1.Library translateLibrary(org.hl7.elm.r1.VersionedIdentifier identifier) {
+
+        if (this.libraryManager instanceof ParallelLibraryManager) {
+            ((ParallelLibraryManager) this.libraryManager).translateIncludes(identifier, ErrorSeverity.Error,
+                SignatureLevel.All, getTranslatorOptions());
+        }
+
+        ArrayList<CqlTranslatorException> errors = new ArrayList<>();
+        org.hl7.elm.r1.Library translatedLibrary = libraryManager.resolveLibrary(identifier, ErrorSeverity.Error,
+                SignatureLevel.All, getTranslatorOptions(), errors).getLibrary();
+
+        if (CqlTranslatorException.HasErrors(errors)) {
+            throw new IllegalArgumentException(errorsToString(errors));
+        }
+
+        return translatedLibrary;
     }
 
     @Override
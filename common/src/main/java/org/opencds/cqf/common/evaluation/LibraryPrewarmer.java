@@ -0,0 +1,128 @@
+package org.opencds.cqf.common.evaluation;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+import org.cqframework.cql.elm.execution.VersionedIdentifier;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Loads libraries into the shared LibraryCache on a bounded pool of background threads at
+ * startup, so that the first requests for them do not pay for their translation. Requests
+ * are served while libraries are loading; isReady reports whether the servlet has registered
+ * its providers and warm-up, if any, has finished.
+ */
+public class LibraryPrewarmer {
+
+    private static final Logger logger = LoggerFactory.getLogger(LibraryPrewarmer.class);
+
+    private static final LibraryPrewarmer instance = new LibraryPrewarmer();
+
+    private volatile boolean registered = false;
+    private volatile boolean warming = false;
+    private AtomicInteger loaded = new AtomicInteger();
+    private AtomicInteger failed = new AtomicInteger();
+
+    public static LibraryPrewarmer getInstance() {
+        return instance;
+    }
+
+    public boolean isRegistered() {
+        return this.registered;
+    }
+
+    public boolean isReady() {
+        return this.registered && !this.warming;
+    }
+
+    // Called by the servlet once it has registered its providers and started any warm-up
+    public void register() {
+        this.registered = true;
+    }
+
+    // Called by the servlet when it is destroyed, so that a reinitialized servlet reports not ready until it registers again
+    public void unregister() {
+        this.registered = false;
+    }
+
+    public int getLoadedCount() {
+        return this.loaded.get();
+    }
+
+    public int getFailedCount() {
+        return this.failed.get();
+    }
+
+    // Each library is loaded with a LibraryLoader of its own, since LibraryLoaders are not thread-safe
+    public synchronized <T> void start(Iterable<T> libraries, Function<T, VersionedIdentifier> getIdentifier,
+            Supplier<LibraryLoader> createLibraryLoader, int threadCount) {
+        if (threadCount < 1) {
+            throw new IllegalArgumentException("The thread count must be at least 1.");
+        }
+
+        if (this.warming) {
+            return;
+        }
+
+        this.warming = true;
+        Thread thread = new Thread(() -> warm(libraries, getIdentifier, createLibraryLoader, threadCount), "library-prewarm");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private <T> void warm(Iterable<T> libraries, Function<T, VersionedIdentifier> getIdentifier,
+            Supplier<LibraryLoader> createLibraryLoader, int threadCount) {
+        long start = System.currentTimeMillis();
+        logger.info("Prewarming libraries on {} threads", threadCount);
+
+        // Libraries are enumerated a page at a time; when the queue is full this thread loads libraries as well
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threadCount, threadCount, 0L, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<>(threadCount * 2), runnable -> {
+                Thread thread = new Thread(runnable, "library-prewarm-worker");
+                thread.setDaemon(true);
+                return thread;
+            }, new ThreadPoolExecutor.CallerRunsPolicy());
+
+        try {
+            for (T library : libraries) {
+                VersionedIdentifier identifier = getIdentifier.apply(library);
+                if (identifier == null || identifier.getId() == null) {
+                    continue;
+                }
+
+                executor.execute(() -> load(identifier, createLibraryLoader));
+            }
+
+            executor.shutdown();
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        catch (Exception e) {
+            logger.warn("Error enumerating libraries to prewarm: {}", e.getMessage());
+        }
+        finally {
+            executor.shutdownNow();
+            this.warming = false;
+            logger.info("Prewarmed {} libraries in {} ms ({} failed)", this.loaded.get(),
+                System.currentTimeMillis() - start, this.failed.get());
+        }
+    }
+
+    private void load(VersionedIdentifier identifier, Supplier<LibraryLoader> createLibraryLoader) {
+        try {
+            createLibraryLoader.get().load(identifier);
+            this.loaded.incrementAndGet();
+        }
+        catch (Exception e) {
+            this.failed.incrementAndGet();
+            logger.warn("Unable to prewarm library {}: {}", identifier.getId(), e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,102 @@
+package org.opencds.cqf.common.evaluation;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+
+import org.cqframework.cql.elm.execution.Library;
+import org.cqframework.cql.elm.execution.VersionedIdentifier;
+import org.opencds.cqf.cql.execution.Context;
+
+/**
+ * An execution Context whose expression cache is keyed by library, expression name and
+ * context value, rather than by expression name alone.
+ *
+ * Results of expressions evaluated without a context value (Population and Unfiltered
+ * context definitions) do not depend on the patient, so they are kept for the life of the
+ * Context. Results of Patient context definitions are kept across every population
+ * criteria and group evaluated for the current patient, and are evicted as soon as an
+ * expression is evaluated for a different patient.
+ */
+public class MeasureEvaluationContext extends Context {
+
+    private Map<ExpressionKey, Object> sharedExpressions = new HashMap<>();
+    private Map<ExpressionKey, Object> contextExpressions = new HashMap<>();
+    private Object cachedContextValue;
+
+    public MeasureEvaluationContext(Library library) {
+        super(library);
+    }
+
+    @Override
+    public boolean isExpressionCached(String name) {
+        ExpressionKey key = this.getExpressionKey(name);
+        return this.getCache(key).containsKey(key);
+    }
+
+    @Override
+    public void addExpressionToCache(String name, Object result) {
+        ExpressionKey key = this.getExpressionKey(name);
+        this.getCache(key).put(key, result);
+    }
+
+    @Override
+    public Object getExpressionResultFromCache(String name) {
+        ExpressionKey key = this.getExpressionKey(name);
+        return this.getCache(key).get(key);
+    }
+
+    private ExpressionKey getExpressionKey(String name) {
+        VersionedIdentifier libraryIdentifier = this.getCurrentLibrary().getIdentifier();
+        return new ExpressionKey(libraryIdentifier.getId(), libraryIdentifier.getVersion(), name, this.getCurrentContextValue());
+    }
+
+    private Map<ExpressionKey, Object> getCache(ExpressionKey key) {
+        if (key.contextValue == null) {
+            return this.sharedExpressions;
+        }
+
+        if (!key.contextValue.equals(this.cachedContextValue)) {
+            this.contextExpressions.clear();
+            this.cachedContextValue = key.contextValue;
+        }
+
+        return this.contextExpressions;
+    }
+
+    private static class ExpressionKey {
+        private String libraryId;
+        private String libraryVersion;
+        private String name;
+        private Object contextValue;
+
+        ExpressionKey(String libraryId, String libraryVersion, String name, Object contextValue) {
+            this.libraryId = libraryId;
+            this.libraryVersion = libraryVersion;
+            this.name = name;
+            this.contextValue = contextValue;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+
+            if (!(o instanceof ExpressionKey)) {
+                return false;
+            }
+
+            ExpressionKey other = (ExpressionKey) o;
+            return Objects.equals(this.libraryId, other.libraryId)
+                && Objects.equals(this.libraryVersion, other.libraryVersion)
+                && Objects.equals(this.name, other.name)
+                && Objects.equals(this.contextValue, other.contextValue);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(this.libraryId, this.libraryVersion, this.name, this.contextValue);
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package org.opencds.cqf.common.evaluation;
+
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.opencds.cqf.cql.runtime.Quantity;
+
+/**
+ * Collects the measure observations of a continuous variable measure group while patients are
+ * evaluated, and aggregates them into the group's measure score.
+ *
+ * States built for consecutive batches of patients can be merged in batch order and produce
+ * the same observations as evaluating every patient against a single state.
+ */
+public class MeasureObservations {
+
+    public static final String AGGREGATE_METHOD_EXTENSION_URL = "http://hl7.org/fhir/us/cqfmeasures/StructureDefinition/cqfm-aggregateMethod";
+
+    private List<BigDecimal> values = new ArrayList<>();
+    private String unit;
+
+    // Adds the result of an observation expression: a number or quantity, or a list of them for episode-based measures
+    public void add(Object result) {
+        if (result == null) {
+            return;
+        }
+
+        if (result instanceof Iterable) {
+            for (Object element : (Iterable<?>) result) {
+                this.add(element);
+            }
+        }
+        else if (result instanceof Quantity) {
+            Quantity quantity = (Quantity) result;
+            if (quantity.getValue() != null) {
+                this.values.add(quantity.getValue());
+                if (this.unit == null && quantity.getUnit() != null && !quantity.getUnit().equals("1")) {
+                    this.unit = quantity.getUnit();
+                }
+            }
+        }
+        else if (result instanceof Number) {
+            this.values.add(result instanceof BigDecimal ? (BigDecimal) result : new BigDecimal(result.toString()));
+        }
+        else {
+            throw new IllegalArgumentException(String.format("Measure observations must be numbers or quantities, found %s.",
+                result.getClass().getSimpleName()));
+        }
+    }
+
+    public void merge(MeasureObservations next) {
+        this.values.addAll(next.values);
+        if (this.unit == null) {
+            this.unit = next.unit;
+        }
+    }
+
+    public int getCount() {
+        return this.values.size();
+    }
+
+    // The unit of the observations, or null if they have none
+    public String getUnit() {
+        return this.unit;
+    }
+
+    // Aggregates the observations with the cqfm-aggregateMethod codes, averaging them when no method is given.
+    // Returns null if there are no observations.
+    public BigDecimal aggregate(String method) {
+        if (this.values.isEmpty()) {
+            return null;
+        }
+
+        switch (method == null ? "average" : method) {
+            case "sum":
+                return sum(this.values);
+            case "average":
+                return sum(this.values).divide(BigDecimal.valueOf(this.values.size()), MathContext.DECIMAL64);
+            case "median":
+                List<BigDecimal> sorted = new ArrayList<>(this.values);
+                Collections.sort(sorted);
+                int middle = sorted.size() / 2;
+                return sorted.size() % 2 == 1 ? sorted.get(middle)
+                    : sorted.get(middle - 1).add(sorted.get(middle)).divide(BigDecimal.valueOf(2), MathContext.DECIMAL64);
+            case "minimum":
+                return Collections.min(this.values);
+            case "maximum":
+                return Collections.max(this.values);
+            case "count":
+                return BigDecimal.valueOf(this.values.size());
+            default:
+                throw new IllegalArgumentException(String.format("Unsupported measure observation aggregate method: %s.", method));
+        }
+    }
+
+    private static BigDecimal sum(List<BigDecimal> values) {
+        BigDecimal sum = BigDecimal.ZERO;
+        for (BigDecimal value : values) {
+            sum = sum.add(value);
+        }
+
+        return sum;
+    }
+}
@@ -0,0 +1,64 @@
+package org.opencds.cqf.common.evaluation;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.hl7.fhir.instance.model.api.IBaseResource;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.IParser;
+
+/**
+ * Writes the resources evaluated for a measure report to an NDJSON file, one resource per
+ * line, as they are evaluated rather than holding them in memory. Each resource is written
+ * once. Safe for use by the worker threads of a parallel evaluation.
+ */
+public class NdjsonResourceWriter implements Closeable {
+
+    // References the file from the MeasureReport in place of contained resources
+    public static final String EXTENSION_URL = "http://cqframework.org/fhir/StructureDefinition/evaluatedResourcesFile";
+
+    private Path path;
+    private IParser parser;
+    private BufferedWriter writer;
+    private Set<String> writtenIds = new HashSet<>();
+
+    public NdjsonResourceWriter(FhirContext fhirContext, Path path) throws IOException {
+        if (path.getParent() != null) {
+            Files.createDirectories(path.getParent());
+        }
+
+        this.path = path;
+        this.parser = fhirContext.newJsonParser().setPrettyPrint(false);
+        this.writer = Files.newBufferedWriter(path, StandardCharsets.UTF_8);
+    }
+
+    public Path getPath() {
+        return this.path;
+    }
+
+    public synchronized void write(String id, IBaseResource resource) {
+        if (!this.writtenIds.add(id)) {
+            return;
+        }
+
+        try {
+            this.writer.write(this.parser.encodeResourceToString(resource));
+            this.writer.newLine();
+        }
+        catch (IOException e) {
+            throw new RuntimeException("Error writing evaluated resources to " + this.path + ": " + e.getMessage(), e);
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        this.writer.close();
+    }
+}
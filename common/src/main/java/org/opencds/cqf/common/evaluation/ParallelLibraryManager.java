@@ -0,0 +1,209 @@
+package org.opencds.cqf.common.evaluation;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.cqframework.cql.cql2elm.CqlTranslator;
+import org.cqframework.cql.cql2elm.CqlTranslatorException;
+import org.cqframework.cql.cql2elm.CqlTranslatorException.ErrorSeverity;
+import org.cqframework.cql.cql2elm.LibraryBuilder.SignatureLevel;
+import org.cqframework.cql.cql2elm.LibraryManager;
+import org.cqframework.cql.cql2elm.LibrarySourceProvider;
+import org.cqframework.cql.cql2elm.ModelManager;
+import org.cqframework.cql.cql2elm.model.TranslatedLibrary;
+import org.hl7.elm.r1.VersionedIdentifier;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A LibraryManager that can translate the libraries a library includes concurrently, before
+ * the library itself.
+ *
+ * The include graph is read up front from the include declarations of the CQL sources. Every
+ * library whose includes have all been translated is then translated on the translation
+ * executor, owned by the servlet and shared by all requests, each thread with a LibraryManager of its own sharing the translated
+ * libraries, so independent branches are translated at the same time. Each library is
+ * translated from the same source with the same options and includes as it would be depth
+ * first, so the ELM is identical; a library that cannot be translated up front is simply
+ * translated depth first when the library including it is.
+ */
+public class ParallelLibraryManager extends LibraryManager {
+
+    private static final Logger logger = LoggerFactory.getLogger(ParallelLibraryManager.class);
+
+    private static final Pattern INCLUDE_PATTERN = Pattern.compile(
+        "^\\s*include\\s+(?:\"([^\"]+)\"|([A-Za-z_][\\w.]*))(?:\\s+version\\s+'([^']*)')?", Pattern.MULTILINE);
+
+    private ModelManager modelManager;
+    private LibrarySourceProvider librarySourceProvider;
+    private Map<String, TranslatedLibrary> translatedLibraries;
+    private ExecutorService executor;
+
+    // Without an executor every library is translated depth first
+    public ParallelLibraryManager(ModelManager modelManager, LibrarySourceProvider librarySourceProvider,
+            ExecutorService executor) {
+        this(modelManager, librarySourceProvider, new ConcurrentHashMap<>(), executor);
+    }
+
+    private ParallelLibraryManager(ModelManager modelManager, LibrarySourceProvider librarySourceProvider,
+            Map<String, TranslatedLibrary> translatedLibraries, ExecutorService executor) {
+        super(modelManager);
+        this.modelManager = modelManager;
+        this.librarySourceProvider = librarySourceProvider;
+        this.translatedLibraries = translatedLibraries;
+        this.executor = executor;
+
+        this.getLibrarySourceLoader().clearProviders();
+        this.getLibrarySourceLoader().registerProvider(librarySourceProvider);
+    }
+
+    @Override
+    public TranslatedLibrary resolveLibrary(VersionedIdentifier libraryIdentifier, ErrorSeverity errorLevel,
+            SignatureLevel signatureLevel, CqlTranslator.Options[] options, List<CqlTranslatorException> errors) {
+        String key = getKey(libraryIdentifier.getId(), libraryIdentifier.getVersion());
+        TranslatedLibrary library = this.translatedLibraries.get(key);
+        if (library != null) {
+            return library;
+        }
+
+        library = super.resolveLibrary(libraryIdentifier, errorLevel, signatureLevel, options, errors);
+        if (library != null && !CqlTranslatorException.HasErrors(errors)) {
+            this.translatedLibraries.put(key, library);
+        }
+
+        return library;
+    }
+
+    // Translates the libraries the library includes, directly or transitively, ahead of the library itself
+    public void translateIncludes(VersionedIdentifier libraryIdentifier, ErrorSeverity errorLevel,
+            SignatureLevel signatureLevel, CqlTranslator.Options[] options) {
+        if (this.executor == null) {
+            return;
+        }
+
+        Map<String, VersionedIdentifier> identifiers = new HashMap<>();
+        Map<String, Set<String>> includes = new HashMap<>();
+        String rootKey = getKey(libraryIdentifier.getId(), libraryIdentifier.getVersion());
+        readIncludeGraph(libraryIdentifier, identifiers, includes);
+
+        Set<String> pending = new LinkedHashSet<>(identifiers.keySet());
+        pending.remove(rootKey);
+        pending.removeAll(this.translatedLibraries.keySet());
+        while (!pending.isEmpty()) {
+            // Libraries whose includes are translated, or will be translated depth first by them
+            List<Callable<Void>> tasks = new ArrayList<>();
+            List<String> ready = new ArrayList<>();
+            for (String key : pending) {
+                if (includes.get(key).stream().noneMatch(pending::contains)) {
+                    ready.add(key);
+                    VersionedIdentifier identifier = identifiers.get(key);
+                    tasks.add(() -> {
+                        translate(identifier, errorLevel, signatureLevel, options);
+                        return null;
+                    });
+                }
+            }
+
+            // The rest of the graph has a cycle, which the translator reports
+            if (ready.isEmpty()) {
+                return;
+            }
+
+            try {
+                if (tasks.size() == 1) {
+                    tasks.get(0).call();
+                }
+                else {
+                    this.executor.invokeAll(tasks);
+                }
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            catch (Exception e) {
+                return;
+            }
+
+            pending.removeAll(ready);
+        }
+    }
+
+    private void translate(VersionedIdentifier identifier, ErrorSeverity errorLevel, SignatureLevel signatureLevel,
+            CqlTranslator.Options[] options) {
+        try {
+            new ParallelLibraryManager(this.modelManager, this.librarySourceProvider, this.translatedLibraries, null)
+                .resolveLibrary(identifier, errorLevel, signatureLevel, options, new ArrayList<>());
+        }
+        catch (Exception e) {
+            logger.debug("Unable to translate library {} ahead of the libraries including it: {}", identifier.getId(), e.getMessage());
+        }
+    }
+
+    private void readIncludeGraph(VersionedIdentifier libraryIdentifier, Map<String, VersionedIdentifier> identifiers,
+            Map<String, Set<String>> includes) {
+        Deque<VersionedIdentifier> queue = new ArrayDeque<>();
+        queue.add(libraryIdentifier);
+        identifiers.put(getKey(libraryIdentifier.getId(), libraryIdentifier.getVersion()), libraryIdentifier);
+        while (!queue.isEmpty()) {
+            VersionedIdentifier identifier = queue.remove();
+            Set<String> includeKeys = new LinkedHashSet<>();
+            includes.put(getKey(identifier.getId(), identifier.getVersion()), includeKeys);
+
+            String source = readSource(identifier);
+            if (source == null) {
+                continue;
+            }
+
+            for (VersionedIdentifier include : readIncludes(source)) {
+                String key = getKey(include.getId(), include.getVersion());
+                includeKeys.add(key);
+                if (!identifiers.containsKey(key)) {
+                    identifiers.put(key, include);
+                    queue.add(include);
+                }
+            }
+        }
+    }
+
+    // The libraries included by a CQL source, read from its include declarations. This only decides what is
+    // translated ahead of time: an include declaration in a comment or string is translated needlessly, and one
+    // that is missed is translated depth first, so the translated libraries are the same either way.
+    private static List<VersionedIdentifier> readIncludes(String source) {
+        List<VersionedIdentifier> includes = new ArrayList<>();
+        Matcher matcher = INCLUDE_PATTERN.matcher(source);
+        while (matcher.find()) {
+            String name = matcher.group(1) != null ? matcher.group(1) : matcher.group(2);
+            includes.add(new VersionedIdentifier().withId(name).withVersion(matcher.group(3)));
+        }
+
+        return includes;
+    }
+
+    private String readSource(VersionedIdentifier identifier) {
+        try (InputStream source = this.librarySourceProvider.getLibrarySource(identifier)) {
+            return source == null ? null : new String(source.readAllBytes(), StandardCharsets.UTF_8);
+        }
+        catch (IOException e) {
+            return null;
+        }
+    }
+
+    private static String getKey(String name, String version) {
+        return name + "|" + (version == null ? "" : version);
+    }
+}
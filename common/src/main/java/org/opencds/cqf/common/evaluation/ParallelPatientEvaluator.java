@@ -0,0 +1,113 @@
+package org.opencds.cqf.common.evaluation;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.Supplier;
+
+import org.opencds.cqf.cql.execution.Context;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Evaluates patients in batches on an executor shared by all evaluations, which is owned by
+ * the servlet. At most threadCount batches of an evaluation are submitted at a time, so an
+ * evaluation never uses more than threadCount of the executor's threads.
+ *
+ * Every batch runs with an execution Context of its own from the context factory, since a
+ * Context is not safe for concurrent use. Contexts are reused by later batches of the same
+ * evaluation. Batch results are merged strictly in the order the patients were supplied, so
+ * the outcome is the same as a sequential evaluation.
+ */
+public class ParallelPatientEvaluator<PatientType, StateType> {
+
+    private static final Logger logger = LoggerFactory.getLogger(ParallelPatientEvaluator.class);
+
+    private ExecutorService executor;
+    private int threadCount;
+    private int batchSize;
+    private Supplier<Context> contextFactory;
+
+    public ParallelPatientEvaluator(ExecutorService executor, int threadCount, int batchSize, Supplier<Context> contextFactory) {
+        if (threadCount < 1) {
+            throw new IllegalArgumentException("The thread count must be at least 1.");
+        }
+
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("The batch size must be at least 1.");
+        }
+
+        this.executor = executor;
+        this.threadCount = threadCount;
+        this.batchSize = batchSize;
+        this.contextFactory = contextFactory;
+    }
+
+    public StateType evaluate(Iterator<PatientType> patients, StateType state,
+            BiFunction<Context, List<PatientType>, StateType> evaluateBatch, BiConsumer<StateType, StateType> merge) {
+        logger.info("Evaluating patients on {} threads in batches of {}", this.threadCount, this.batchSize);
+
+        Queue<Context> contexts = new ConcurrentLinkedQueue<>();
+        Deque<Future<StateType>> pending = new ArrayDeque<>();
+
+        try {
+            while (patients.hasNext()) {
+                List<PatientType> batch = new ArrayList<>(this.batchSize);
+                while (patients.hasNext() && batch.size() < this.batchSize) {
+                    batch.add(patients.next());
+                }
+
+                pending.add(this.executor.submit(() -> {
+                    Context context = contexts.poll();
+                    if (context == null) {
+                        context = this.contextFactory.get();
+                    }
+
+                    try {
+                        return evaluateBatch.apply(context, batch);
+                    }
+                    finally {
+                        contexts.add(context);
+                    }
+                }));
+
+                // Bound the number of batches in flight, which bounds the threads used, and keeps
+                // the patients and the intermediate results from piling up in memory
+                if (pending.size() >= this.threadCount) {
+                    merge.accept(state, pending.poll().get());
+                }
+            }
+
+            while (!pending.isEmpty()) {
+                merge.accept(state, pending.poll().get());
+            }
+
+            return state;
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Parallel patient evaluation was interrupted.", e);
+        }
+        catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+
+            throw new RuntimeException("Error encountered during parallel patient evaluation: " + e.getCause().getMessage(), e.getCause());
+        }
+        finally {
+            for (Future<StateType> future : pending) {
+                future.cancel(true);
+            }
+        }
+    }
+}
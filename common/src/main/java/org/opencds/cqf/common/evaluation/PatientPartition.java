@@ -0,0 +1,95 @@
+package org.opencds.cqf.common.evaluation;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.function.Function;
+
+/**
+ * One of partitionCount disjoint slices of the patients, chosen by hashing the patient id,
+ * so that several servers sharing a database can each evaluate a slice of a population
+ * report. String.hashCode is specified by the JDK, so every server assigns a patient to the
+ * same partition.
+ */
+public class PatientPartition {
+
+    // Marks a MeasureReport as the result for one partition, with a value of "partition/partitionCount"
+    public static final String EXTENSION_URL = "http://cqframework.org/fhir/StructureDefinition/measureReportPartition";
+
+    private int partition;
+    private int partitionCount;
+
+    public PatientPartition(int partition, int partitionCount) {
+        if (partitionCount < 1) {
+            throw new IllegalArgumentException("The partition count must be at least 1.");
+        }
+
+        if (partition < 0 || partition >= partitionCount) {
+            throw new IllegalArgumentException(String.format("The partition must be between 0 and %d.", partitionCount - 1));
+        }
+
+        this.partition = partition;
+        this.partitionCount = partitionCount;
+    }
+
+    public int getPartition() {
+        return this.partition;
+    }
+
+    public int getPartitionCount() {
+        return this.partitionCount;
+    }
+
+    public boolean contains(String patientId) {
+        return Math.floorMod(patientId.hashCode(), this.partitionCount) == this.partition;
+    }
+
+    // The patients in this partition, filtered as they are iterated
+    public <T> Iterable<T> filter(Iterable<T> patients, Function<T, String> getPatientId) {
+        return () -> new Iterator<T>() {
+            private Iterator<T> iterator = patients.iterator();
+            private T next;
+
+            @Override
+            public boolean hasNext() {
+                while (this.next == null && this.iterator.hasNext()) {
+                    T patient = this.iterator.next();
+                    if (contains(getPatientId.apply(patient))) {
+                        this.next = patient;
+                    }
+                }
+
+                return this.next != null;
+            }
+
+            @Override
+            public T next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+
+                T patient = this.next;
+                this.next = null;
+                return patient;
+            }
+        };
+    }
+
+    @Override
+    public String toString() {
+        return this.partition + "/" + this.partitionCount;
+    }
+
+    public static PatientPartition fromString(String value) {
+        String[] parts = value == null ? new String[0] : value.split("/");
+        if (parts.length != 2) {
+            throw new IllegalArgumentException("Invalid partition: " + value);
+        }
+
+        try {
+            return new PatientPartition(Integer.parseInt(parts[0].trim()), Integer.parseInt(parts[1].trim()));
+        }
+        catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid partition: " + value);
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package org.opencds.cqf.common.evaluation;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Set;
+
+import org.hl7.fhir.instance.model.api.IBaseResource;
+
+/**
+ * Tracks the members of a single measure population (e.g. the numerator of one group)
+ * while patients are evaluated.
+ *
+ * Only the ids of member resources are kept, never the resources themselves, so the memory
+ * used by a summary evaluation does not grow with the size of the evaluated resources.
+ * Patients are only kept when they are tracked for a subject-list report.
+ *
+ * States built for consecutive batches of patients can be merged in batch order and
+ * produce the same membership as evaluating every patient against a single state.
+ */
+public class PopulationState<ResourceType extends IBaseResource, PatientType extends IBaseResource> {
+
+    private Set<String> resourceIds = new HashSet<>();
+    private LinkedHashMap<String, PatientType> patients;
+
+    // Removals are remembered so they can be replayed against the state of earlier batches
+    private Set<String> removedResources = new HashSet<>();
+    private Set<String> removedPatients = new HashSet<>();
+
+    public PopulationState(boolean trackPatients) {
+        if (trackPatients) {
+            this.patients = new LinkedHashMap<>();
+        }
+    }
+
+    public void addResource(ResourceType resource) {
+        this.resourceIds.add(resource.getIdElement().getIdPart());
+    }
+
+    public void removeResource(String id) {
+        this.resourceIds.remove(id);
+        this.removedResources.add(id);
+    }
+
+    public void addPatient(PatientType patient) {
+        if (this.patients != null) {
+            this.patients.put(patient.getIdElement().getIdPart(), patient);
+        }
+    }
+
+    public void removePatient(String id) {
+        if (this.patients != null) {
+            this.patients.remove(id);
+            this.removedPatients.add(id);
+        }
+    }
+
+    public int getCount() {
+        return this.resourceIds.size();
+    }
+
+    // Null unless patients are being tracked (i.e. for subject-list reports)
+    public Collection<PatientType> getPatients() {
+        return this.patients != null ? this.patients.values() : null;
+    }
+
+    // Merges the state of the batch of patients evaluated immediately after this one
+    public void merge(PopulationState<ResourceType, PatientType> next) {
+        this.resourceIds.removeAll(next.removedResources);
+        this.resourceIds.addAll(next.resourceIds);
+        this.removedResources.addAll(next.removedResources);
+
+        if (this.patients != null && next.patients != null) {
+            this.patients.keySet().removeAll(next.removedPatients);
+            this.patients.putAll(next.patients);
+            this.removedPatients.addAll(next.removedPatients);
+        }
+    }
+}
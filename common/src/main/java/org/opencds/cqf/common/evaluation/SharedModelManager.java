@@ -0,0 +1,43 @@
+package org.opencds.cqf.common.evaluation;
+
+import org.cqframework.cql.cql2elm.ModelManager;
+import org.cqframework.cql.cql2elm.model.Model;
+import org.hl7.elm.r1.VersionedIdentifier;
+
+/**
+ * A ModelManager shared by every LibraryManager, so that each model info is parsed once per
+ * process rather than once per translation. Every method that reads or fills the models
+ * resolved so far is synchronized, since the underlying ModelManager is not thread-safe and
+ * is shared by concurrent translations; resolved models are only read afterwards.
+ */
+public class SharedModelManager extends ModelManager {
+
+    private static final SharedModelManager instance = new SharedModelManager();
+
+    private SharedModelManager() {
+    }
+
+    public static SharedModelManager getInstance() {
+        return instance;
+    }
+
+    @Override
+    public synchronized Model resolveModel(String modelName) {
+        return super.resolveModel(modelName);
+    }
+
+    @Override
+    public synchronized Model resolveModel(String modelName, String version) {
+        return super.resolveModel(modelName, version);
+    }
+
+    @Override
+    public synchronized Model resolveModel(VersionedIdentifier modelIdentifier) {
+        return super.resolveModel(modelIdentifier);
+    }
+
+    @Override
+    public synchronized Model resolveModelByUri(String namespaceUri) {
+        return super.resolveModelByUri(namespaceUri);
+    }
+}
@@ -0,0 +1,20 @@
+package org.opencds.cqf.common.exceptions;
+
+import org.hl7.fhir.instance.model.api.IBaseOperationOutcome;
+
+import ca.uhn.fhir.rest.server.exceptions.BaseServerResponseException;
+
+/**
+ * Signals that a request has been accepted for asynchronous processing. The server renders
+ * it as a 202 response with the given OperationOutcome and any headers added to it, such
+ * as the Content-Location where the status of the request can be polled.
+ */
+public class AcceptedException extends BaseServerResponseException {
+    private static final long serialVersionUID = 1L;
+
+    public static final int STATUS_CODE = 202;
+
+    public AcceptedException(String message, IBaseOperationOutcome operationOutcome) {
+        super(STATUS_CODE, message, operationOutcome);
+    }
+}
@@ -0,0 +1,51 @@
+package org.opencds.cqf.common.helpers;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import org.hl7.fhir.instance.model.api.IBaseReference;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.context.RuntimeResourceDefinition;
+import ca.uhn.fhir.context.RuntimeSearchParam;
+import ca.uhn.fhir.util.FhirTerser;
+
+public class PatientCompartmentHelper {
+
+    // Helper method to resolve the ids of the Patients whose compartment a resource is in
+    public static Set<String> getPatientIds(FhirContext fhirContext, IBaseResource resource) {
+        Set<String> patientIds = new HashSet<>();
+        RuntimeResourceDefinition definition = fhirContext.getResourceDefinition(resource);
+        if (definition.getName().equals("Patient")) {
+            patientIds.add(resource.getIdElement().getIdPart());
+            return patientIds;
+        }
+
+        FhirTerser terser = fhirContext.newTerser();
+        for (RuntimeSearchParam searchParam : definition.getSearchParamsForCompartmentName("Patient")) {
+            for (String path : searchParam.getPath().split("\\|")) {
+                path = path.trim();
+
+                // Only simple paths are supported, e.g. "Observation.subject.where(resolve() is Patient)"
+                // is resolved as "Observation.subject" and filtered on the reference type below
+                if (path.contains(".where(")) {
+                    path = path.substring(0, path.indexOf(".where("));
+                }
+
+                if (path.isEmpty() || path.contains("(")) {
+                    continue;
+                }
+
+                for (IBaseReference reference : terser.getValues(resource, path, IBaseReference.class)) {
+                    if ("Patient".equals(reference.getReferenceElement().getResourceType())
+                            && reference.getReferenceElement().getIdPart() != null) {
+                        patientIds.add(reference.getReferenceElement().getIdPart());
+                    }
+                }
+            }
+        }
+
+        return patientIds;
+    }
+}
@@ -3,10 +3,16 @@ package org.opencds.cqf.common.helpers;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.stream.Collectors;
 
+import javax.xml.bind.JAXBContext;
 import javax.xml.bind.JAXBException;
+import javax.xml.bind.util.JAXBSource;
 
 import org.cqframework.cql.cql2elm.CqlTranslator;
 import org.cqframework.cql.cql2elm.CqlTranslatorException;
@@ -14,10 +20,32 @@ import org.cqframework.cql.cql2elm.LibraryManager;
 import org.cqframework.cql.cql2elm.ModelManager;
 import org.cqframework.cql.elm.execution.Library;
 import org.cqframework.cql.elm.tracking.TrackBack;
+import org.hl7.cql_annotations.r1.Annotation;
+import org.hl7.elm.r1.ObjectFactory;
 import org.opencds.cqf.cql.execution.CqlLibraryReader;
+import org.opencds.cqf.cql.execution.JsonCqlLibraryReader;
+
+import com.google.common.hash.Hashing;
 
 public class TranslatorHelper {
 
+    // Local extensions of this server, not defined by any published specification or IG (see the README).
+    // Records on an ELM attachment the translator version and options it was produced with
+    public static final String TRANSLATOR_INFO_EXTENSION_URL = "http://cqframework.org/fhir/StructureDefinition/cqlTranslatorInfo";
+
+    // Records on an ELM attachment the hash of the CQL it was translated from
+    public static final String CQL_HASH_EXTENSION_URL = "http://cqframework.org/fhir/StructureDefinition/cqlContentHash";
+
+    private static JAXBContext elmContext;
+
+    private static synchronized JAXBContext getElmContext() throws JAXBException {
+        if (elmContext == null) {
+            elmContext = JAXBContext.newInstance(org.hl7.elm.r1.Library.class, Annotation.class);
+        }
+
+        return elmContext;
+    }
+
     public static Library readLibrary(InputStream xmlStream) {
         try {
             return CqlLibraryReader.read(xmlStream);
@@ -26,6 +54,33 @@ public class TranslatorHelper {
         }
     }
 
+    public static void writeLibrary(org.hl7.elm.r1.Library library, OutputStream xmlStream) {
+        try {
+            getElmContext().createMarshaller().marshal(new ObjectFactory().createLibrary(library), xmlStream);
+        } catch (JAXBException e) {
+            throw new IllegalArgumentException("Error encountered while writing ELM xml: " + e.getMessage());
+        }
+    }
+
+    public static Library readJsonLibrary(InputStream jsonStream) {
+        try {
+            return JsonCqlLibraryReader.read(new InputStreamReader(jsonStream, StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Error encountered while reading ELM json: " + e.getMessage());
+        }
+    }
+
+    // Converts translator output to the execution model by streaming the marshalled ELM straight into
+    // the engine's unmarshaller, without serializing it to an XML string and parsing it again. This is
+    // still a JAXB marshal and unmarshal, since the translator and the engine have separate ELM classes.
+    public static Library readLibrary(org.hl7.elm.r1.Library library) {
+        try {
+            return CqlLibraryReader.read(new JAXBSource(getElmContext(), new ObjectFactory().createLibrary(library)));
+        } catch (JAXBException e) {
+            throw new IllegalArgumentException("Error encountered while reading ELM: " + e.getMessage());
+        }
+    }
+
     public static String errorsToString(Iterable<CqlTranslatorException> exceptions) {
         ArrayList<String> errors = new ArrayList<>();
         for (CqlTranslatorException error : exceptions) {
@@ -44,17 +99,28 @@ public class TranslatorHelper {
         return getTranslator(new ByteArrayInputStream(cql.getBytes(StandardCharsets.UTF_8)), libraryManager, modelManager);
     }
 
+    public static CqlTranslator.Options[] getTranslatorOptions() {
+        return new CqlTranslator.Options[] { CqlTranslator.Options.EnableAnnotations,
+                CqlTranslator.Options.EnableLocators, CqlTranslator.Options.DisableListDemotion,
+                CqlTranslator.Options.DisableListPromotion, CqlTranslator.Options.DisableMethodInvocation };
+    }
+
+    // The sha256 of a CQL source, as recorded on the ELM translated from it
+    public static String getContentHash(byte[] cql) {
+        return Hashing.sha256().hashBytes(cql).toString();
+    }
+
+    // ELM produced by a different translator version or with different options is retranslated rather than reused
+    public static String getTranslatorInfo() {
+        String version = CqlTranslator.class.getPackage().getImplementationVersion();
+        return (version == null ? "unknown" : version) + "|"
+                + Arrays.stream(getTranslatorOptions()).map(Enum::name).collect(Collectors.joining(","));
+    }
+
     public static CqlTranslator getTranslator(InputStream cqlStream, LibraryManager libraryManager, ModelManager modelManager) {
-        ArrayList<CqlTranslator.Options> options = new ArrayList<>();
-        options.add(CqlTranslator.Options.EnableAnnotations);
-        options.add(CqlTranslator.Options.EnableLocators);
-        options.add(CqlTranslator.Options.DisableListDemotion);
-        options.add(CqlTranslator.Options.DisableListPromotion);
-        options.add(CqlTranslator.Options.DisableMethodInvocation);
         CqlTranslator translator;
         try {
-            translator = CqlTranslator.fromStream(cqlStream, modelManager, libraryManager,
-                    options.toArray(new CqlTranslator.Options[options.size()]));
+            translator = CqlTranslator.fromStream(cqlStream, modelManager, libraryManager, getTranslatorOptions());
         } catch (IOException e) {
             throw new IllegalArgumentException(String.format("Errors occurred translating library: %s", e.getMessage()));
         }
@@ -68,10 +134,10 @@ public class TranslatorHelper {
 
     public static Library translateLibrary(InputStream cqlStream, LibraryManager libraryManager, ModelManager modelManager) {
         CqlTranslator translator = getTranslator(cqlStream, libraryManager, modelManager);
-        return readLibrary(new ByteArrayInputStream(translator.toXml().getBytes(StandardCharsets.UTF_8)));
+        return readLibrary(translator.toELM());
     }
 
     public static Library translateLibrary(CqlTranslator translator) {
-        return readLibrary(new ByteArrayInputStream(translator.toXml().getBytes(StandardCharsets.UTF_8)));
+        return readLibrary(translator.toELM());
     }
 }
\ No newline at end of file
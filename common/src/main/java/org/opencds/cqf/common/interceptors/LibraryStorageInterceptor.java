@@ -0,0 +1,193 @@
+package org.opencds.cqf.common.interceptors;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.hl7.fhir.instance.model.api.IBase;
+import org.hl7.fhir.instance.model.api.IBaseReference;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.instance.model.api.IPrimitiveType;
+import org.opencds.cqf.common.evaluation.CompiledLibraryStore;
+import org.opencds.cqf.common.evaluation.LibraryCache;
+import org.opencds.cqf.common.evaluation.LibraryDependencyGraph;
+import org.opencds.cqf.common.providers.LibraryIndex;
+
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import ca.uhn.fhir.context.BaseRuntimeChildDefinition;
+import ca.uhn.fhir.context.BaseRuntimeElementCompositeDefinition;
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.interceptor.api.Hook;
+import ca.uhn.fhir.interceptor.api.Interceptor;
+import ca.uhn.fhir.interceptor.api.Pointcut;
+import ca.uhn.fhir.util.FhirTerser;
+
+/**
+ * Keeps the LibraryIndex and LibraryDependencyGraph up to date as Library resources are
+ * created, updated and deleted, and evicts the changed library and every library including
+ * it from the shared LibraryCache and the CompiledLibraryStore.
+ *
+ * Libraries are evicted both before the change commits and again once it has, since a
+ * request running meanwhile may still read the previous version and cache libraries
+ * translated from it. The LibraryIndex and the dependency graph are only changed once the
+ * change has committed, so changes that are rolled back are not recorded in them.
+ */
+@Interceptor
+public class LibraryStorageInterceptor {
+
+    private FhirTerser terser;
+    private LibraryIndex libraryIndex;
+    private BaseRuntimeChildDefinition relatedArtifactType;
+    private BaseRuntimeChildDefinition relatedArtifactResource;
+
+    public LibraryStorageInterceptor(FhirContext fhirContext) {
+        this.terser = fhirContext.newTerser();
+        this.libraryIndex = LibraryIndex.getInstance(fhirContext);
+
+        BaseRuntimeElementCompositeDefinition<?> relatedArtifact =
+            (BaseRuntimeElementCompositeDefinition<?>) fhirContext.getElementDefinition("RelatedArtifact");
+        this.relatedArtifactType = relatedArtifact.getChildByName("type");
+        this.relatedArtifactResource = relatedArtifact.getChildByName("resource");
+    }
+
+    @Hook(Pointcut.STORAGE_PRECOMMIT_RESOURCE_CREATED)
+    public void resourceCreated(IBaseResource resource) {
+        if (isLibrary(resource)) {
+            added(resource);
+        }
+    }
+
+    @Hook(Pointcut.STORAGE_PRECOMMIT_RESOURCE_UPDATED)
+    public void resourceUpdated(IBaseResource oldResource, IBaseResource newResource) {
+        // A renamed library must be evicted under its previous name as well
+        if (isLibrary(oldResource)) {
+            removed(oldResource, false);
+        }
+
+        if (isLibrary(newResource)) {
+            added(newResource);
+        }
+    }
+
+    @Hook(Pointcut.STORAGE_PRECOMMIT_RESOURCE_DELETED)
+    public void resourceDeleted(IBaseResource resource) {
+        if (isLibrary(resource)) {
+            removed(resource, true);
+        }
+    }
+
+    private void added(IBaseResource resource) {
+        String name = getValue(resource, "Library.name");
+        if (name != null) {
+            String id = resource.getIdElement().getIdPart();
+            List<String> dependencies = getDependencies(resource);
+            invalidate(name);
+            afterCommit(() -> {
+                this.libraryIndex.add(name, id);
+                LibraryDependencyGraph.getInstance().addIncludes(name, dependencies);
+                invalidate(name);
+            });
+        }
+    }
+
+    private void removed(IBaseResource resource, boolean deleted) {
+        String name = getValue(resource, "Library.name");
+        if (name != null) {
+            String id = resource.getIdElement().getIdPart();
+            invalidate(name);
+            afterCommit(() -> {
+                this.libraryIndex.remove(name, id);
+                invalidate(name);
+                if (deleted) {
+                    LibraryDependencyGraph.getInstance().remove(name);
+                }
+            });
+        }
+    }
+
+    // Runs the action once the current transaction commits, or now if there is none
+    private static void afterCommit(Runnable action) {
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            action.run();
+            return;
+        }
+
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+            @Override
+            public void afterCommit() {
+                action.run();
+            }
+        });
+    }
+
+    private static void invalidate(String name) {
+        CompiledLibraryStore libraryStore = CompiledLibraryStore.getInstance();
+        for (String dependent : LibraryDependencyGraph.getInstance().getDependents(name)) {
+            LibraryCache.getInstance().invalidate(dependent);
+            if (libraryStore != null) {
+                libraryStore.invalidate(dependent);
+            }
+        }
+    }
+
+    // The names of the libraries referenced by the depends-on relatedArtifacts written by $refresh-generated-content
+    private List<String> getDependencies(IBaseResource resource) {
+        List<String> names = new ArrayList<>();
+        for (IBase relatedArtifact : this.terser.getValues(resource, "Library.relatedArtifact")) {
+            if (!"depends-on".equals(getPrimitiveValue(this.relatedArtifactType, relatedArtifact))) {
+                continue;
+            }
+
+            // RelatedArtifact.resource is a canonical from R4 on, and a Reference before
+            String reference = null;
+            for (IBase value : this.relatedArtifactResource.getAccessor().getValues(relatedArtifact)) {
+                if (value instanceof IBaseReference) {
+                    reference = ((IBaseReference) value).getReferenceElement().getValue();
+                }
+                else if (value instanceof IPrimitiveType) {
+                    reference = ((IPrimitiveType<?>) value).getValueAsString();
+                }
+            }
+
+            int index = reference == null ? -1 : reference.lastIndexOf("Library/");
+            String name = index < 0 ? null : this.libraryIndex.getName(reference.substring(index + "Library/".length()));
+            if (name != null) {
+                names.add(name);
+            }
+        }
+
+        return names;
+    }
+
+    private static String getPrimitiveValue(BaseRuntimeChildDefinition child, IBase element) {
+        for (IBase value : child.getAccessor().getValues(element)) {
+            if (value instanceof IPrimitiveType) {
+                return ((IPrimitiveType<?>) value).getValueAsString();
+            }
+        }
+
+        return null;
+    }
+
+    private static boolean isLibrary(IBaseResource resource) {
+        return resource != null && "Library".equals(resource.fhirType());
+    }
+
+    private String getValue(IBaseResource resource, String path) {
+        List<String> values = getValues(resource, path);
+        return values.isEmpty() ? null : values.get(0);
+    }
+
+    @SuppressWarnings("rawtypes")
+    private List<String> getValues(IBaseResource resource, String path) {
+        List<String> values = new ArrayList<>();
+        for (IPrimitiveType value : this.terser.getValues(resource, path, IPrimitiveType.class)) {
+            if (value.getValueAsString() != null) {
+                values.add(value.getValueAsString());
+            }
+        }
+
+        return values;
+    }
+}
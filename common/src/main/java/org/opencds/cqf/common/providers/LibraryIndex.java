@@ -0,0 +1,109 @@
+package org.opencds.cqf.common.providers;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import ca.uhn.fhir.context.FhirContext;
+
+/**
+ * An index from Library name to versions to resource id, so that resolving a library by name
+ * reads a single resource rather than searching for and parsing every version of it.
+ *
+ * A name is indexed by the first lookup for it, from a search for every Library with that
+ * name, and invalidated by the LibraryStorageInterceptor once a change to a library with that
+ * name has committed. A name with no libraries is indexed with no versions, so names only
+ * available on the classpath (e.g. FHIRHelpers) are not searched for again. There is an
+ * index for each FhirContext, since each holds the libraries of a different FHIR version.
+ */
+public class LibraryIndex {
+
+    private static final Map<FhirContext, LibraryIndex> instances = new ConcurrentHashMap<>();
+
+    private Map<String, NavigableMap<String, String>> idsByName = new HashMap<>();
+    private Map<String, String> namesById = new HashMap<>();
+
+    // Counts the invalidations of each name, so that a search made before one is not indexed after it
+    private Map<String, Long> generations = new HashMap<>();
+
+    public static LibraryIndex getInstance(FhirContext fhirContext) {
+        return instances.computeIfAbsent(fhirContext, x -> new LibraryIndex());
+    }
+
+    public synchronized boolean contains(String name) {
+        return this.idsByName.containsKey(name);
+    }
+
+    // Returns the id of the given version, or of the highest version if no version is given, or null if there is none
+    public synchronized String getId(String name, String version) {
+        NavigableMap<String, String> ids = this.idsByName.get(name);
+        if (ids == null || ids.isEmpty()) {
+            return null;
+        }
+
+        return version == null ? ids.lastEntry().getValue() : ids.get(version);
+    }
+
+    // Returns null if the library has not been indexed
+    public synchronized String getName(String id) {
+        return this.namesById.get(id);
+    }
+
+    // Taken before searching for a library, to be passed to put
+    public synchronized long getGeneration(String name) {
+        return this.generations.getOrDefault(name, 0L);
+    }
+
+    // Indexes the versions of a library, as found by a search made at the given generation of its name. The
+    // search is ignored if a library with the name has changed since, as it may not include the change.
+    public synchronized void put(String name, Map<String, String> idsByVersion, long generation) {
+        if (generation != getGeneration(name)) {
+            return;
+        }
+
+        NavigableMap<String, String> ids = new TreeMap<>(LibraryIndex::compareVersions);
+        ids.putAll(idsByVersion);
+        this.idsByName.put(name, ids);
+        for (String id : idsByVersion.values()) {
+            this.namesById.put(id, name);
+        }
+    }
+
+    // Called once a library has been stored. Its name is indexed again by its next lookup, but the id
+    // is known to be the library's so that libraries depending on it can be traced to it.
+    public synchronized void add(String name, String id) {
+        invalidate(name);
+        this.namesById.put(id, name);
+    }
+
+    // Called once a library has been deleted, or renamed from the given name
+    public synchronized void remove(String name, String id) {
+        invalidate(name);
+        this.namesById.remove(id, name);
+    }
+
+    public synchronized void invalidate(String name) {
+        this.generations.merge(name, 1L, Long::sum);
+        NavigableMap<String, String> ids = this.idsByName.remove(name);
+        if (ids != null) {
+            this.namesById.values().removeIf(name::equals);
+        }
+    }
+
+    public synchronized void clear() {
+        this.idsByName.clear();
+        this.namesById.clear();
+    }
+
+    // Orders versions as selectFromList does, comparing versions that are not numeric as strings
+    private static int compareVersions(String version1, String version2) {
+        try {
+            return LibraryResolutionProvider.compareVersions(version1, version2);
+        }
+        catch (NumberFormatException e) {
+            return version1.compareTo(version2);
+        }
+    }
+}
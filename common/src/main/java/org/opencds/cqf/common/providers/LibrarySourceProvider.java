@@ -1,11 +1,18 @@
 package org.opencds.cqf.common.providers;
 
 import org.cqframework.cql.cql2elm.FhirLibrarySourceProvider;
+import org.cqframework.cql.elm.execution.Library;
 import org.hl7.elm.r1.VersionedIdentifier;
+import org.opencds.cqf.common.helpers.TranslatorHelper;
 import org.opencds.cqf.common.providers.LibraryResolutionProvider;
 
 import java.io.ByteArrayInputStream;
+import java.io.IOException;
 import java.io.InputStream;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiFunction;
 import java.util.function.Function;
 
 /**
@@ -13,16 +20,29 @@ import java.util.function.Function;
  */
 public class LibrarySourceProvider<LibraryType, AttachmentType> implements org.cqframework.cql.cql2elm.LibrarySourceProvider {
 
+    // Sources of libraries that are not stored on the server, such as FHIRHelpers, read once from the classpath
+    private static final Map<String, Optional<byte[]>> classpathSources = new ConcurrentHashMap<>();
+
     private FhirLibrarySourceProvider innerProvider;
     private LibraryResolutionProvider<LibraryType> provider;
     private Function<LibraryType, Iterable<AttachmentType>> getAttachments;
     private Function<AttachmentType, String> getContentType;
     private Function<AttachmentType, byte[]> getContent;
+    private BiFunction<AttachmentType, String, String> getExtensionValue;
 
     public LibrarySourceProvider(LibraryResolutionProvider<LibraryType> provider, 
         Function<LibraryType, Iterable<AttachmentType>> getAttachments,
         Function<AttachmentType, String> getContentType,
         Function<AttachmentType, byte[]> getContent) {
+
+        this(provider, getAttachments, getContentType, getContent, (x, url) -> null);
+    }
+
+    public LibrarySourceProvider(LibraryResolutionProvider<LibraryType> provider, 
+        Function<LibraryType, Iterable<AttachmentType>> getAttachments,
+        Function<AttachmentType, String> getContentType,
+        Function<AttachmentType, byte[]> getContent,
+        BiFunction<AttachmentType, String, String> getExtensionValue) {
         
         this.innerProvider = new FhirLibrarySourceProvider();
 
@@ -30,6 +50,7 @@ public class LibrarySourceProvider<LibraryType, AttachmentType> implements org.c
         this.getAttachments = getAttachments;
         this.getContentType = getContentType;
         this.getContent = getContent;
+        this.getExtensionValue = getExtensionValue;
     }
 
     @Override
@@ -44,6 +65,66 @@ public class LibrarySourceProvider<LibraryType, AttachmentType> implements org.c
         }
         catch(Exception e){}
 
-        return this.innerProvider.getLibrarySource(versionedIdentifier);
+        String key = versionedIdentifier.getId() + "|" + (versionedIdentifier.getVersion() == null ? "" : versionedIdentifier.getVersion());
+        return classpathSources.computeIfAbsent(key, x -> readClasspathSource(versionedIdentifier))
+            .map(source -> (InputStream) new ByteArrayInputStream(source)).orElse(null);
+    }
+
+    private Optional<byte[]> readClasspathSource(VersionedIdentifier versionedIdentifier) {
+        try (InputStream source = this.innerProvider.getLibrarySource(versionedIdentifier)) {
+            return source == null ? Optional.empty() : Optional.of(source.readAllBytes());
+        }
+        catch (IOException e) {
+            return Optional.empty();
+        }
+    }
+
+    // Returns the ELM attached to the library, or null if it has none produced by the current translator and options
+    // from the library's current CQL
+    public Library getElmLibrary(VersionedIdentifier versionedIdentifier) {
+        LibraryType lib;
+        try {
+            lib = this.provider.resolveLibraryByName(versionedIdentifier.getId(), versionedIdentifier.getVersion());
+        }
+        catch (Exception e) {
+            return null;
+        }
+
+        if (lib == null) {
+            return null;
+        }
+
+        // ELM attached alongside CQL is stale once the CQL is edited without refreshing the generated content
+        String cqlHash = null;
+        for (AttachmentType attachment : this.getAttachments.apply(lib)) {
+            byte[] content = this.getContent.apply(attachment);
+            if ("text/cql".equals(this.getContentType.apply(attachment)) && content != null) {
+                cqlHash = TranslatorHelper.getContentHash(content);
+                break;
+            }
+        }
+
+        String translatorInfo = TranslatorHelper.getTranslatorInfo();
+        for (AttachmentType attachment : this.getAttachments.apply(lib)) {
+            String contentType = this.getContentType.apply(attachment);
+            byte[] content = this.getContent.apply(attachment);
+            if (content == null || !translatorInfo.equals(this.getExtensionValue.apply(attachment, TranslatorHelper.TRANSLATOR_INFO_EXTENSION_URL))) {
+                continue;
+            }
+
+            if (cqlHash != null && !cqlHash.equals(this.getExtensionValue.apply(attachment, TranslatorHelper.CQL_HASH_EXTENSION_URL))) {
+                continue;
+            }
+
+            if ("application/elm+xml".equals(contentType)) {
+                return TranslatorHelper.readLibrary(new ByteArrayInputStream(content));
+            }
+
+            if ("application/elm+json".equals(contentType)) {
+                return TranslatorHelper.readJsonLibrary(new ByteArrayInputStream(content));
+            }
+        }
+
+        return null;
     }
 }
\ No newline at end of file
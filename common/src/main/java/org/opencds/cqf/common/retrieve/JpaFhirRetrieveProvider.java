@@ -1,63 +1,445 @@
 package org.opencds.cqf.common.retrieve;
 
 import java.util.ArrayList;
-import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
+import org.apache.commons.lang3.tuple.Pair;
+import org.opencds.cqf.common.config.HapiProperties;
+import org.hl7.fhir.instance.model.api.IBase;
+import org.hl7.fhir.instance.model.api.IBaseCoding;
+import org.hl7.fhir.instance.model.api.IBaseReference;
 import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.instance.model.api.IPrimitiveType;
 import org.opencds.cqf.cql.retrieve.*;
+import org.opencds.cqf.cql.runtime.Code;
+import org.opencds.cqf.cql.runtime.Interval;
 import org.opencds.cqf.cql.searchparam.SearchParameterResolver;
+import org.opencds.cqf.cql.terminology.TerminologyProvider;
+import org.opencds.cqf.cql.terminology.ValueSetInfo;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Iterators;
+import com.google.common.collect.Lists;
+
+import ca.uhn.fhir.context.BaseRuntimeChildDefinition;
+import ca.uhn.fhir.context.BaseRuntimeElementCompositeDefinition;
+import ca.uhn.fhir.context.BaseRuntimeElementDefinition;
+import ca.uhn.fhir.context.FhirContext;
 import ca.uhn.fhir.jpa.dao.DaoRegistry;
 import ca.uhn.fhir.jpa.dao.IFhirResourceDao;
 import ca.uhn.fhir.jpa.searchparam.SearchParameterMap;
-import ca.uhn.fhir.rest.api.server.IBundleProvider;
+import ca.uhn.fhir.model.api.IQueryParameterOr;
+import ca.uhn.fhir.model.api.IQueryParameterType;
+import ca.uhn.fhir.rest.param.ReferenceOrListParam;
+import ca.uhn.fhir.rest.param.ReferenceParam;
+import ca.uhn.fhir.rest.param.TokenOrListParam;
+import ca.uhn.fhir.rest.param.TokenParam;
+import ca.uhn.fhir.util.FhirTerser;
 
+/**
+ * Retrieves data for CQL evaluation from the JPA server. A single instance is shared by
+ * concurrent requests (e.g. by the CdsHooksServlet), so it holds no per-request state other
+ * than in ThreadLocals and the results it returns, and takes no locks.
+ *
+ * The queries of a retrieve with several queries, such as one per chunk of a large value set,
+ * are run concurrently on the query executor, if one is given, so the retrieve takes as long
+ * as its slowest query rather than all of them. The executor is owned by the servlet, which
+ * shuts it down. Their results are held in memory in full, unlike those of a single query or of
+ * queries run one after another, which are loaded a page at a time. Either way a resource
+ * matched by more than one of the queries is returned once.
+ *
+ * A retrieve filtered by up to retrieve.max_codes_per_query codes, including the codes of an
+ * expanded value set, is one query with a list of codes. One filtered by more is split into
+ * queries of that many codes, and one for a single patient filtered by more than
+ * retrieve.in_memory_code_threshold codes loads the patient's resources of the type and
+ * matches their codes in memory, since a query with thousands of codes is slower than either.
+ */
 public class JpaFhirRetrieveProvider extends SearchParamFhirRetrieveProvider {
-    
-    DaoRegistry registry;
+
+    private static final Logger logger = LoggerFactory.getLogger(JpaFhirRetrieveProvider.class);
+
+    private final DaoRegistry registry;
+    private final SearchParameterResolver searchParameterResolver;
+    private final int pageSize;
+
+    private final ExecutorService queryExecutor;
+
+    // The patient search parameter covering an open PatientBatch, while it is being prefetched
+    private ThreadLocal<Pair<String, IQueryParameterOr<?>>> batchContextParam = new ThreadLocal<>();
 
 	public JpaFhirRetrieveProvider(DaoRegistry registry, SearchParameterResolver searchParameterResolver) {
-        super (searchParameterResolver);
-		this.registry = registry;
+        this(registry, searchParameterResolver, null);
 	}
 
+    // Without a query executor the queries of a retrieve are run one after another
+    public JpaFhirRetrieveProvider(DaoRegistry registry, SearchParameterResolver searchParameterResolver,
+            ExecutorService queryExecutor) {
+        super (searchParameterResolver);
+        this.registry = registry;
+        this.searchParameterResolver = searchParameterResolver;
+        this.pageSize = HapiProperties.getRetrievePageSize();
+        this.queryExecutor = queryExecutor;
+    }
+
+    @Override
+    public Iterable<Object> retrieve(String context, String contextPath, Object contextValue, String dataType,
+            String templateId, String codePath, Iterable<Code> codes, String valueSet, String datePath,
+            String dateLowPath, String dateHighPath, Interval dateRange) {
+        PatientBatch batch = PatientBatch.getCurrent();
+
+        // Date ranges are not prefetched since there is no reliable key for an Interval
+        if (batch == null || !"Patient".equals(context) || contextPath == null || dateRange != null
+                || !batch.covers(dataType, contextValue)) {
+            return retrieveByCodes(context, contextPath, contextValue, dataType, templateId, codePath, codes, valueSet,
+                datePath, dateLowPath, dateHighPath, dateRange);
+        }
+
+        String retrieveKey = getRetrieveKey(contextPath, dataType, templateId, codePath, codes, valueSet, datePath,
+            dateLowPath, dateHighPath);
+        Map<String, List<Object>> resultsByPatient = batch.getResults(retrieveKey);
+        if (resultsByPatient == null) {
+            Pair<String, IQueryParameterOr<?>> contextParam = getBatchContextParam(dataType, contextPath, batch.getPatientIds());
+            if (contextParam == null) {
+                return retrieveByCodes(context, contextPath, contextValue, dataType, templateId, codePath, codes, valueSet,
+                    datePath, dateLowPath, dateHighPath, dateRange);
+            }
+
+            // Run the same queries without a patient, restricted to the whole batch by executeQueries
+            Iterable<Object> results;
+            this.batchContextParam.set(contextParam);
+            try {
+                results = retrieveByCodes(null, contextPath, null, dataType, templateId, codePath, codes, valueSet,
+                    datePath, dateLowPath, dateHighPath, null);
+            }
+            finally {
+                this.batchContextParam.remove();
+            }
+
+            resultsByPatient = indexByPatient(dataType, contextPath, results, batch.getPatientIds());
+            batch.putResults(retrieveKey, resultsByPatient);
+        }
+
+        return resultsByPatient.getOrDefault(contextValue, Collections.emptyList());
+    }
+
+    // Queries by the codes of a retrieve as a list, in chunks or in memory, depending on the number of codes
+    private Iterable<Object> retrieveByCodes(String context, String contextPath, Object contextValue, String dataType,
+            String templateId, String codePath, Iterable<Code> codes, String valueSet, String datePath,
+            String dateLowPath, String dateHighPath, Interval dateRange) {
+        List<Code> codeList = codePath == null ? null : getCodes(codes, valueSet);
+        if (codeList == null) {
+            return executeQueries(dataType, setupQueries(context, contextPath, contextValue, dataType, templateId,
+                codePath, codes, valueSet, datePath, dateLowPath, dateHighPath, dateRange));
+        }
+
+        int inMemoryThreshold = HapiProperties.getRetrieveInMemoryCodeThreshold();
+        boolean singlePatient = ("Patient".equals(context) && contextPath != null && contextValue != null)
+            || this.batchContextParam.get() != null;
+        String codingPath = inMemoryThreshold > 0 && codeList.size() > inMemoryThreshold && singlePatient
+            ? getCodingPath(dataType, codePath) : null;
+        if (codingPath != null) {
+            logger.debug("Retrieving {} filtered by {} codes of {} in memory", dataType, codeList.size(), valueSet);
+            Set<String> codeKeys = new HashSet<>();
+            for (Code code : codeList) {
+                codeKeys.add(getCodeKey(code.getSystem(), code.getVersion(), code.getCode()));
+            }
+
+            FhirContext fhirContext = this.registry.getResourceDao(dataType).getContext();
+            FhirTerser terser = fhirContext.newTerser();
+            BaseRuntimeChildDefinition codingVersion =
+                ((BaseRuntimeElementCompositeDefinition<?>) fhirContext.getElementDefinition("Coding")).getChildByName("version");
+            Iterable<Object> results = executeQueries(dataType, setupQueries(context, contextPath, contextValue, dataType,
+                templateId, null, null, null, datePath, dateLowPath, dateHighPath, dateRange));
+            return Iterables.filter(results, result -> hasCode(terser, codingVersion, (IBaseResource) result, codingPath, codeKeys));
+        }
+
+        int maxCodesPerQuery = HapiProperties.getRetrieveMaxCodesPerQuery();
+        if (maxCodesPerQuery < 1 || codeList.size() <= maxCodesPerQuery) {
+            logger.debug("Retrieving {} filtered by a list of {} codes of {}", dataType, codeList.size(), valueSet);
+            return executeQueries(dataType, setupQueries(context, contextPath, contextValue, dataType, templateId,
+                codePath, codeList, null, datePath, dateLowPath, dateHighPath, dateRange));
+        }
+
+        List<List<Code>> chunks = Lists.partition(codeList, maxCodesPerQuery);
+        logger.debug("Retrieving {} filtered by {} codes of {} in {} queries", dataType, codeList.size(), valueSet, chunks.size());
+        List<SearchParameterMap> queries = new ArrayList<>();
+        for (List<Code> chunk : chunks) {
+            queries.addAll(setupQueries(context, contextPath, contextValue, dataType, templateId, codePath, chunk, null,
+                datePath, dateLowPath, dateHighPath, dateRange));
+        }
+
+        return executeQueries(dataType, queries);
+    }
+
+    // The codes a retrieve is filtered by, or null if it is not filtered by codes or the value set is not expanded.
+    // A value set is expanded once per open RetrieveCache.
+    private List<Code> getCodes(Iterable<Code> codes, String valueSet) {
+        if (valueSet != null) {
+            TerminologyProvider terminologyProvider = getTerminologyProvider();
+            if (!isExpandValueSets() || terminologyProvider == null) {
+                return null;
+            }
+
+            RetrieveCache cache = RetrieveCache.getCurrent();
+            if (cache != null) {
+                return cache.getExpansion(valueSet, () -> toList(terminologyProvider.expand(new ValueSetInfo().withId(valueSet))));
+            }
+
+            codes = terminologyProvider.expand(new ValueSetInfo().withId(valueSet));
+        }
+
+        return codes == null ? null : toList(codes);
+    }
+
+    private static List<Code> toList(Iterable<Code> codes) {
+        List<Code> codeList = new ArrayList<>();
+        codes.forEach(codeList::add);
+        return codeList;
+    }
+
+    // The path to the Codings of the code element, or null if its codes cannot be matched in memory
+    private String getCodingPath(String dataType, String codePath) {
+        FhirContext fhirContext = this.registry.getResourceDao(dataType).getContext();
+        BaseRuntimeChildDefinition child = codePath.contains(".") ? null
+            : fhirContext.getResourceDefinition(dataType).getChildByName(codePath);
+        if (child == null || child.getValidChildNames().isEmpty()) {
+            return null;
+        }
+
+        Set<String> types = new HashSet<>();
+        for (String name : child.getValidChildNames()) {
+            BaseRuntimeElementDefinition<?> definition = child.getChildByName(name);
+            types.add(definition == null ? null : definition.getName());
+        }
+
+        if (types.size() != 1) {
+            return null;
+        }
+
+        String type = types.iterator().next();
+        if ("CodeableConcept".equals(type)) {
+            return dataType + "." + codePath + ".coding";
+        }
+
+        return "Coding".equals(type) ? dataType + "." + codePath : null;
+    }
+
+    // A Coding matches a Code without a version whatever its own version, and one with a version only if they are the same
+    private static boolean hasCode(FhirTerser terser, BaseRuntimeChildDefinition codingVersion, IBaseResource resource,
+            String codingPath, Set<String> codeKeys) {
+        for (IBaseCoding coding : terser.getValues(resource, codingPath, IBaseCoding.class)) {
+            if (codeKeys.contains(getCodeKey(coding.getSystem(), null, coding.getCode()))) {
+                return true;
+            }
+
+            List<IBase> versions = codingVersion.getAccessor().getValues(coding);
+            String version = versions.isEmpty() ? null : ((IPrimitiveType<?>) versions.get(0)).getValueAsString();
+            if (version != null && codeKeys.contains(getCodeKey(coding.getSystem(), version, coding.getCode()))) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    private static String getCodeKey(String system, String version, String code) {
+        return (system == null ? "" : system) + "|" + (version == null ? "" : version) + "|" + code;
+    }
+
 	@Override
 	protected Iterable<Object> executeQueries(String dataType, List<SearchParameterMap> queries) {
         if (queries == null || queries.isEmpty()) {
             return Collections.emptyList();
         }
         
-        List<Object> objects = new ArrayList<>();
+        // The batch is added now, since the queries run after the batch context has been cleared
+        Pair<String, IQueryParameterOr<?>> contextParam = this.batchContextParam.get();
+        if (contextParam != null) {
+            for (SearchParameterMap map : queries) {
+                map.add(contextParam.getLeft(), contextParam.getRight());
+            }
+        }
+
+        if (queries.size() == 1) {
+            return executeQuery(dataType, queries.get(0));
+        }
+
+        if (this.queryExecutor != null) {
+            return executeQueriesConcurrently(dataType, queries);
+        }
+
+        // Each query is only run once the results of the previous ones have been iterated. Only the
+        // ids of the resources already returned by an iteration are kept, to skip them if they are
+        // matched again.
+        Iterable<Object> results = Iterables.concat(Iterables.transform(queries, map -> executeQuery(dataType, map)));
+        return () -> {
+            Set<String> returned = new HashSet<>();
+            return Iterators.filter(results.iterator(), result -> returned.add(getVersionlessId(result)));
+        };
+    }
+
+    private static String getVersionlessId(Object result) {
+        return ((IBaseResource) result).getIdElement().toUnqualifiedVersionless().getValue();
+    }
+
+    // Every query is run to completion and held in memory, since the queries run ahead of the
+    // iteration and their results must be merged. This gives up paging for these retrieves, which
+    // are split by codes and so each match only part of the resources of the type.
+    private Iterable<Object> executeQueriesConcurrently(String dataType, List<SearchParameterMap> queries) {
+        IFhirResourceDao<?> dao = this.registry.getResourceDao(dataType);
+        RetrieveCache cache = RetrieveCache.getCurrent();
+
+        List<String> keys = new ArrayList<>(queries.size());
+        List<Iterable<Object>> cachedResults = new ArrayList<>(queries.size());
+        List<Future<List<Object>>> futures = new ArrayList<>(queries.size());
         for (SearchParameterMap map : queries) {
-            objects.addAll(executeQuery(dataType, map));
+            String key = cache == null ? null : dataType + map.toNormalizedQueryString(dao.getContext());
+            Iterable<Object> cached = cache == null ? null : cache.getIfPresent(key);
+            keys.add(key);
+            cachedResults.add(cached);
+            futures.add(cached != null ? null : this.queryExecutor.submit(() -> {
+                List<Object> results = new ArrayList<>();
+                new PagedResourceIterable<>(dao.search(map), this.pageSize).forEach(results::add);
+                return results;
+            }));
         }
 
-        return objects;
+        Map<String, Object> merged = new LinkedHashMap<>();
+        try {
+            for (int i = 0; i < queries.size(); i++) {
+                Iterable<Object> results = cachedResults.get(i);
+                if (results == null) {
+                    results = futures.get(i).get();
+                    if (cache != null) {
+                        cache.put(keys.get(i), results);
+                    }
+                }
+
+                for (Object result : results) {
+                    merged.putIfAbsent(getVersionlessId(result), result);
+                }
+            }
+        }
+        catch (InterruptedException e) {
+            cancel(futures);
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while retrieving " + dataType + " resources.", e);
+        }
+        catch (ExecutionException e) {
+            cancel(futures);
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+
+            throw new RuntimeException("Error retrieving " + dataType + " resources: " + e.getCause().getMessage(), e.getCause());
+        }
+
+        return new ArrayList<>(merged.values());
     }
 
-    protected Collection<Object> executeQuery(String dataType, SearchParameterMap map) {
+    private static void cancel(List<Future<List<Object>>> futures) {
+        for (Future<List<Object>> future : futures) {
+            if (future != null) {
+                future.cancel(true);
+            }
+        }
+    }
+
+    // Results are loaded a page at a time as they are iterated, so operators such as exists and First
+    // stop loading once they have their answer
+    protected Iterable<Object> executeQuery(String dataType, SearchParameterMap map) {
         IFhirResourceDao<?> dao = this.registry.getResourceDao(dataType);
-        IBundleProvider bundleProvider = dao.search(map);
-        if (bundleProvider.size() == null)
-        {
-            return resolveResourceList(bundleProvider.getResources(0, 10000));
+        RetrieveCache cache = RetrieveCache.getCurrent();
+        if (cache == null) {
+            return new PagedResourceIterable<>(dao.search(map), this.pageSize);
+        }
+
+        return cache.get(dataType + map.toNormalizedQueryString(dao.getContext()),
+            () -> new PagedResourceIterable<>(dao.search(map), this.pageSize));
+    }
+
+    // Every retrieve argument except the patient
+    private String getRetrieveKey(String contextPath, String dataType, String templateId, String codePath,
+            Iterable<Code> codes, String valueSet, String datePath, String dateLowPath, String dateHighPath) {
+        StringBuilder key = new StringBuilder();
+        key.append(contextPath).append('|').append(dataType).append('|').append(templateId).append('|')
+            .append(codePath).append('|').append(valueSet).append('|').append(datePath).append('|')
+            .append(dateLowPath).append('|').append(dateHighPath).append('|');
+
+        if (codes != null) {
+            for (Code code : codes) {
+                key.append(code.getSystem()).append('#').append(code.getCode()).append('#').append(code.getVersion()).append(',');
+            }
         }
-        if (bundleProvider.size() == 0) {
-            return new ArrayList<>();
+
+        return key.toString();
+    }
+
+    // An OR-list of the search parameter that would restrict a query to each of the patients
+    private Pair<String, IQueryParameterOr<?>> getBatchContextParam(String dataType, String contextPath, Set<String> patientIds) {
+        String name = null;
+        ReferenceOrListParam references = new ReferenceOrListParam();
+        TokenOrListParam tokens = new TokenOrListParam();
+        for (String patientId : patientIds) {
+            Pair<String, IQueryParameterType> param = this.searchParameterResolver.createSearchParameter("Patient", dataType, contextPath, patientId);
+            if (param == null) {
+                return null;
+            }
+
+            name = param.getLeft();
+            if (param.getRight() instanceof ReferenceParam) {
+                references.addOr((ReferenceParam) param.getRight());
+            }
+            else if (param.getRight() instanceof TokenParam) {
+                tokens.addOr((TokenParam) param.getRight());
+            }
+            else {
+                return null;
+            }
         }
-        List<IBaseResource> resourceList = bundleProvider.getResources(0, bundleProvider.size());
-        return resolveResourceList(resourceList);
+
+        if (name == null) {
+            return null;
+        }
+
+        return Pair.of(name, references.getValuesAsQueryTokens().isEmpty() ? tokens : references);
     }
 
-    public synchronized Collection<Object> resolveResourceList(List<IBaseResource> resourceList) {
-        List<Object> ret = new ArrayList<>();
-        for (IBaseResource res : resourceList) {
-            Class<?> clazz = res.getClass();
-            ret.add(clazz.cast(res));
+    private Map<String, List<Object>> indexByPatient(String dataType, String contextPath, Iterable<Object> results, Set<String> patientIds) {
+        Map<String, List<Object>> resultsByPatient = new HashMap<>();
+        FhirTerser terser = this.registry.getResourceDao(dataType).getContext().newTerser();
+        String path = dataType + "." + (contextPath.endsWith(".reference") ? contextPath.substring(0, contextPath.length() - ".reference".length()) : contextPath);
+
+        for (Object result : results) {
+            IBaseResource resource = (IBaseResource) result;
+            Set<String> resourcePatients = new HashSet<>();
+            if (contextPath.equals("id")) {
+                resourcePatients.add(resource.getIdElement().getIdPart());
+            }
+            else {
+                for (IBaseReference reference : terser.getValues(resource, path, IBaseReference.class)) {
+                    resourcePatients.add(reference.getReferenceElement().getIdPart());
+                }
+            }
+
+            for (String patientId : resourcePatients) {
+                if (patientIds.contains(patientId)) {
+                    resultsByPatient.computeIfAbsent(patientId, x -> new ArrayList<>()).add(resource);
+                }
+            }
         }
-        // ret.addAll(resourceList);
-        return ret;
+
+        return resultsByPatient;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,93 @@
+package org.opencds.cqf.common.retrieve;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import org.hl7.fhir.instance.model.api.IBaseResource;
+
+import ca.uhn.fhir.rest.api.server.IBundleProvider;
+
+/**
+ * Iterates the results of a search one page at a time, so that only the current page of
+ * resources is held in memory. Each call to iterator() starts again from the first page.
+ */
+public class PagedResourceIterable<T> implements Iterable<T> {
+
+    private IBundleProvider bundleProvider;
+    private int pageSize;
+
+    public PagedResourceIterable(IBundleProvider bundleProvider, int pageSize) {
+        if (pageSize < 1) {
+            throw new IllegalArgumentException("The page size must be at least 1.");
+        }
+
+        this.bundleProvider = bundleProvider;
+        this.pageSize = pageSize;
+    }
+
+    // The total number of results, or null if it is not known
+    public Integer size() {
+        return this.bundleProvider.size();
+    }
+
+    @Override
+    public Iterator<T> iterator() {
+        return new PagedResourceIterator();
+    }
+
+    private class PagedResourceIterator implements Iterator<T> {
+        private List<IBaseResource> page = Collections.emptyList();
+        private int pageIndex = 0;
+        private int offset = 0;
+        private boolean exhausted = false;
+
+        @Override
+        public boolean hasNext() {
+            while (this.pageIndex >= this.page.size()) {
+                if (this.exhausted) {
+                    return false;
+                }
+
+                fetchNextPage();
+            }
+
+            return true;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public T next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+
+            return (T) this.page.get(this.pageIndex++);
+        }
+
+        private void fetchNextPage() {
+            // The size may not be known (yet) if the search is still loading
+            Integer size = bundleProvider.size();
+            if (size != null && this.offset >= size) {
+                this.exhausted = true;
+                return;
+            }
+
+            int end = size != null ? Math.min(size, this.offset + pageSize) : this.offset + pageSize;
+            this.page = bundleProvider.getResources(this.offset, end);
+            this.pageIndex = 0;
+
+            if (this.page == null) {
+                this.page = Collections.emptyList();
+            }
+
+            // Without a known size an empty page is the only signal that there are no more results
+            if (size == null && this.page.isEmpty()) {
+                this.exhausted = true;
+            }
+
+            this.offset = end;
+        }
+    }
+}
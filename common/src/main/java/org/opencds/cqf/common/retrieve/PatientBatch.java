@@ -0,0 +1,71 @@
+package org.opencds.cqf.common.retrieve;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A batch of patients whose Patient context retrieves are prefetched together.
+ *
+ * While a batch is open on a thread, the JpaFhirRetrieveProvider answers retrieves made on
+ * that thread for one of the batch's patients and one of the batch's data types with a
+ * single search covering every patient in the batch. The results are indexed by patient
+ * and kept until the batch is closed, so the remaining patients are served from memory.
+ */
+public class PatientBatch implements AutoCloseable {
+
+    private static final ThreadLocal<PatientBatch> current = new ThreadLocal<>();
+
+    private Set<String> patientIds;
+    private Set<String> dataTypes;
+    private Map<String, Map<String, List<Object>>> results = new HashMap<>();
+
+    private PatientBatch(Collection<String> patientIds, Set<String> dataTypes) {
+        this.patientIds = new LinkedHashSet<>(patientIds);
+        this.dataTypes = dataTypes;
+    }
+
+    // Opens a batch on the current thread. The batch must be closed on the same thread.
+    public static PatientBatch open(Collection<String> patientIds, Set<String> dataTypes) {
+        if (current.get() != null) {
+            throw new IllegalStateException("A patient batch is already open on this thread.");
+        }
+
+        PatientBatch batch = new PatientBatch(patientIds, dataTypes);
+        current.set(batch);
+        return batch;
+    }
+
+    // The batch open on the current thread, or null if there is none
+    public static PatientBatch getCurrent() {
+        return current.get();
+    }
+
+    public boolean covers(String dataType, Object contextValue) {
+        return this.dataTypes.contains(dataType) && contextValue instanceof String && this.patientIds.contains(contextValue);
+    }
+
+    public Set<String> getPatientIds() {
+        return this.patientIds;
+    }
+
+    // The prefetched results of a retrieve, by patient id, or null if it has not been prefetched
+    public Map<String, List<Object>> getResults(String retrieveKey) {
+        return this.results.get(retrieveKey);
+    }
+
+    public void putResults(String retrieveKey, Map<String, List<Object>> resultsByPatient) {
+        this.results.put(retrieveKey, resultsByPatient);
+    }
+
+    @Override
+    public void close() {
+        this.results.clear();
+        if (current.get() == this) {
+            current.remove();
+        }
+    }
+}
@@ -0,0 +1,153 @@
+package org.opencds.cqf.common.retrieve;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.function.Supplier;
+
+import org.opencds.cqf.cql.runtime.Code;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The results of the searches made by retrieves during one evaluation, such as of one patient
+ * in a measure report or of one CDS Hooks request, so that a retrieve repeated by several
+ * expressions or libraries costs one search.
+ *
+ * While a cache is open on a thread the JpaFhirRetrieveProvider answers searches made on that
+ * thread from it, keyed by data type and normalized search parameters. Results are still
+ * loaded a page at a time, and each page is kept for later iterations as it is loaded.
+ * The codes of the value sets expanded by those retrieves are kept the same way, keyed by
+ * value set. Opening a cache while one is already open on the thread joins the open one.
+ *
+ * The number of searches answered from the cache and made by it are logged at debug level
+ * when the outermost cache is closed.
+ */
+public class RetrieveCache implements AutoCloseable {
+
+    private static final Logger logger = LoggerFactory.getLogger(RetrieveCache.class);
+
+    private static final ThreadLocal<RetrieveCache> current = new ThreadLocal<>();
+
+    private Map<String, Iterable<Object>> results;
+    private Map<String, List<Code>> expansions;
+
+    // The outermost cache, which counts the hits and misses of the caches that joined it
+    private RetrieveCache outermost;
+    private int hits;
+    private int misses;
+
+    private RetrieveCache(Map<String, Iterable<Object>> results, Map<String, List<Code>> expansions, RetrieveCache outermost) {
+        this.results = results;
+        this.expansions = expansions;
+        this.outermost = outermost == null ? this : outermost;
+    }
+
+    // Opens a cache on the current thread. The cache must be closed on the same thread.
+    public static RetrieveCache open() {
+        RetrieveCache open = current.get();
+        if (open != null) {
+            return new RetrieveCache(open.results, open.expansions, open);
+        }
+
+        RetrieveCache cache = new RetrieveCache(new HashMap<>(), new HashMap<>(), null);
+        current.set(cache);
+        return cache;
+    }
+
+    // The cache open on the current thread, or null if there is none
+    public static RetrieveCache getCurrent() {
+        return current.get();
+    }
+
+    public Iterable<Object> get(String key, Supplier<Iterable<Object>> search) {
+        Iterable<Object> result = getIfPresent(key);
+        if (result == null) {
+            result = put(key, search.get());
+        }
+
+        return result;
+    }
+
+    // Returns null, counting a miss, if the search has not been cached
+    public Iterable<Object> getIfPresent(String key) {
+        Iterable<Object> result = this.results.get(key);
+        if (result != null) {
+            this.outermost.hits++;
+        }
+        else {
+            this.outermost.misses++;
+        }
+
+        return result;
+    }
+
+    public Iterable<Object> put(String key, Iterable<Object> searchResults) {
+        Iterable<Object> result = new CachedIterable(searchResults);
+        this.results.put(key, result);
+        return result;
+    }
+
+    public List<Code> getExpansion(String valueSet, Supplier<List<Code>> expand) {
+        return this.expansions.computeIfAbsent(valueSet, x -> expand.get());
+    }
+
+    @Override
+    public void close() {
+        if (this.outermost == this) {
+            logger.debug("Retrieve cache closed: {} searches answered from the cache, {} searches made", this.hits, this.misses);
+            this.results.clear();
+            this.expansions.clear();
+            if (current.get() == this) {
+                current.remove();
+            }
+        }
+    }
+
+    // Iterates the search once, as far as it is iterated, keeping what it has loaded for the next iterations
+    private static class CachedIterable implements Iterable<Object> {
+        private Iterable<Object> search;
+        private Iterator<Object> searchIterator;
+        private List<Object> loaded = new ArrayList<>();
+
+        CachedIterable(Iterable<Object> search) {
+            this.search = search;
+        }
+
+        private boolean load(int index) {
+            if (this.searchIterator == null) {
+                this.searchIterator = this.search.iterator();
+            }
+
+            while (this.loaded.size() <= index && this.searchIterator.hasNext()) {
+                this.loaded.add(this.searchIterator.next());
+            }
+
+            return index < this.loaded.size();
+        }
+
+        @Override
+        public Iterator<Object> iterator() {
+            return new Iterator<Object>() {
+                private int index = 0;
+
+                @Override
+                public boolean hasNext() {
+                    return load(this.index);
+                }
+
+                @Override
+                public Object next() {
+                    if (!hasNext()) {
+                        throw new NoSuchElementException();
+                    }
+
+                    return loaded.get(this.index++);
+                }
+            };
+        }
+    }
+}
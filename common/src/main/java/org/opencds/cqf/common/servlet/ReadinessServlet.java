@@ -0,0 +1,30 @@
+package org.opencds.cqf.common.servlet;
+
+import java.io.IOException;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.opencds.cqf.common.evaluation.LibraryPrewarmer;
+
+/**
+ * Reports whether the server has finished initializing and prewarming its libraries, with 503
+ * Service Unavailable until it has, so that a load balancer can hold traffic back until then.
+ */
+public class ReadinessServlet extends HttpServlet {
+
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        LibraryPrewarmer prewarmer = LibraryPrewarmer.getInstance();
+        boolean ready = prewarmer.isReady();
+
+        response.setStatus(ready ? HttpServletResponse.SC_OK : HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+        response.setContentType("application/json");
+        response.setCharacterEncoding("UTF-8");
+        response.getWriter().println(String.format("{ \"status\": \"%s\", \"librariesLoaded\": %d, \"librariesFailed\": %d }",
+            ready ? "UP" : prewarmer.isRegistered() ? "WARMING" : "STARTING", prewarmer.getLoadedCount(), prewarmer.getFailedCount()));
+    }
+}
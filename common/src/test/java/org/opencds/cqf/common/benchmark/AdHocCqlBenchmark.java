@@ -0,0 +1,25 @@
+package org.opencds.cqf.common.benchmark;
+
+import org.cqframework.cql.cql2elm.LibraryManager;
+import org.cqframework.cql.cql2elm.ModelManager;
+import org.opencds.cqf.common.evaluation.SharedModelManager;
+import org.opencds.cqf.common.helpers.TranslatorHelper;
+
+/**
+ * Compares translating an ad hoc expression, as $cql and $apply-cql do for every request, with a
+ * new ModelManager per translation, as they did, with the shared SharedModelManager.
+ */
+public class AdHocCqlBenchmark {
+
+    private static final String CQL = "using FHIR version '4.0.0' define x: Today() - 1 year";
+
+    public static void main(String[] args) {
+        Benchmark benchmark = new Benchmark("Ad hoc CQL translation", 5, 50);
+        benchmark.run("new ModelManager", () -> {
+            ModelManager modelManager = new ModelManager();
+            TranslatorHelper.translateLibrary(CQL, new LibraryManager(modelManager), modelManager);
+        });
+        benchmark.run("shared ModelManager", () -> TranslatorHelper.translateLibrary(CQL,
+            new LibraryManager(SharedModelManager.getInstance()), SharedModelManager.getInstance()));
+    }
+}
@@ -0,0 +1,41 @@
+package org.opencds.cqf.common.benchmark;
+
+import java.lang.management.ManagementFactory;
+
+/**
+ * Times an operation and counts the bytes the current thread allocates while running it, for the
+ * manual benchmarks in this package. They are run with their main methods rather than as part of
+ * the unit tests, since their numbers depend on the machine.
+ */
+public class Benchmark {
+
+    private String name;
+    private int warmups;
+    private int iterations;
+
+    public Benchmark(String name, int warmups, int iterations) {
+        this.name = name;
+        this.warmups = warmups;
+        this.iterations = iterations;
+    }
+
+    // Runs the operation warmups times, then measures iterations runs and prints the result
+    public void run(String label, Runnable operation) {
+        for (int i = 0; i < this.warmups; i++) {
+            operation.run();
+        }
+
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+        long allocatedBefore = threads.getThreadAllocatedBytes(threadId);
+        long startNanos = System.nanoTime();
+        for (int i = 0; i < this.iterations; i++) {
+            operation.run();
+        }
+
+        long elapsedNanos = System.nanoTime() - startNanos;
+        long allocated = threads.getThreadAllocatedBytes(threadId) - allocatedBefore;
+        System.out.println(String.format("%s, %s: %.2f ms and %d KB per run (%d runs)", this.name, label,
+            elapsedNanos / 1000000.0 / this.iterations, allocated / 1024 / this.iterations, this.iterations));
+    }
+}
@@ -0,0 +1,35 @@
+package org.opencds.cqf.common.benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+
+import org.cqframework.cql.cql2elm.CqlTranslator;
+import org.cqframework.cql.cql2elm.LibraryManager;
+import org.opencds.cqf.common.evaluation.SharedModelManager;
+import org.opencds.cqf.common.helpers.TranslatorHelper;
+
+/**
+ * Compares converting translated ELM to the execution model with TranslatorHelper.readLibrary,
+ * which streams the marshalled ELM into the engine's unmarshaller, with writing the ELM as XML
+ * and parsing the XML again, as LibraryLoader did.
+ */
+public class ElmConversionBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        org.hl7.elm.r1.Library elm;
+        try (InputStream cql = TranslatorHelper.class.getResourceAsStream("BreastCancerScreening.cql")) {
+            CqlTranslator translator = TranslatorHelper.getTranslator(cql,
+                new LibraryManager(SharedModelManager.getInstance()), SharedModelManager.getInstance());
+            elm = translator.toELM();
+        }
+
+        Benchmark benchmark = new Benchmark("ELM conversion", 20, 200);
+        benchmark.run("XML round-trip", () -> {
+            ByteArrayOutputStream xml = new ByteArrayOutputStream();
+            TranslatorHelper.writeLibrary(elm, xml);
+            TranslatorHelper.readLibrary(new ByteArrayInputStream(xml.toByteArray()));
+        });
+        benchmark.run("streamed", () -> TranslatorHelper.readLibrary(elm));
+    }
+}
@@ -0,0 +1,84 @@
+package org.opencds.cqf.common.evaluation;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+import org.cqframework.cql.elm.execution.Library;
+import org.hl7.elm.r1.VersionedIdentifier;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class CompiledLibraryStoreTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Map<String, String> contentHashes = new HashMap<>();
+    private Function<VersionedIdentifier, String> getContentHash = identifier -> this.contentHashes.get(identifier.getId());
+
+    @Test
+    public void storedLibraryIsReadBack() {
+        CompiledLibraryStore store = new CompiledLibraryStore(this.folder.getRoot().toPath());
+        this.contentHashes.put("Common", "common-1");
+        store.put("Screening", "1.0.0", "screening-1", includes("Common"), this.getContentHash, library("Screening"));
+
+        Library library = store.get("Screening", "1.0.0", "screening-1", this.getContentHash);
+        assertNotNull(library);
+        assertEquals("Screening", library.getIdentifier().getId());
+        assertNull(store.get("Screening", "1.0.0", "screening-2", this.getContentHash));
+    }
+
+    @Test
+    public void changedIncludeDeletesStoredLibrary() {
+        CompiledLibraryStore store = new CompiledLibraryStore(this.folder.getRoot().toPath());
+        this.contentHashes.put("Common", "common-1");
+        store.put("Screening", "1.0.0", "screening-1", includes("Common"), this.getContentHash, library("Screening"));
+
+        this.contentHashes.put("Common", "common-2");
+        assertNull(store.get("Screening", "1.0.0", "screening-1", this.getContentHash));
+        assertEquals(0, this.folder.getRoot().list().length);
+    }
+
+    @Test
+    public void libraryWithAnIncludeWithoutSourceIsNotStored() {
+        CompiledLibraryStore store = new CompiledLibraryStore(this.folder.getRoot().toPath());
+        store.put("Screening", "1.0.0", "screening-1", includes("Common"), this.getContentHash, library("Screening"));
+
+        assertNull(store.get("Screening", "1.0.0", "screening-1", this.getContentHash));
+    }
+
+    @Test
+    public void unreadableFileIsDeleted() throws Exception {
+        CompiledLibraryStore store = new CompiledLibraryStore(this.folder.getRoot().toPath());
+        store.put("Screening", "1.0.0", "screening-1", includes(), this.getContentHash, library("Screening"));
+        File[] files = this.folder.getRoot().listFiles();
+        assertEquals(1, files.length);
+        Files.write(files[0].toPath(), new byte[] { 1, 2, 3 });
+
+        assertNull(store.get("Screening", "1.0.0", "screening-1", this.getContentHash));
+        assertEquals(0, this.folder.getRoot().list().length);
+    }
+
+    private static List<VersionedIdentifier> includes(String... names) {
+        VersionedIdentifier[] identifiers = new VersionedIdentifier[names.length];
+        for (int i = 0; i < names.length; i++) {
+            identifiers[i] = new VersionedIdentifier().withId(names[i]).withVersion("1.0.0");
+        }
+
+        return Arrays.asList(identifiers);
+    }
+
+    private static org.hl7.elm.r1.Library library(String name) {
+        return new org.hl7.elm.r1.Library().withIdentifier(new VersionedIdentifier().withId(name).withVersion("1.0.0"));
+    }
+}
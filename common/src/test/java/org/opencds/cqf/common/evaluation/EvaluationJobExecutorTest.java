@@ -0,0 +1,79 @@
+package org.opencds.cqf.common.evaluation;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class EvaluationJobExecutorTest {
+
+    @Test
+    public void jobsBeyondTheQueueAreRejected() throws Exception {
+        EvaluationJobExecutor executor = new EvaluationJobExecutor(1, 1);
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        executor.submit("running", () -> {
+            started.countDown();
+            await(release);
+        });
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+        executor.submit("queued", () -> { });
+
+        try {
+            executor.submit("rejected", () -> { });
+            throw new AssertionError("The job was not rejected");
+        }
+        catch (RejectedExecutionException e) {
+            // The rejected job is not tracked
+            assertFalse(executor.cancel("rejected"));
+        }
+        finally {
+            release.countDown();
+        }
+    }
+
+    @Test
+    public void cancelInterruptsARunningJob() throws Exception {
+        EvaluationJobExecutor executor = new EvaluationJobExecutor(1, 1);
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch interrupted = new CountDownLatch(1);
+        executor.submit("job", () -> {
+            started.countDown();
+            try {
+                Thread.sleep(TimeUnit.SECONDS.toMillis(30));
+            }
+            catch (InterruptedException e) {
+                interrupted.countDown();
+            }
+        });
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+
+        assertTrue(executor.cancel("job"));
+        assertTrue(interrupted.await(10, TimeUnit.SECONDS));
+        assertFalse(executor.cancel("job"));
+    }
+
+    @Test
+    public void finishedJobsCannotBeCancelled() throws Exception {
+        EvaluationJobExecutor executor = new EvaluationJobExecutor(1, 1);
+        CountDownLatch finished = new CountDownLatch(1);
+        executor.submit("job", finished::countDown);
+        assertTrue(finished.await(10, TimeUnit.SECONDS));
+
+        assertFalse(executor.cancel("job"));
+        assertFalse(executor.cancel("unknown"));
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
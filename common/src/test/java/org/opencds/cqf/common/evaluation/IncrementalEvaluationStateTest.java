@@ -0,0 +1,102 @@
+package org.opencds.cqf.common.evaluation;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class IncrementalEvaluationStateTest {
+
+    @Test
+    public void totalsFollowChangedMemberships() {
+        IncrementalEvaluationState state = new IncrementalEvaluationState();
+        state.setMembership("1", groups(counts("initial-population", 1, "numerator", 1)));
+        state.setMembership("2", groups(counts("initial-population", 1)));
+        assertEquals(2, (int) state.getTotals(0).get("initial-population"));
+        assertEquals(1, (int) state.getTotals(0).get("numerator"));
+
+        state.setMembership("1", groups(counts("initial-population", 1)));
+        state.removePatient("2");
+        assertEquals(1, (int) state.getTotals(0).get("initial-population"));
+        assertEquals(0, (int) state.getTotals(0).getOrDefault("numerator", 0));
+        assertEquals(Arrays.asList("1"), state.getPatientIds(0, "initial-population"));
+    }
+
+    @Test
+    public void patientsInNoPopulationAreNotStored() {
+        IncrementalEvaluationState state = new IncrementalEvaluationState();
+        state.setMembership("1", groups(counts()));
+        state.removePatient("2");
+
+        assertTrue(state.getChangedMemberships().isEmpty());
+        assertTrue(state.getTotals(0).isEmpty());
+    }
+
+    // A loaded state subtracts the stored membership of a patient it re-evaluates, and lists stored and changed patients
+    @Test
+    public void loadedStateCombinesStoredAndChangedMemberships() {
+        IncrementalEvaluationState stored = new IncrementalEvaluationState();
+        stored.setLastEvaluated(new Date(1000));
+        stored.setMembership("1", groups(counts("initial-population", 1, "numerator", 1)));
+        stored.setMembership("2", groups(counts("initial-population", 1)));
+
+        Map<String, List<Map<String, Integer>>> memberships = new LinkedHashMap<>();
+        for (Map.Entry<String, List<Map<String, Integer>>> membership : stored.getChangedMemberships().entrySet()) {
+            Map.Entry<String, List<Map<String, Integer>>> read = IncrementalEvaluationState.membershipFromJson(
+                IncrementalEvaluationState.membershipToJson(membership.getKey(), membership.getValue()));
+            memberships.put(read.getKey(), read.getValue());
+        }
+
+        IncrementalEvaluationState state = IncrementalEvaluationState.fromJson(stored.toJson(), "2",
+            new IncrementalEvaluationState.MembershipReader() {
+                @Override
+                public List<Map<String, Integer>> read(String patientId) {
+                    return memberships.get(patientId);
+                }
+
+                @Override
+                public Map<String, List<Map<String, Integer>>> readAll() {
+                    return memberships;
+                }
+            });
+
+        assertEquals("2", state.getVersion());
+        assertEquals(1000, state.getLastEvaluated().getTime());
+        assertTrue(state.getChangedMemberships().isEmpty());
+        assertEquals(2, (int) state.getTotals(0).get("initial-population"));
+
+        state.removePatient("1");
+        state.setMembership("3", groups(counts("initial-population", 1, "numerator", 1)));
+        assertEquals(2, (int) state.getTotals(0).get("initial-population"));
+        assertEquals(1, (int) state.getTotals(0).get("numerator"));
+        assertEquals(Arrays.asList("2", "3"), state.getPatientIds(0, "initial-population"));
+        assertEquals(Arrays.asList("3"), state.getPatientIds(0, "numerator"));
+
+        assertTrue(state.getChangedMemberships().containsKey("1"));
+        assertNull(state.getChangedMemberships().get("1"));
+        assertFalse(state.getChangedMemberships().containsKey("2"));
+    }
+
+    private static List<Map<String, Integer>> groups(Map<String, Integer> counts) {
+        return Collections.singletonList(counts);
+    }
+
+    private static Map<String, Integer> counts(Object... codesAndCounts) {
+        Map<String, Integer> counts = new HashMap<>();
+        for (int i = 0; i < codesAndCounts.length; i += 2) {
+            counts.put((String) codesAndCounts[i], (Integer) codesAndCounts[i + 1]);
+        }
+
+        return counts;
+    }
+}
@@ -0,0 +1,52 @@
+package org.opencds.cqf.common.evaluation;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.InputStream;
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.cqframework.cql.cql2elm.LibraryManager;
+import org.cqframework.cql.elm.execution.Library;
+import org.junit.Test;
+import org.opencds.cqf.common.helpers.TranslatorHelper;
+import org.opencds.cqf.cql.data.DataProvider;
+
+public class MeasureEvaluationContextTest {
+
+    // A Population context define does not depend on the patient, so it is evaluated once however
+    // many patients reference it
+    @Test
+    public void populationDefineIsEvaluatedOnceAcrossPatients() throws Exception {
+        Library library;
+        try (InputStream cql = getClass().getResourceAsStream("PopulationCache.cql")) {
+            library = TranslatorHelper.translateLibrary(cql, new LibraryManager(SharedModelManager.getInstance()),
+                SharedModelManager.getInstance());
+        }
+
+        AtomicInteger retrieves = new AtomicInteger();
+        DataProvider dataProvider = (DataProvider) Proxy.newProxyInstance(getClass().getClassLoader(),
+            new Class<?>[] { DataProvider.class }, (proxy, method, args) -> {
+                switch (method.getName()) {
+                    case "retrieve":
+                        retrieves.incrementAndGet();
+                        return Arrays.asList(new Object(), new Object());
+                    case "getPackageName":
+                        return "org.hl7.fhir.r4.model";
+                    default:
+                        return null;
+                }
+            });
+
+        MeasureEvaluationContext context = new MeasureEvaluationContext(library);
+        context.registerDataProvider("http://hl7.org/fhir", dataProvider);
+
+        for (String patientId : Arrays.asList("1", "2")) {
+            context.setContextValue("Patient", patientId);
+            assertEquals(Boolean.TRUE, context.resolveExpressionRef("In Populated Server").evaluate(context));
+        }
+
+        assertEquals(1, retrieves.get());
+    }
+}
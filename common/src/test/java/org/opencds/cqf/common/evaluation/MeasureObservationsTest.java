@@ -0,0 +1,53 @@
+package org.opencds.cqf.common.evaluation;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.math.BigDecimal;
+import java.util.Arrays;
+
+import org.junit.Test;
+import org.opencds.cqf.cql.runtime.Quantity;
+
+public class MeasureObservationsTest {
+
+    @Test
+    public void observationsAreAggregated() {
+        MeasureObservations observations = new MeasureObservations();
+        observations.add(Arrays.asList(4, 1));
+        observations.add(new Quantity().withValue(new BigDecimal("3")).withUnit("min"));
+        observations.add(null);
+        observations.add(new BigDecimal("2"));
+
+        assertEquals(4, observations.getCount());
+        assertEquals("min", observations.getUnit());
+        assertEquals(0, new BigDecimal("10").compareTo(observations.aggregate("sum")));
+        assertEquals(0, new BigDecimal("2.5").compareTo(observations.aggregate(null)));
+        assertEquals(0, new BigDecimal("2.5").compareTo(observations.aggregate("median")));
+        assertEquals(0, BigDecimal.ONE.compareTo(observations.aggregate("minimum")));
+        assertEquals(0, new BigDecimal("4").compareTo(observations.aggregate("maximum")));
+        assertEquals(0, new BigDecimal("4").compareTo(observations.aggregate("count")));
+    }
+
+    @Test
+    public void mergedObservationsMatchASingleState() {
+        MeasureObservations first = new MeasureObservations();
+        first.add(1);
+        MeasureObservations second = new MeasureObservations();
+        second.add(Arrays.asList(2, 6));
+        first.merge(second);
+
+        assertEquals(3, first.getCount());
+        assertEquals(0, new BigDecimal("2").compareTo(first.aggregate("median")));
+    }
+
+    @Test
+    public void noObservationsHaveNoScore() {
+        assertNull(new MeasureObservations().aggregate("average"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void nonNumericObservationIsRejected() {
+        new MeasureObservations().add("text");
+    }
+}
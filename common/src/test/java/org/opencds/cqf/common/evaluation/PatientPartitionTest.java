@@ -0,0 +1,77 @@
+package org.opencds.cqf.common.evaluation;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Function;
+
+import org.junit.Test;
+
+public class PatientPartitionTest {
+
+    // Every patient is in exactly one partition, and each partition keeps the order of its patients
+    @Test
+    public void partitionsAreDisjointAndComplete() {
+        List<String> patientIds = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            patientIds.add("patient-" + i);
+        }
+
+        Set<String> partitioned = new HashSet<>();
+        int partitionedCount = 0;
+        for (int i = 0; i < 3; i++) {
+            List<String> partition = new ArrayList<>();
+            new PatientPartition(i, 3).filter(patientIds, Function.identity()).forEach(partition::add);
+
+            List<String> expected = new ArrayList<>(patientIds);
+            expected.retainAll(partition);
+            assertEquals(expected, partition);
+
+            partitioned.addAll(partition);
+            partitionedCount += partition.size();
+        }
+
+        assertEquals(patientIds.size(), partitionedCount);
+        assertEquals(new HashSet<>(patientIds), partitioned);
+    }
+
+    @Test
+    public void singlePartitionContainsEveryPatient() {
+        PatientPartition partition = new PatientPartition(0, 1);
+        assertTrue(partition.contains("a"));
+        assertTrue(partition.contains("b"));
+    }
+
+    @Test
+    public void partitionIsReadFromItsString() {
+        PatientPartition partition = PatientPartition.fromString(" 2 / 8 ");
+        assertEquals(2, partition.getPartition());
+        assertEquals(8, partition.getPartitionCount());
+        assertEquals("2/8", partition.toString());
+        assertEquals("2/8", PatientPartition.fromString(partition.toString()).toString());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void partitionMustBeBelowTheCount() {
+        new PatientPartition(3, 3);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void partitionCountMustBePositive() {
+        new PatientPartition(0, 0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void malformedPartitionIsRejected() {
+        PatientPartition.fromString("1-3");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void nonNumericPartitionIsRejected() {
+        PatientPartition.fromString("a/3");
+    }
+}
@@ -0,0 +1,49 @@
+package org.opencds.cqf.common.evaluation;
+
+import static org.junit.Assert.assertSame;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.cqframework.cql.cql2elm.model.Model;
+import org.hl7.elm.r1.VersionedIdentifier;
+import org.junit.Test;
+
+public class SharedModelManagerTest {
+
+    @Test
+    public void concurrentResolutionsShareOneModel() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        CountDownLatch start = new CountDownLatch(1);
+        try {
+            List<Future<Model>> futures = new ArrayList<>();
+            for (int i = 0; i < 32; i++) {
+                int entryPoint = i % 3;
+                Callable<Model> task = () -> {
+                    start.await();
+                    SharedModelManager modelManager = SharedModelManager.getInstance();
+                    switch (entryPoint) {
+                        case 0: return modelManager.resolveModel("FHIR", "4.0.0");
+                        case 1: return modelManager.resolveModel(new VersionedIdentifier().withId("FHIR").withVersion("4.0.0"));
+                        default: return modelManager.resolveModelByUri(modelManager.resolveModel("FHIR", "4.0.0").getModelInfo().getUrl());
+                    }
+                };
+                futures.add(executor.submit(task));
+            }
+
+            start.countDown();
+            Model model = futures.get(0).get();
+            for (Future<Model> future : futures) {
+                assertSame(model, future.get());
+            }
+        }
+        finally {
+            executor.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package org.opencds.cqf.common.helpers;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Supplier;
+
+import org.cqframework.cql.cql2elm.CqlTranslator;
+import org.cqframework.cql.cql2elm.LibraryManager;
+import org.cqframework.cql.elm.execution.ExpressionDef;
+import org.cqframework.cql.elm.execution.Library;
+import org.junit.Test;
+import org.opencds.cqf.common.evaluation.SharedModelManager;
+
+public class TranslatorHelperTest {
+
+    // Converting translated ELM to the execution model must give the same library as writing it as XML
+    // and reading the XML back, as LibraryLoader did. ElmConversionBenchmark compares their costs.
+    @Test
+    public void directConversionMatchesXmlRoundTrip() throws Exception {
+        org.hl7.elm.r1.Library elm = translate("BreastCancerScreening.cql");
+
+        Supplier<Library> direct = () -> TranslatorHelper.readLibrary(elm);
+        Supplier<Library> roundTrip = () -> {
+            ByteArrayOutputStream xml = new ByteArrayOutputStream();
+            TranslatorHelper.writeLibrary(elm, xml);
+            return TranslatorHelper.readLibrary(new ByteArrayInputStream(xml.toByteArray()));
+        };
+
+        assertEquals(getDefineNames(roundTrip.get()), getDefineNames(direct.get()));
+    }
+
+    private org.hl7.elm.r1.Library translate(String resource) throws Exception {
+        try (InputStream cql = getClass().getResourceAsStream(resource)) {
+            CqlTranslator translator = TranslatorHelper.getTranslator(cql,
+                new LibraryManager(SharedModelManager.getInstance()), SharedModelManager.getInstance());
+            assertTrue(TranslatorHelper.errorsToString(translator.getErrors()), translator.getErrors().isEmpty());
+            return translator.toELM();
+        }
+    }
+
+    private static List<String> getDefineNames(Library library) {
+        List<String> names = new ArrayList<>();
+        for (ExpressionDef def : library.getStatements().getDef()) {
+            names.add(def.getName());
+        }
+
+        return names;
+    }
+}
@@ -0,0 +1,298 @@
+package org.opencds.cqf.common.retrieve;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.Proxy;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import org.hl7.fhir.dstu3.model.Condition;
+import org.hl7.fhir.dstu3.model.Reference;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.junit.Test;
+import org.opencds.cqf.cql.runtime.Code;
+import org.opencds.cqf.cql.searchparam.SearchParameterResolver;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.jpa.dao.DaoRegistry;
+import ca.uhn.fhir.jpa.dao.IFhirResourceDao;
+import ca.uhn.fhir.jpa.searchparam.SearchParameterMap;
+import ca.uhn.fhir.rest.server.SimpleBundleProvider;
+
+public class JpaFhirRetrieveProviderTest {
+
+    private static final int THREADS = 16;
+    private static final int RETRIEVES_PER_THREAD = 5;
+    private static final int CONDITIONS = 25;
+
+    private static final FhirContext fhirContext = FhirContext.forDstu3();
+
+    // Many requests sharing one provider, as the CdsHooksServlet does, must neither wait on each
+    // other while their results are read nor see each other's results
+    @Test
+    public void concurrentRetrievesShareOneProvider() throws Exception {
+        int maxReading = runConcurrentRetrieves(registry -> new JpaFhirRetrieveProvider(registry, new SearchParameterResolver(fhirContext)));
+        assertTrue("Reading retrieve results was serialized", maxReading > 1);
+    }
+
+    // The same retrieves through a provider that converts results under one lock, as the provider
+    // did before the lock was removed, never read results concurrently
+    @Test
+    public void lockedConversionIsDetected() throws Exception {
+        int maxReading = runConcurrentRetrieves(LockingRetrieveProvider::new);
+        assertEquals(1, maxReading);
+    }
+
+    // A retrieve by more codes than retrieve.max_codes_per_query is split into several queries, which
+    // here all match every Condition, whether they are run one after another or concurrently
+    @Test
+    public void resourcesMatchedBySeveralQueriesAreReturnedOnce() throws Exception {
+        List<IBaseResource> conditions = new ArrayList<>();
+        for (int i = 0; i < CONDITIONS; i++) {
+            conditions.add(new Condition().setId("Condition/" + i));
+        }
+
+        AtomicInteger searches = new AtomicInteger();
+        IFhirResourceDao<?> dao = (IFhirResourceDao<?>) Proxy.newProxyInstance(JpaFhirRetrieveProviderTest.class.getClassLoader(),
+            new Class<?>[] { IFhirResourceDao.class }, (proxy, method, args) -> {
+                switch (method.getName()) {
+                    case "getContext":
+                        return fhirContext;
+                    case "search":
+                        searches.incrementAndGet();
+                        return new SimpleBundleProvider(conditions);
+                    default:
+                        throw new UnsupportedOperationException(method.getName());
+                }
+            });
+
+        DaoRegistry registry = new DaoRegistry() {
+            @Override
+            public IFhirResourceDao<?> getResourceDao(String resourceType) {
+                return dao;
+            }
+        };
+
+        List<Code> codes = Arrays.asList(new Code().withSystem("http://snomed.info/sct").withCode("1"),
+            new Code().withSystem("http://snomed.info/sct").withCode("2"),
+            new Code().withSystem("http://snomed.info/sct").withCode("3"));
+
+        JpaFhirRetrieveProvider sequential = new JpaFhirRetrieveProvider(registry, new SearchParameterResolver(fhirContext));
+        Iterable<Object> results = sequential.retrieve(null, null, null, "Condition", null, "code", codes, null, null, null, null, null);
+        assertConditions(results);
+        assertConditions(results);
+        assertEquals(4, searches.get());
+
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            JpaFhirRetrieveProvider concurrent = new JpaFhirRetrieveProvider(registry, new SearchParameterResolver(fhirContext), executor);
+            assertConditions(concurrent.retrieve(null, null, null, "Condition", null, "code", codes, null, null, null, null, null));
+        }
+        finally {
+            executor.shutdownNow();
+        }
+    }
+
+    // The retrieves of every patient in a PatientBatch are answered from one search for the whole batch
+    @Test
+    public void batchRetrievesAreSearchedOnce() {
+        List<IBaseResource> conditions = new ArrayList<>();
+        for (String patientId : Arrays.asList("1", "1", "2", "9")) {
+            conditions.add(new Condition().setSubject(new Reference("Patient/" + patientId)).setId("Condition/" + conditions.size()));
+        }
+
+        AtomicInteger searches = new AtomicInteger();
+        IFhirResourceDao<?> dao = (IFhirResourceDao<?>) Proxy.newProxyInstance(JpaFhirRetrieveProviderTest.class.getClassLoader(),
+            new Class<?>[] { IFhirResourceDao.class }, (proxy, method, args) -> {
+                switch (method.getName()) {
+                    case "getContext":
+                        return fhirContext;
+                    case "search":
+                        searches.incrementAndGet();
+                        return new SimpleBundleProvider(conditions);
+                    default:
+                        throw new UnsupportedOperationException(method.getName());
+                }
+            });
+
+        DaoRegistry registry = new DaoRegistry() {
+            @Override
+            public IFhirResourceDao<?> getResourceDao(String resourceType) {
+                return dao;
+            }
+        };
+
+        JpaFhirRetrieveProvider provider = new JpaFhirRetrieveProvider(registry, new SearchParameterResolver(fhirContext));
+        try (PatientBatch batch = PatientBatch.open(Arrays.asList("1", "2", "3"), Collections.singleton("Condition"))) {
+            assertEquals(Arrays.asList("Condition/0", "Condition/1"), getIds(provider.retrieve("Patient", "subject", "1", "Condition",
+                null, null, null, null, null, null, null, null)));
+            assertEquals(Arrays.asList("Condition/2"), getIds(provider.retrieve("Patient", "subject", "2", "Condition",
+                null, null, null, null, null, null, null, null)));
+            assertEquals(Collections.emptyList(), getIds(provider.retrieve("Patient", "subject", "3", "Condition",
+                null, null, null, null, null, null, null, null)));
+        }
+
+        assertEquals(1, searches.get());
+        assertNull(PatientBatch.getCurrent());
+    }
+
+    // Returns the largest number of threads that were reading search results at the same time
+    private static int runConcurrentRetrieves(Function<DaoRegistry, JpaFhirRetrieveProvider> providerFactory) throws Exception {
+        List<IBaseResource> conditions = new ArrayList<>();
+        for (int i = 0; i < CONDITIONS; i++) {
+            conditions.add(new Condition().setId("Condition/" + i));
+        }
+
+        AtomicInteger reading = new AtomicInteger();
+        AtomicInteger maxReading = new AtomicInteger();
+        IFhirResourceDao<?> dao = (IFhirResourceDao<?>) Proxy.newProxyInstance(JpaFhirRetrieveProviderTest.class.getClassLoader(),
+            new Class<?>[] { IFhirResourceDao.class }, (proxy, method, args) -> {
+                switch (method.getName()) {
+                    case "getContext":
+                        return fhirContext;
+                    case "search":
+                        return new SimpleBundleProvider(conditions) {
+                            @Override
+                            public List<IBaseResource> getResources(int fromIndex, int toIndex) {
+                                return new ReadTrackingList(super.getResources(fromIndex, toIndex), reading, maxReading);
+                            }
+                        };
+                    default:
+                        throw new UnsupportedOperationException(method.getName());
+                }
+            });
+
+        DaoRegistry registry = new DaoRegistry() {
+            @Override
+            public IFhirResourceDao<?> getResourceDao(String resourceType) {
+                return dao;
+            }
+        };
+
+        JpaFhirRetrieveProvider provider = providerFactory.apply(registry);
+
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        CountDownLatch start = new CountDownLatch(1);
+        try {
+            List<Future<Void>> futures = new ArrayList<>();
+            for (int i = 0; i < THREADS; i++) {
+                boolean cached = i % 2 == 0;
+                Callable<Void> task = () -> {
+                    start.await();
+                    for (int j = 0; j < RETRIEVES_PER_THREAD; j++) {
+                        if (cached) {
+                            try (RetrieveCache cache = RetrieveCache.open()) {
+                                assertConditions(retrieve(provider));
+                                assertConditions(retrieve(provider));
+                            }
+                        }
+                        else {
+                            assertConditions(retrieve(provider));
+                        }
+                    }
+
+                    return null;
+                };
+                futures.add(executor.submit(task));
+            }
+
+            start.countDown();
+            for (Future<Void> future : futures) {
+                future.get();
+            }
+        }
+        finally {
+            executor.shutdownNow();
+        }
+
+        return maxReading.get();
+    }
+
+    private static Iterable<Object> retrieve(JpaFhirRetrieveProvider provider) {
+        return provider.retrieve(null, null, null, "Condition", null, null, null, null, null, null, null, null);
+    }
+
+    private static List<String> getIds(Iterable<Object> results) {
+        List<String> ids = new ArrayList<>();
+        for (Object result : results) {
+            ids.add(((IBaseResource) result).getIdElement().getValue());
+        }
+
+        return ids;
+    }
+
+    private static void assertConditions(Iterable<Object> results) {
+        int count = 0;
+        for (Object result : results) {
+            assertEquals("Condition/" + count, ((IBaseResource) result).getIdElement().getValue());
+            count++;
+        }
+
+        assertEquals(CONDITIONS, count);
+    }
+
+    // A page of search results that counts the threads reading its resources at the same time
+    private static class ReadTrackingList extends AbstractList<IBaseResource> {
+        private List<IBaseResource> resources;
+        private AtomicInteger reading;
+        private AtomicInteger maxReading;
+
+        ReadTrackingList(List<IBaseResource> resources, AtomicInteger reading, AtomicInteger maxReading) {
+            this.resources = resources;
+            this.reading = reading;
+            this.maxReading = maxReading;
+        }
+
+        @Override
+        public IBaseResource get(int index) {
+            this.maxReading.accumulateAndGet(this.reading.incrementAndGet(), Math::max);
+            try {
+                Thread.sleep(1);
+                return this.resources.get(index);
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            }
+            finally {
+                this.reading.decrementAndGet();
+            }
+        }
+
+        @Override
+        public int size() {
+            return this.resources.size();
+        }
+    }
+
+    // Searches outside the lock and reads the results under it, like the synchronized resolveResourceList
+    // of the provider before the lock was removed
+    private static class LockingRetrieveProvider extends JpaFhirRetrieveProvider {
+        LockingRetrieveProvider(DaoRegistry registry) {
+            super(registry, new SearchParameterResolver(fhirContext));
+        }
+
+        @Override
+        protected Iterable<Object> executeQuery(String dataType, SearchParameterMap map) {
+            return resolveResourceList(super.executeQuery(dataType, map));
+        }
+
+        private synchronized List<Object> resolveResourceList(Iterable<Object> results) {
+            List<Object> resolved = new ArrayList<>();
+            results.forEach(resolved::add);
+            return resolved;
+        }
+    }
+}
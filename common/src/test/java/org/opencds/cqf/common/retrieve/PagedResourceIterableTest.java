@@ -0,0 +1,73 @@
+package org.opencds.cqf.common.retrieve;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.Patient;
+import org.junit.Test;
+
+import ca.uhn.fhir.rest.server.SimpleBundleProvider;
+
+public class PagedResourceIterableTest {
+
+    @Test
+    public void resultsAreFetchedOnePageAtATime() {
+        List<String> pages = new ArrayList<>();
+        PagedResourceIterable<Patient> patients = new PagedResourceIterable<>(new SimpleBundleProvider(createPatients(5)) {
+            @Override
+            public List<IBaseResource> getResources(int fromIndex, int toIndex) {
+                pages.add(fromIndex + "-" + toIndex);
+                return super.getResources(fromIndex, toIndex);
+            }
+        }, 2);
+
+        assertEquals(5, getIds(patients).size());
+        assertEquals("[0-2, 2-4, 4-5]", pages.toString());
+
+        // Every iteration starts again from the first page
+        assertEquals(getIds(patients), getIds(patients));
+    }
+
+    @Test
+    public void resultsOfUnknownSizeEndAtAnEmptyPage() {
+        PagedResourceIterable<Patient> patients = new PagedResourceIterable<>(new SimpleBundleProvider(createPatients(5)) {
+            @Override
+            public Integer size() {
+                return null;
+            }
+
+            @Override
+            public List<IBaseResource> getResources(int fromIndex, int toIndex) {
+                return super.getResources(Math.min(fromIndex, 5), Math.min(toIndex, 5));
+            }
+        }, 2);
+
+        assertEquals("[0, 1, 2, 3, 4]", getIds(patients).toString());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void pageSizeMustBePositive() {
+        new PagedResourceIterable<Patient>(new SimpleBundleProvider(createPatients(1)), 0);
+    }
+
+    private static List<IBaseResource> createPatients(int count) {
+        List<IBaseResource> patients = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            patients.add(new Patient().setId("Patient/" + i));
+        }
+
+        return patients;
+    }
+
+    private static List<String> getIds(Iterable<Patient> patients) {
+        List<String> ids = new ArrayList<>();
+        for (Patient patient : patients) {
+            ids.add(patient.getIdElement().getIdPart());
+        }
+
+        return ids;
+    }
+}
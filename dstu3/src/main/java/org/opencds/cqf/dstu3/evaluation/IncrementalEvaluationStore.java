@@ -0,0 +1,144 @@
+package org.opencds.cqf.dstu3.evaluation;
+
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.locks.Lock;
+
+import com.google.common.util.concurrent.Striped;
+
+import org.hl7.fhir.dstu3.model.Binary;
+import org.hl7.fhir.dstu3.model.Bundle;
+import org.hl7.fhir.dstu3.model.IdType;
+import org.hl7.fhir.dstu3.model.Measure;
+import org.opencds.cqf.common.config.HapiProperties;
+import org.opencds.cqf.common.evaluation.IncrementalEvaluationState;
+import org.opencds.cqf.common.retrieve.PagedResourceIterable;
+
+import ca.uhn.fhir.jpa.dao.DaoRegistry;
+import ca.uhn.fhir.jpa.dao.IFhirResourceDao;
+import ca.uhn.fhir.jpa.searchparam.SearchParameterMap;
+import ca.uhn.fhir.rest.param.TokenParam;
+import ca.uhn.fhir.rest.server.exceptions.ResourceGoneException;
+import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
+
+/**
+ * Persists the IncrementalEvaluationState of a measure version, library content, period and
+ * product line as Binary resources in the server's own database: one for the state and its
+ * population totals, and one for the membership of each patient, tagged with the state id.
+ * The Binary ids are derived from those values, so each combination has exactly one stored
+ * state.
+ */
+public class IncrementalEvaluationStore {
+
+    public static final String STATE_TAG_SYSTEM = "http://cqframework.org/fhir/measure-evaluation-state";
+
+    // Incremental evaluations of the same state are run one at a time
+    private static final Striped<Lock> stateLocks = Striped.lazyWeakLock(64);
+
+    private DaoRegistry registry;
+    private IFhirResourceDao<Binary> binaryDao;
+
+    public IncrementalEvaluationStore(DaoRegistry registry) {
+        this.registry = registry;
+        this.binaryDao = registry.getResourceDao(Binary.class);
+    }
+
+    // The content key identifies the source of the measure's libraries and their includes,
+    // so a state is never reused after the logic that computed it has changed
+    public String getStateId(Measure measure, String periodStart, String periodEnd, String productLine, String contentKey) {
+        String key = String.join("|", measure.getIdElement().getIdPart(), measure.getMeta().getVersionId(),
+            contentKey, periodStart, periodEnd, productLine != null ? productLine : "");
+        return "measure-evaluation-" + UUID.nameUUIDFromBytes(key.getBytes(StandardCharsets.UTF_8));
+    }
+
+    public Lock getLock(String stateId) {
+        return stateLocks.get(stateId);
+    }
+
+    // Returns null if the measure has not been evaluated incrementally for the period yet
+    public IncrementalEvaluationState load(String stateId) {
+        Binary binary = read(stateId);
+        if (binary == null) {
+            return null;
+        }
+
+        return IncrementalEvaluationState.fromJson(new String(binary.getContent(), StandardCharsets.UTF_8),
+            binary.getMeta().getVersionId(), new IncrementalEvaluationState.MembershipReader() {
+                @Override
+                public List<Map<String, Integer>> read(String patientId) {
+                    Binary membership = IncrementalEvaluationStore.this.read(getMembershipId(stateId, patientId));
+                    return membership == null ? null
+                        : IncrementalEvaluationState.membershipFromJson(new String(membership.getContent(), StandardCharsets.UTF_8)).getValue();
+                }
+
+                @Override
+                public Map<String, List<Map<String, Integer>>> readAll() {
+                    return readMemberships(stateId);
+                }
+            });
+    }
+
+    // Writes the changed memberships and the state in one transaction, which fails if the state
+    // was saved by another evaluation since it was loaded
+    public void save(String stateId, IncrementalEvaluationState state) {
+        Bundle transaction = new Bundle().setType(Bundle.BundleType.TRANSACTION);
+        for (Map.Entry<String, List<Map<String, Integer>>> membership : state.getChangedMemberships().entrySet()) {
+            String membershipId = getMembershipId(stateId, membership.getKey());
+            if (membership.getValue() == null) {
+                // A conditional delete does nothing if the membership was never stored
+                transaction.addEntry().getRequest().setMethod(Bundle.HTTPVerb.DELETE).setUrl("Binary?_id=" + membershipId);
+                continue;
+            }
+
+            Binary binary = new Binary();
+            binary.setId(membershipId);
+            binary.getMeta().addTag(STATE_TAG_SYSTEM, stateId, null);
+            binary.setContentType("application/json");
+            binary.setContent(IncrementalEvaluationState.membershipToJson(membership.getKey(), membership.getValue())
+                .getBytes(StandardCharsets.UTF_8));
+            transaction.addEntry().setResource(binary).getRequest().setMethod(Bundle.HTTPVerb.PUT).setUrl("Binary/" + membershipId);
+        }
+
+        Binary binary = new Binary();
+        binary.setId(stateId);
+        binary.setContentType("application/json");
+        binary.setContent(state.toJson().getBytes(StandardCharsets.UTF_8));
+        Bundle.BundleEntryRequestComponent request = transaction.addEntry().setResource(binary).getRequest()
+            .setMethod(Bundle.HTTPVerb.PUT).setUrl("Binary/" + stateId);
+        if (state.getVersion() != null) {
+            request.setIfMatch("W/\"" + state.getVersion() + "\"");
+        }
+
+        this.registry.getSystemDao().transaction(null, transaction);
+    }
+
+    private Map<String, List<Map<String, Integer>>> readMemberships(String stateId) {
+        SearchParameterMap map = new SearchParameterMap();
+        map.add("_tag", new TokenParam(STATE_TAG_SYSTEM, stateId));
+
+        Map<String, List<Map<String, Integer>>> memberships = new LinkedHashMap<>();
+        for (Binary binary : new PagedResourceIterable<Binary>(this.binaryDao.search(map), HapiProperties.getMeasureEvaluationPageSize())) {
+            Map.Entry<String, List<Map<String, Integer>>> membership =
+                IncrementalEvaluationState.membershipFromJson(new String(binary.getContent(), StandardCharsets.UTF_8));
+            memberships.put(membership.getKey(), membership.getValue());
+        }
+
+        return memberships;
+    }
+
+    private Binary read(String id) {
+        try {
+            return this.binaryDao.read(new IdType("Binary", id));
+        }
+        catch (ResourceNotFoundException | ResourceGoneException e) {
+            return null;
+        }
+    }
+
+    private String getMembershipId(String stateId, String patientId) {
+        return "measure-evaluation-" + UUID.nameUUIDFromBytes((stateId + "|" + patientId).getBytes(StandardCharsets.UTF_8));
+    }
+}
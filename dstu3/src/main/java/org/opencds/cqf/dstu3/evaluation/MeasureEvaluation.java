@@ -1,14 +1,34 @@
 package org.opencds.cqf.dstu3.evaluation;
 
 import ca.uhn.fhir.jpa.dao.DaoRegistry;
+import ca.uhn.fhir.jpa.dao.IFhirResourceDao;
 import ca.uhn.fhir.jpa.searchparam.SearchParameterMap;
+import ca.uhn.fhir.model.api.ResourceMetadataKeyEnum;
 import ca.uhn.fhir.rest.api.server.IBundleProvider;
 import ca.uhn.fhir.rest.param.ReferenceParam;
+import ca.uhn.fhir.rest.server.exceptions.ResourceGoneException;
+import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
+import org.cqframework.cql.elm.execution.ExpressionDef;
+import org.cqframework.cql.elm.execution.FunctionDef;
+import org.hl7.fhir.instance.model.api.IAnyResource;
+import org.hl7.fhir.instance.model.api.IBaseResource;
 import org.hl7.fhir.dstu3.model.*;
 import org.hl7.fhir.dstu3.model.Patient;
-import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.opencds.cqf.common.config.HapiProperties;
+import org.opencds.cqf.common.evaluation.EvaluatedResourcesMode;
+import org.opencds.cqf.common.evaluation.EvaluationProgressListener;
+import org.opencds.cqf.common.evaluation.IncrementalEvaluationState;
+import org.opencds.cqf.common.evaluation.MeasureObservations;
 import org.opencds.cqf.common.evaluation.MeasurePopulationType;
 import org.opencds.cqf.common.evaluation.MeasureScoring;
+import org.opencds.cqf.common.evaluation.NdjsonResourceWriter;
+import org.opencds.cqf.common.evaluation.ParallelPatientEvaluator;
+import org.opencds.cqf.common.evaluation.PatientPartition;
+import org.opencds.cqf.common.evaluation.PopulationState;
+import org.opencds.cqf.common.helpers.PatientCompartmentHelper;
+import org.opencds.cqf.common.retrieve.PagedResourceIterable;
+import org.opencds.cqf.common.retrieve.PatientBatch;
+import org.opencds.cqf.common.retrieve.RetrieveCache;
 import org.opencds.cqf.cql.data.DataProvider;
 import org.opencds.cqf.cql.execution.Context;
 import org.opencds.cqf.cql.runtime.Interval;
@@ -17,8 +37,14 @@ import org.opencds.cqf.dstu3.helpers.FhirMeasureBundler;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.lang.reflect.Field;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.*;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutorService;
+import java.util.function.Supplier;
 
 public class MeasureEvaluation {
 
@@ -27,6 +53,17 @@ public class MeasureEvaluation {
     private DataProvider provider;
     private Interval measurementPeriod;
     private DaoRegistry registry;
+    private int threadCount = 1;
+    private int batchSize = 100;
+    private Supplier<Context> contextFactory;
+    private ExecutorService executor;
+    private int pageSize = HapiProperties.getMeasureEvaluationPageSize();
+    private Set<String> prefetchDataTypes = Collections.emptySet();
+    private int prefetchSize = 0;
+    private EvaluationProgressListener progressListener;
+    private EvaluatedResourcesMode evaluatedResourcesMode = EvaluatedResourcesMode.NONE;
+    private int maxEvaluatedResources = Integer.MAX_VALUE;
+    private PatientPartition partition;
 
     public MeasureEvaluation(DataProvider provider, DaoRegistry registry, Interval measurementPeriod) {
         this.provider = provider;
@@ -34,6 +71,41 @@ public class MeasureEvaluation {
         this.measurementPeriod = measurementPeriod;
     }
 
+    // Evaluates population and patient-list reports on threadCount threads of the executor, each
+    // batch using its own Context from the contextFactory. A threadCount of 1 or no executor
+    // evaluates on the calling thread.
+    public void setParallelism(ExecutorService executor, int threadCount, int batchSize, Supplier<Context> contextFactory) {
+        this.executor = executor;
+        this.threadCount = threadCount;
+        this.batchSize = batchSize;
+        this.contextFactory = contextFactory;
+    }
+
+    // Retrieves the data of prefetchSize patients at a time, with one search per data type, rather
+    // than searching for each patient separately. A prefetchSize of 0 disables prefetching.
+    public void setPrefetch(Set<String> dataTypes, int prefetchSize) {
+        this.prefetchDataTypes = dataTypes;
+        this.prefetchSize = prefetchSize;
+    }
+
+    public void setProgressListener(EvaluationProgressListener progressListener) {
+        this.progressListener = progressListener;
+    }
+
+    // How the resources used to calculate the report are included in it. In FULL mode at most
+    // maxEvaluatedResources resources are contained, the rest are referenced by id. A maximum
+    // below 1 means no limit.
+    public void setEvaluatedResources(EvaluatedResourcesMode evaluatedResourcesMode, int maxEvaluatedResources) {
+        this.evaluatedResourcesMode = evaluatedResourcesMode;
+        this.maxEvaluatedResources = maxEvaluatedResources > 0 ? maxEvaluatedResources : Integer.MAX_VALUE;
+    }
+
+    // Evaluates only the patients of the partition for population and patient-list reports. The
+    // report is marked with the partition so that the partial reports can be merged.
+    public void setPartition(PatientPartition partition) {
+        this.partition = partition;
+    }
+
     public MeasureReport evaluatePatientMeasure(Measure measure, Context context, String patientId) {
         logger.info("Generating individual report");
 
@@ -57,28 +129,30 @@ public class MeasureEvaluation {
     public MeasureReport evaluatePatientListMeasure(Measure measure, Context context, String practitionerRef) {
         logger.info("Generating patient-list report");
 
-        List<Patient> patients = practitionerRef == null ? getAllPatients() : getPractitionerPatients(practitionerRef);
+        Iterable<Patient> patients = practitionerRef == null ? getAllPatients() : getPractitionerPatients(practitionerRef);
         return evaluate(measure, context, patients, MeasureReport.MeasureReportType.PATIENTLIST);
     }
 
-    private List<Patient> getPractitionerPatients(String practitionerRef) {
+    private Iterable<Patient> getPractitionerPatients(String practitionerRef) {
         SearchParameterMap map = new SearchParameterMap();
         map.add("general-practitioner", new ReferenceParam(
                 practitionerRef.startsWith("Practitioner/") ? practitionerRef : "Practitioner/" + practitionerRef));
 
-        List<Patient> patients = new ArrayList<>();
         IBundleProvider patientProvider = registry.getResourceDao("Patient").search(map);
-        List<IBaseResource> patientList = patientProvider.getResources(0, patientProvider.size());
-        patientList.forEach(x -> patients.add((Patient) x));
-        return patients;
+        return partition(new PagedResourceIterable<>(patientProvider, this.pageSize));
     }
 
-    private List<Patient> getAllPatients() {
-        List<Patient> patients = new ArrayList<>();
+    private Iterable<Patient> getAllPatients() {
         IBundleProvider patientProvider = registry.getResourceDao("Patient").search(new SearchParameterMap());
-        List<IBaseResource> patientList = patientProvider.getResources(0, patientProvider.size());
-        patientList.forEach(x -> patients.add((Patient) x));
-        return patients;
+        return partition(new PagedResourceIterable<>(patientProvider, this.pageSize));
+    }
+
+    private Iterable<Patient> partition(Iterable<Patient> patients) {
+        if (this.partition == null) {
+            return patients;
+        }
+
+        return this.partition.filter(patients, patient -> patient.getIdElement().getIdPart());
     }
 
     public MeasureReport evaluatePopulationMeasure(Measure measure, Context context) {
@@ -87,6 +161,140 @@ public class MeasureEvaluation {
         return evaluate(measure, context, getAllPatients(), MeasureReport.MeasureReportType.SUMMARY);
     }
 
+    // Evaluates only the patients with data updated since the given time, or every patient if it
+    // is null, records the populations they are in and builds the report from the recorded
+    // population membership of all patients. Evaluated resources are not included in the report.
+    public MeasureReport evaluateIncrementalMeasure(Measure measure, Context context, IncrementalEvaluationState incrementalState,
+            Set<String> dataTypes, Date since, MeasureReport.MeasureReportType type) {
+        logger.info("Generating incremental report");
+
+        MeasureScoring measureScoring = getMeasureScoring(measure);
+
+        Iterable<Patient> patients = since == null ? getAllPatients() : getUpdatedPatients(incrementalState, dataTypes, since);
+        EvaluationState state = createEvaluationState(measure, patients, type);
+        state.memberships = new HashMap<>();
+        evaluatePopulation(context, measureScoring, patients, state);
+
+        for (Map.Entry<String, List<Map<String, Integer>>> membership : state.memberships.entrySet()) {
+            incrementalState.setMembership(membership.getKey(), membership.getValue());
+        }
+
+        MeasureReportBuilder reportBuilder = new MeasureReportBuilder();
+        reportBuilder.buildStatus("complete");
+        reportBuilder.buildType(type);
+        reportBuilder.buildMeasureReference(measure.getIdElement().getValue());
+        reportBuilder.buildPeriod(measurementPeriod);
+
+        MeasureReport report = reportBuilder.build();
+
+        for (int i = 0; i < state.groups.size(); i++) {
+            GroupState group = state.groups.get(i);
+            MeasureReport.MeasureReportGroupComponent reportGroup = new MeasureReport.MeasureReportGroupComponent();
+            reportGroup.setIdentifier(group.group.getIdentifier());
+            report.getGroup().add(reportGroup);
+
+            Map<String, Integer> totals = incrementalState.getTotals(i);
+            if ((measureScoring == MeasureScoring.PROPORTION || measureScoring == MeasureScoring.RATIO)
+                    && group.denominatorCriteria != null && group.numeratorCriteria != null) {
+                int numerator = totals.getOrDefault(group.numeratorCriteria.getCode().getCodingFirstRep().getCode(), 0);
+                int denominator = totals.getOrDefault(group.denominatorCriteria.getCode().getCodingFirstRep().getCode(), 0);
+                if (denominator > 0) {
+                    reportGroup.setMeasureScore(numerator / (double) denominator);
+                }
+            }
+
+            addIncrementalPopulationReport(report, reportGroup, group.initialPopulationCriteria, incrementalState, i, totals);
+            addIncrementalPopulationReport(report, reportGroup, group.numeratorCriteria, incrementalState, i, totals);
+            addIncrementalPopulationReport(report, reportGroup, group.numeratorExclusionCriteria, incrementalState, i, totals);
+            addIncrementalPopulationReport(report, reportGroup, group.denominatorCriteria, incrementalState, i, totals);
+            addIncrementalPopulationReport(report, reportGroup, group.denominatorExclusionCriteria, incrementalState, i, totals);
+            addIncrementalPopulationReport(report, reportGroup, group.denominatorExceptionCriteria, incrementalState, i, totals);
+            addIncrementalPopulationReport(report, reportGroup, group.measurePopulationCriteria, incrementalState, i, totals);
+            addIncrementalPopulationReport(report, reportGroup, group.measurePopulationExclusionCriteria, incrementalState, i, totals);
+        }
+
+        return report;
+    }
+
+    // The patients with a resource of one of the data types created, updated or deleted since the given
+    // time, read from the history of each type, since a search does not return deleted resources.
+    // Patients that no longer exist are removed from the incremental state. Resources expunged since
+    // the given time leave no history, so their patients are only re-evaluated by a full evaluation.
+    private List<Patient> getUpdatedPatients(IncrementalEvaluationState incrementalState, Set<String> dataTypes, Date since) {
+        Set<String> types = new LinkedHashSet<>(dataTypes);
+        types.add("Patient");
+
+        Set<String> patientIds = new LinkedHashSet<>();
+        for (String dataType : types) {
+            IFhirResourceDao<?> dao = this.registry.getResourceDao(dataType);
+            for (IBaseResource resource : new PagedResourceIterable<IBaseResource>(dao.history(since, null, null), this.pageSize)) {
+                // A deleted resource has no content, so its patients are read from the version before it was deleted
+                if (ResourceMetadataKeyEnum.DELETED_AT.get((IAnyResource) resource) != null) {
+                    resource = readPreviousVersion(dao, resource);
+                    if (resource == null) {
+                        continue;
+                    }
+                }
+
+                patientIds.addAll(PatientCompartmentHelper.getPatientIds(dao.getContext(), resource));
+            }
+        }
+
+        List<Patient> patients = new ArrayList<>();
+        IFhirResourceDao<?> patientDao = this.registry.getResourceDao("Patient");
+        for (String patientId : patientIds) {
+            try {
+                patients.add((Patient) patientDao.read(new IdType("Patient", patientId)));
+            }
+            catch (ResourceNotFoundException | ResourceGoneException e) {
+                incrementalState.removePatient(patientId);
+            }
+        }
+
+        logger.info("Found {} patients with data updated since {}", patients.size(), since);
+        return patients;
+    }
+
+    // Returns null if the resource has no earlier version
+    private IBaseResource readPreviousVersion(IFhirResourceDao<?> dao, IBaseResource resource) {
+        Long version = resource.getIdElement().getVersionIdPartAsLong();
+        if (version == null || version < 2) {
+            return null;
+        }
+
+        try {
+            return dao.read(resource.getIdElement().withVersion(Long.toString(version - 1)));
+        }
+        catch (ResourceNotFoundException | ResourceGoneException e) {
+            return null;
+        }
+    }
+
+    private void addIncrementalPopulationReport(MeasureReport report, MeasureReport.MeasureReportGroupComponent reportGroup,
+            Measure.MeasureGroupPopulationComponent populationCriteria, IncrementalEvaluationState incrementalState,
+            int groupIndex, Map<String, Integer> totals) {
+        if (populationCriteria == null) {
+            return;
+        }
+
+        String populationCode = populationCriteria.getCode().getCodingFirstRep().getCode();
+        MeasureReport.MeasureReportGroupPopulationComponent populationReport = new MeasureReport.MeasureReportGroupPopulationComponent();
+            populationReport.setIdentifier(populationCriteria.getIdentifier());
+        populationReport.setCode(populationCriteria.getCode());
+        if (report.getType() == MeasureReport.MeasureReportType.PATIENTLIST) {
+            ListResource subjectList = new ListResource();
+            subjectList.setId(UUID.randomUUID().toString());
+            populationReport.setPatients(new Reference().setReference("#" + subjectList.getId()));
+            for (String patientId : incrementalState.getPatientIds(groupIndex, populationCode)) {
+                subjectList.addEntry(new ListResource.ListEntryComponent()
+                    .setItem(new Reference().setReference(String.format("Patient/%s", patientId))));
+            }
+            report.addContained(subjectList);
+        }
+        populationReport.setCount(totals.getOrDefault(populationCode, 0));
+        reportGroup.addPopulation(populationReport);
+    }
+
     private Iterable<Resource> evaluateCriteria(Context context, Patient patient,
             Measure.MeasureGroupPopulationComponent pop) {
         if (!pop.hasCriteria()) {
@@ -94,18 +302,6 @@ public class MeasureEvaluation {
         }
 
         context.setContextValue("Patient", patient.getIdElement().getIdPart());
-        // Hack to clear expression cache
-        // See cqf-ruler github issue #153
-        try {
-            Field privateField = Context.class.getDeclaredField("expressions");
-            privateField.setAccessible(true);
-            LinkedHashMap<String, Object> expressions = (LinkedHashMap<String, Object>)privateField.get(context);
-            expressions.clear();
-            
-        } catch (Exception e) {
-            // TODO Auto-generated catch block
-            e.printStackTrace();
-        }
  
         Object result = context.resolveExpressionRef(pop.getCriteria()).evaluate(context);
         if (result == null) {
@@ -125,14 +321,14 @@ public class MeasureEvaluation {
     }
 
     private boolean evaluatePopulationCriteria(Context context, Patient patient,
-                                               Measure.MeasureGroupPopulationComponent criteria, HashMap<String, Resource> population, HashMap<String, Patient> populationPatients,
-                                               Measure.MeasureGroupPopulationComponent exclusionCriteria, HashMap<String, Resource> exclusionPopulation, HashMap<String, Patient> exclusionPatients
+                                               Measure.MeasureGroupPopulationComponent criteria, PopulationState<Resource, Patient> population,
+                                               Measure.MeasureGroupPopulationComponent exclusionCriteria, PopulationState<Resource, Patient> exclusionPopulation
     ) {
         boolean inPopulation = false;
         if (criteria != null) {
             for (Resource resource : evaluateCriteria(context, patient, criteria)) {
                 inPopulation = true;
-                population.put(resource.getIdElement().getIdPart(), resource);
+                population.addResource(resource);
             }
         }
 
@@ -141,27 +337,49 @@ public class MeasureEvaluation {
             if (exclusionCriteria != null) {
                 for (Resource resource : evaluateCriteria(context, patient, exclusionCriteria)) {
                     inPopulation = false;
-                    exclusionPopulation.put(resource.getIdElement().getIdPart(), resource);
-                    population.remove(resource.getIdElement().getIdPart());
+                    exclusionPopulation.addResource(resource);
+                    population.removeResource(resource.getIdElement().getIdPart());
                 }
             }
         }
 
-        if (inPopulation && populationPatients != null) {
-            populationPatients.put(patient.getIdElement().getIdPart(), patient);
+        if (inPopulation) {
+            population.addPatient(patient);
         }
-        if (!inPopulation && exclusionPatients != null) {
-            exclusionPatients.put(patient.getIdElement().getIdPart(), patient);
+        if (!inPopulation && exclusionPopulation != null) {
+            exclusionPopulation.addPatient(patient);
         }
 
         return inPopulation;
     }
 
-    private void addPopulationCriteriaReport(MeasureReport report, MeasureReport.MeasureReportGroupComponent reportGroup, Measure.MeasureGroupPopulationComponent populationCriteria, int populationCount, Iterable<Patient> patientPopulation) {
+    // Observations are defines evaluated for the patient. Observation functions, which take each resource
+    // of the measure population as an argument, are not supported.
+    private void evaluateObservations(Context context, Patient patient, Measure.MeasureGroupPopulationComponent criteria,
+                                      MeasureObservations observations) {
+        String expression = criteria.getCriteria();
+        context.setContextValue("Patient", patient.getIdElement().getIdPart());
+
+        ExpressionDef expressionDef = context.resolveExpressionRef(expression);
+        if (expressionDef instanceof FunctionDef) {
+            throw new IllegalArgumentException(String.format(
+                "Measure observation %s is a function; only observations defined as expressions are supported.", expression));
+        }
+
+        observations.add(expressionDef.evaluate(context));
+    }
+
+    private static String getAggregateMethod(Measure.MeasureGroupPopulationComponent criteria) {
+        Extension extension = criteria.getExtensionByUrl(MeasureObservations.AGGREGATE_METHOD_EXTENSION_URL);
+        return extension != null && extension.hasValue() ? extension.getValue().primitiveValue() : null;
+    }
+
+    private void addPopulationCriteriaReport(MeasureReport report, MeasureReport.MeasureReportGroupComponent reportGroup, Measure.MeasureGroupPopulationComponent populationCriteria, PopulationState<Resource, Patient> population) {
         if (populationCriteria != null) {
             MeasureReport.MeasureReportGroupPopulationComponent populationReport = new MeasureReport.MeasureReportGroupPopulationComponent();
             populationReport.setIdentifier(populationCriteria.getIdentifier());
             populationReport.setCode(populationCriteria.getCode());
+            Iterable<Patient> patientPopulation = population.getPatients();
             if (report.getType() == MeasureReport.MeasureReportType.PATIENTLIST && patientPopulation != null) {
                 ListResource subjectList = new ListResource();
 				subjectList.setId(UUID.randomUUID().toString());
@@ -177,68 +395,444 @@ public class MeasureEvaluation {
                 }
                 report.addContained(subjectList);
             }            
-			populationReport.setCount(populationCount);
+			populationReport.setCount(population.getCount());
             reportGroup.addPopulation(populationReport);
         }
     }
 
-    private MeasureReport evaluate(Measure measure, Context context, List<Patient> patients, MeasureReport.MeasureReportType type)
+    private MeasureReport evaluate(Measure measure, Context context, Iterable<Patient> patients, MeasureReport.MeasureReportType type)
     {
+        MeasureReport report = createReport(measure, patients, type);
+        MeasureScoring measureScoring = getMeasureScoring(measure);
+
+        EvaluationState state = createEvaluationState(measure, patients, type);
+        openEvaluatedResourceWriter(state);
+        try {
+            evaluatePopulation(context, measureScoring, patients, state);
+        }
+        finally {
+            closeEvaluatedResourceWriter(state);
+        }
+
+        completeReport(report, measureScoring, state);
+        return report;
+    }
+
+    // Evaluates several measures for every patient, iterating the patients only once. Each batch of
+    // patients is evaluated for every measure while the batch is open, so that a retrieve made by
+    // more than one of the measures is searched for once and shared between them.
+    public static List<MeasureReport> evaluateMeasures(List<MeasureEvaluation> evaluations, List<Measure> measures,
+            List<Context> contexts, Set<String> dataTypes, int batchSize, MeasureReport.MeasureReportType type) {
+        logger.info("Generating reports for {} measures", evaluations.size());
+
+        Iterable<Patient> patients = evaluations.get(0).getAllPatients();
+        List<MeasureReport> reports = new ArrayList<>();
+        List<MeasureScoring> measureScorings = new ArrayList<>();
+        List<EvaluationState> states = new ArrayList<>();
+        for (int i = 0; i < evaluations.size(); i++) {
+            reports.add(evaluations.get(i).createReport(measures.get(i), patients, type));
+            measureScorings.add(getMeasureScoring(measures.get(i)));
+            states.add(evaluations.get(i).createEvaluationState(measures.get(i), patients, type));
+        }
+
+        try {
+            for (int i = 0; i < evaluations.size(); i++) {
+                evaluations.get(i).openEvaluatedResourceWriter(states.get(i));
+            }
+
+            Iterator<Patient> iterator = patients.iterator();
+            while (iterator.hasNext()) {
+                List<Patient> batch = new ArrayList<>(batchSize);
+                while (iterator.hasNext() && batch.size() < batchSize) {
+                    batch.add(iterator.next());
+                }
+
+                List<String> patientIds = new ArrayList<>(batch.size());
+                for (Patient patient : batch) {
+                    patientIds.add(patient.getIdElement().getIdPart());
+                }
+
+                try (PatientBatch patientBatch = PatientBatch.open(patientIds, dataTypes)) {
+                    for (Patient patient : batch) {
+                        // The measures share the retrieves made for the patient
+                        try (RetrieveCache retrieveCache = RetrieveCache.open()) {
+                            for (int i = 0; i < evaluations.size(); i++) {
+                                evaluations.get(i).evaluatePatient(contexts.get(i), measureScorings.get(i), patient, states.get(i));
+                            }
+                        }
+                    }
+                }
+            }
+        }
+        finally {
+            for (EvaluationState state : states) {
+                closeEvaluatedResourceWriter(state);
+            }
+        }
+
+        for (int i = 0; i < evaluations.size(); i++) {
+            evaluations.get(i).completeReport(reports.get(i), measureScorings.get(i), states.get(i));
+        }
+
+        return reports;
+    }
+
+    private MeasureReport createReport(Measure measure, Iterable<Patient> patients, MeasureReport.MeasureReportType type) {
         MeasureReportBuilder reportBuilder = new MeasureReportBuilder();
         reportBuilder.buildStatus("complete");
         reportBuilder.buildType(type);
         reportBuilder.buildMeasureReference(measure.getIdElement().getValue());
-        if (type == MeasureReport.MeasureReportType.INDIVIDUAL && !patients.isEmpty()) {
-            reportBuilder.buildPatientReference(patients.get(0).getIdElement().getValue());
+        if (type == MeasureReport.MeasureReportType.INDIVIDUAL && patients.iterator().hasNext()) {
+            reportBuilder.buildPatientReference(patients.iterator().next().getIdElement().getValue());
         }
         reportBuilder.buildPeriod(measurementPeriod);
 
-        MeasureReport report = reportBuilder.build();
-
-        HashMap<String,Resource> resources = new HashMap<>();
-        HashMap<String,HashSet<String>> codeToResourceMap = new HashMap<>();
+        return reportBuilder.build();
+    }
 
+    private static MeasureScoring getMeasureScoring(Measure measure) {
         MeasureScoring measureScoring = MeasureScoring.fromCode(measure.getScoring().getCodingFirstRep().getCode());
         if (measureScoring == null) {
             throw new RuntimeException("Measure scoring is required in order to calculate.");
         }
 
-        for (Measure.MeasureGroupComponent group : measure.getGroup()) {
+        return measureScoring;
+    }
+
+    // Adds the population results and evaluated resources of an evaluation to its report
+    private void completeReport(MeasureReport report, MeasureScoring measureScoring, EvaluationState state) {
+        if (this.partition != null) {
+            report.addExtension(PatientPartition.EXTENSION_URL, new StringType(this.partition.toString()));
+        }
+
+        if (state.evaluatedResourceWriter != null) {
+            report.addExtension(NdjsonResourceWriter.EXTENSION_URL, new UriType(state.evaluatedResourceWriter.getPath().toUri().toString()));
+        }
+
+        for (GroupState group : state.groups) {
             MeasureReport.MeasureReportGroupComponent reportGroup = new MeasureReport.MeasureReportGroupComponent();
-            reportGroup.setIdentifier(group.getIdentifier());
+            reportGroup.setIdentifier(group.group.getIdentifier());
             report.getGroup().add(reportGroup);
 
-            // Declare variables to avoid a hash lookup on every patient
-            // TODO: Isn't quite right, there may be multiple initial populations for a ratio measure...
-            Measure.MeasureGroupPopulationComponent initialPopulationCriteria = null;
-            Measure.MeasureGroupPopulationComponent numeratorCriteria = null;
-            Measure.MeasureGroupPopulationComponent numeratorExclusionCriteria = null;
-            Measure.MeasureGroupPopulationComponent denominatorCriteria = null;
-            Measure.MeasureGroupPopulationComponent denominatorExclusionCriteria = null;
-            Measure.MeasureGroupPopulationComponent denominatorExceptionCriteria = null;
-            Measure.MeasureGroupPopulationComponent measurePopulationCriteria = null;
-            Measure.MeasureGroupPopulationComponent measurePopulationExclusionCriteria = null;
-            // TODO: Isn't quite right, there may be multiple measure observations...
-            Measure.MeasureGroupPopulationComponent measureObservationCriteria = null;
-
-            HashMap<String, Resource> initialPopulation = null;
-            HashMap<String, Resource> numerator = null;
-            HashMap<String, Resource> numeratorExclusion = null;
-            HashMap<String, Resource> denominator = null;
-            HashMap<String, Resource> denominatorExclusion = null;
-            HashMap<String, Resource> denominatorException = null;
-            HashMap<String, Resource> measurePopulation = null;
-            HashMap<String, Resource> measurePopulationExclusion = null;
-            HashMap<String, Resource> measureObservation = null;
-
-            HashMap<String, Patient> initialPopulationPatients = null;
-            HashMap<String, Patient> numeratorPatients = null;
-            HashMap<String, Patient> numeratorExclusionPatients = null;
-            HashMap<String, Patient> denominatorPatients = null;
-            HashMap<String, Patient> denominatorExclusionPatients = null;
-            HashMap<String, Patient> denominatorExceptionPatients = null;
-            HashMap<String, Patient> measurePopulationPatients = null;
-            HashMap<String, Patient> measurePopulationExclusionPatients = null;
+            // Calculate actual measure score, Count(numerator) / Count(denominator)
+            if ((measureScoring == MeasureScoring.PROPORTION || measureScoring == MeasureScoring.RATIO)
+                    && group.denominator != null && group.numerator != null && group.denominator.getCount() > 0) {
+                reportGroup.setMeasureScore(group.numerator.getCount() / (double)group.denominator.getCount());
+            }
+
+            // Add population reports for each group
+            addPopulationCriteriaReport(report, reportGroup, group.initialPopulationCriteria, group.initialPopulation);
+            addPopulationCriteriaReport(report, reportGroup, group.numeratorCriteria, group.numerator);
+            addPopulationCriteriaReport(report, reportGroup, group.numeratorExclusionCriteria, group.numeratorExclusion);
+            addPopulationCriteriaReport(report, reportGroup, group.denominatorCriteria, group.denominator);
+            addPopulationCriteriaReport(report, reportGroup, group.denominatorExclusionCriteria, group.denominatorExclusion);
+            addPopulationCriteriaReport(report, reportGroup, group.denominatorExceptionCriteria, group.denominatorException);
+            addPopulationCriteriaReport(report, reportGroup, group.measurePopulationCriteria, group.measurePopulation);
+            addPopulationCriteriaReport(report, reportGroup, group.measurePopulationExclusionCriteria, group.measurePopulationExclusion);
+
+            // Aggregate the measure observations into the score of a continuous variable measure
+            if (measureScoring == MeasureScoring.CONTINUOUSVARIABLE && group.measureObservationCriteria != null) {
+                BigDecimal score = group.measureObservations.aggregate(getAggregateMethod(group.measureObservationCriteria));
+                if (score != null) {
+                    reportGroup.setMeasureScore(score);
+                }
+
+                MeasureReport.MeasureReportGroupPopulationComponent observationReport = new MeasureReport.MeasureReportGroupPopulationComponent();
+                observationReport.setCode(group.measureObservationCriteria.getCode());
+                observationReport.setCount(group.measureObservations.getCount());
+                reportGroup.addPopulation(observationReport);
+            }
+        }
+
+        if (state.evaluatedResourcesMode != EvaluatedResourcesMode.NONE) {
+            if (state.evaluatedResourcesTruncated) {
+                logger.warn("Only the first {} evaluated resources are contained in the report, the rest are referenced by id", this.maxEvaluatedResources);
+            }
+
+            // Resources that are not contained in the report are referenced by id
+            List<Resource> evaluatedResources = new ArrayList<>(state.resources.values());
+            for (String key : state.codeToResourceMap.keySet()) {
+                org.hl7.fhir.dstu3.model.ListResource list = new org.hl7.fhir.dstu3.model.ListResource();
+                for (String element : state.codeToResourceMap.get(key)) {
+                    org.hl7.fhir.dstu3.model.ListResource.ListEntryComponent comp = new org.hl7.fhir.dstu3.model.ListResource.ListEntryComponent();
+                    comp.setItem(new Reference(state.resources.containsKey(element) ? '#' + element : element));
+                    list.addEntry(comp);
+                }
+
+                if (!list.isEmpty()) {
+                    list.setId(UUID.randomUUID().toString());
+                    list.setTitle(key);
+                    evaluatedResources.add(list);
+                }
+            }
+
+            if (!evaluatedResources.isEmpty()) {
+                FhirMeasureBundler bundler = new FhirMeasureBundler();
+                org.hl7.fhir.dstu3.model.Bundle bundle = bundler.bundle(evaluatedResources);
+                bundle.setId(UUID.randomUUID().toString());
+                report.setEvaluatedResources(new Reference('#' + bundle.getId()));
+                report.addContained(bundle);
+            }
+        }
+    }
+
+    private void openEvaluatedResourceWriter(EvaluationState state) {
+        if (state.evaluatedResourcesMode != EvaluatedResourcesMode.NDJSON) {
+            return;
+        }
+
+        Path path = Paths.get(HapiProperties.getMeasureEvaluationEvaluatedResourcesDirectory(), UUID.randomUUID().toString() + ".ndjson");
+        try {
+            state.evaluatedResourceWriter = new NdjsonResourceWriter(this.registry.getResourceDao("Patient").getContext(), path);
+        }
+        catch (IOException e) {
+            throw new RuntimeException("Error writing evaluated resources to " + path + ": " + e.getMessage(), e);
+        }
+    }
+
+    private static void closeEvaluatedResourceWriter(EvaluationState state) {
+        if (state.evaluatedResourceWriter == null) {
+            return;
+        }
+
+        try {
+            state.evaluatedResourceWriter.close();
+        }
+        catch (IOException e) {
+            throw new RuntimeException("Error writing evaluated resources to " + state.evaluatedResourceWriter.getPath() + ": " + e.getMessage(), e);
+        }
+    }
+
+    private EvaluationState createEvaluationState(Measure measure, Iterable<Patient> patients, MeasureReport.MeasureReportType type) {
+        EvaluationState state = new EvaluationState(measure, type);
+        state.progressListener = this.progressListener;
+        state.evaluatedResourcesMode = this.evaluatedResourcesMode;
+        state.maxEvaluatedResources = this.maxEvaluatedResources;
+        if (patients instanceof PagedResourceIterable) {
+            state.patientsTotal = ((PagedResourceIterable<Patient>) patients).size();
+        }
+        else if (patients instanceof Collection) {
+            state.patientsTotal = ((Collection<Patient>) patients).size();
+        }
+
+        return state;
+    }
+
+    private void evaluatePopulation(Context context, MeasureScoring measureScoring, Iterable<Patient> patients, EvaluationState state) {
+        // Individual reports have a single patient so there is nothing to parallelize
+        if (this.threadCount > 1 && this.executor != null && this.contextFactory != null
+                && state.type != MeasureReport.MeasureReportType.INDIVIDUAL) {
+            new ParallelPatientEvaluator<Patient, EvaluationState>(this.executor, this.threadCount, this.batchSize, this.contextFactory)
+                .evaluate(patients.iterator(), state,
+                    (workerContext, batch) -> {
+                        EvaluationState batchState = state.newBatchState();
+                        evaluatePatients(workerContext, measureScoring, batch, batchState);
+                        return batchState;
+                    },
+                    EvaluationState::merge);
+        }
+        else {
+            evaluatePatients(context, measureScoring, patients, state);
+        }
+    }
+
+    private void evaluatePatients(Context context, MeasureScoring measureScoring, Iterable<Patient> patients, EvaluationState state) {
+        if (this.prefetchSize < 1 || this.prefetchDataTypes.isEmpty()) {
+            for (Patient patient : patients) {
+                evaluatePatient(context, measureScoring, patient, state);
+            }
+
+            return;
+        }
+
+        Iterator<Patient> iterator = patients.iterator();
+        while (iterator.hasNext()) {
+            List<Patient> batch = new ArrayList<>(this.prefetchSize);
+            while (iterator.hasNext() && batch.size() < this.prefetchSize) {
+                batch.add(iterator.next());
+            }
+
+            List<String> patientIds = new ArrayList<>(batch.size());
+            for (Patient patient : batch) {
+                patientIds.add(patient.getIdElement().getIdPart());
+            }
+
+            try (PatientBatch patientBatch = PatientBatch.open(patientIds, this.prefetchDataTypes)) {
+                for (Patient patient : batch) {
+                    evaluatePatient(context, measureScoring, patient, state);
+                }
+            }
+        }
+    }
+
+    private void evaluatePatient(Context context, MeasureScoring measureScoring, Patient patient, EvaluationState state) {
+        if (Thread.currentThread().isInterrupted()) {
+            throw new CancellationException("Measure evaluation was cancelled.");
+        }
+
+        // The groups and populations share the retrieves made for the patient
+        try (RetrieveCache retrieveCache = RetrieveCache.open()) {
+            if (state.memberships == null) {
+                for (GroupState group : state.groups) {
+                    evaluatePatient(context, measureScoring, patient, group, state);
+                }
+            }
+            else {
+                // Evaluate the patient on its own to find the populations the patient is in
+                EvaluationState patientState = new EvaluationState(state.measure, state.type);
+                List<Map<String, Integer>> groupCounts = new ArrayList<>();
+                for (GroupState group : patientState.groups) {
+                    evaluatePatient(context, measureScoring, patient, group, patientState);
+                    groupCounts.add(group.getCounts());
+                }
+
+                state.memberships.put(patient.getIdElement().getIdPart(), groupCounts);
+            }
+        }
+
+        state.patientCount++;
+        state.reportProgress();
+    }
+
+    private void evaluatePatient(Context context, MeasureScoring measureScoring, Patient patient, GroupState group, EvaluationState state) {
+        switch (measureScoring) {
+            case PROPORTION:
+            case RATIO: {
+
+                // Are they in the initial population?
+                boolean inInitialPopulation = evaluatePopulationCriteria(context, patient, group.initialPopulationCriteria,
+                        group.initialPopulation, null, null);
+                populateResourceMap(context, MeasurePopulationType.INITIALPOPULATION, state);
+
+                if (inInitialPopulation) {
+                    // Are they in the denominator?
+                    boolean inDenominator = evaluatePopulationCriteria(context, patient,
+                            group.denominatorCriteria, group.denominator,
+                            group.denominatorExclusionCriteria, group.denominatorExclusion);
+                    populateResourceMap(context, MeasurePopulationType.DENOMINATOR, state);
+
+                    if (inDenominator) {
+                        // Are they in the numerator?
+                        boolean inNumerator = evaluatePopulationCriteria(context, patient,
+                                group.numeratorCriteria, group.numerator,
+                                group.numeratorExclusionCriteria, group.numeratorExclusion);
+                        populateResourceMap(context, MeasurePopulationType.NUMERATOR, state);
+
+                        if (!inNumerator && inDenominator && (group.denominatorExceptionCriteria != null)) {
+                            // Are they in the denominator exception?
+                            boolean inException = false;
+                            for (Resource resource : evaluateCriteria(context, patient, group.denominatorExceptionCriteria)) {
+                                inException = true;
+                                group.denominatorException.addResource(resource);
+                                group.denominator.removeResource(resource.getIdElement().getIdPart());
+                                populateResourceMap(context, MeasurePopulationType.DENOMINATOREXCEPTION, state);
+                            }
+                            if (inException) {
+                                group.denominatorException.addPatient(patient);
+                                group.denominator.removePatient(patient.getIdElement().getIdPart());
+                            }
+                        }
+                    }
+                }
+
+                break;
+            }
+            case CONTINUOUSVARIABLE: {
+
+                // Are they in the initial population?
+                boolean inInitialPopulation = evaluatePopulationCriteria(context, patient, group.initialPopulationCriteria,
+                        group.initialPopulation, null, null);
+                populateResourceMap(context, MeasurePopulationType.INITIALPOPULATION, state);
+
+                if (inInitialPopulation) {
+                    // Are they in the measure population?
+                    boolean inMeasurePopulation = evaluatePopulationCriteria(context, patient,
+                            group.measurePopulationCriteria, group.measurePopulation,
+                            group.measurePopulationExclusionCriteria, group.measurePopulationExclusion);
+                    populateResourceMap(context, MeasurePopulationType.MEASUREPOPULATION, state);
+
+                    if (inMeasurePopulation && group.measureObservationCriteria != null) {
+                        evaluateObservations(context, patient, group.measureObservationCriteria, group.measureObservations);
+                        populateResourceMap(context, MeasurePopulationType.MEASUREOBSERVATION, state);
+                    }
+                }
+
+                break;
+            }
+            case COHORT: {
+
+                // Are they in the initial population?
+                boolean inInitialPopulation = evaluatePopulationCriteria(context, patient, group.initialPopulationCriteria,
+                        group.initialPopulation, null, null);
+                populateResourceMap(context, MeasurePopulationType.INITIALPOPULATION, state);
+
+                break;
+            }
+        }
+    }
+
+    private void populateResourceMap(Context context, MeasurePopulationType type, EvaluationState state) {
+        if (context.getEvaluatedResources().isEmpty()) {
+            return;
+        }
+
+        if (state.evaluatedResourcesMode == EvaluatedResourcesMode.NONE) {
+            context.clearEvaluatedResources();
+            return;
+        }
+
+        HashSet<String> codeHashSet = state.codeToResourceMap.computeIfAbsent(type.toCode(), x -> new HashSet<>());
+
+        for (Object o : context.getEvaluatedResources()) {
+            if (o instanceof Resource){
+                Resource r = (Resource)o;
+                String id = (r.getIdElement().getResourceType() != null ? (r.getIdElement().getResourceType()  + "/") : "") + r.getIdElement().getIdPart();
+                codeHashSet.add(id);
+
+                switch (state.evaluatedResourcesMode) {
+                    case FULL:
+                        state.addResource(id, r);
+                        break;
+                    case NDJSON:
+                        state.evaluatedResourceWriter.write(id, r);
+                        break;
+                    default:
+                        break;
+                }
+            }
+        }
+
+        context.clearEvaluatedResources();
+    }
+
+    // The population criteria and running results for a single Measure group
+    private static class GroupState {
+        Measure.MeasureGroupComponent group;
+
+        // TODO: Isn't quite right, there may be multiple initial populations for a ratio measure...
+        Measure.MeasureGroupPopulationComponent initialPopulationCriteria;
+        Measure.MeasureGroupPopulationComponent numeratorCriteria;
+        Measure.MeasureGroupPopulationComponent numeratorExclusionCriteria;
+        Measure.MeasureGroupPopulationComponent denominatorCriteria;
+        Measure.MeasureGroupPopulationComponent denominatorExclusionCriteria;
+        Measure.MeasureGroupPopulationComponent denominatorExceptionCriteria;
+        Measure.MeasureGroupPopulationComponent measurePopulationCriteria;
+        Measure.MeasureGroupPopulationComponent measurePopulationExclusionCriteria;
+        Measure.MeasureGroupPopulationComponent measureObservationCriteria;
+
+        PopulationState<Resource, Patient> initialPopulation;
+        PopulationState<Resource, Patient> numerator;
+        PopulationState<Resource, Patient> numeratorExclusion;
+        PopulationState<Resource, Patient> denominator;
+        PopulationState<Resource, Patient> denominatorExclusion;
+        PopulationState<Resource, Patient> denominatorException;
+        PopulationState<Resource, Patient> measurePopulation;
+        PopulationState<Resource, Patient> measurePopulationExclusion;
+        MeasureObservations measureObservations;
+
+        GroupState(Measure.MeasureGroupComponent group, MeasureReport.MeasureReportType type) {
+            this.group = group;
+            boolean trackPatients = type == MeasureReport.MeasureReportType.PATIENTLIST;
 
             for (Measure.MeasureGroupPopulationComponent pop : group.getPopulation()) {
                 MeasurePopulationType populationType = MeasurePopulationType.fromCode(pop.getCode().getCodingFirstRep().getCode());
@@ -246,228 +840,169 @@ public class MeasureEvaluation {
                     switch (populationType) {
                         case INITIALPOPULATION:
                             initialPopulationCriteria = pop;
-                            initialPopulation = new HashMap<String, Resource>();
-                            if (type == MeasureReport.MeasureReportType.PATIENTLIST) {
-                                initialPopulationPatients = new HashMap<String, Patient>();
-                            }
+                            initialPopulation = new PopulationState<>(trackPatients);
                             break;
                         case NUMERATOR:
                             numeratorCriteria = pop;
-                            numerator = new HashMap<String, Resource>();
-                            if (type == MeasureReport.MeasureReportType.PATIENTLIST) {
-                                numeratorPatients = new HashMap<String, Patient>();
-                            }
+                            numerator = new PopulationState<>(trackPatients);
                             break;
                         case NUMERATOREXCLUSION:
                             numeratorExclusionCriteria = pop;
-                            numeratorExclusion = new HashMap<String, Resource>();
-                            if (type == MeasureReport.MeasureReportType.PATIENTLIST) {
-                                numeratorExclusionPatients = new HashMap<String, Patient>();
-                            }
+                            numeratorExclusion = new PopulationState<>(trackPatients);
                             break;
                         case DENOMINATOR:
                             denominatorCriteria = pop;
-                            denominator = new HashMap<String, Resource>();
-                            if (type == MeasureReport.MeasureReportType.PATIENTLIST) {
-                                denominatorPatients = new HashMap<String, Patient>();
-                            }
+                            denominator = new PopulationState<>(trackPatients);
                             break;
                         case DENOMINATOREXCLUSION:
                             denominatorExclusionCriteria = pop;
-                            denominatorExclusion = new HashMap<String, Resource>();
-                            if (type == MeasureReport.MeasureReportType.PATIENTLIST) {
-                                denominatorExclusionPatients = new HashMap<String, Patient>();
-                            }
+                            denominatorExclusion = new PopulationState<>(trackPatients);
                             break;
                         case DENOMINATOREXCEPTION:
                             denominatorExceptionCriteria = pop;
-                            denominatorException = new HashMap<String, Resource>();
-                            if (type == MeasureReport.MeasureReportType.PATIENTLIST) {
-                                denominatorExceptionPatients = new HashMap<String, Patient>();
-                            }
+                            denominatorException = new PopulationState<>(trackPatients);
                             break;
                         case MEASUREPOPULATION:
                             measurePopulationCriteria = pop;
-                            measurePopulation = new HashMap<String, Resource>();
-                            if (type == MeasureReport.MeasureReportType.PATIENTLIST) {
-                                measurePopulationPatients = new HashMap<String, Patient>();
-                            }
+                            measurePopulation = new PopulationState<>(trackPatients);
                             break;
                         case MEASUREPOPULATIONEXCLUSION:
                             measurePopulationExclusionCriteria = pop;
-                            measurePopulationExclusion = new HashMap<String, Resource>();
-                            if (type == MeasureReport.MeasureReportType.PATIENTLIST) {
-                                measurePopulationExclusionPatients = new HashMap<String, Patient>();
-                            }
+                            measurePopulationExclusion = new PopulationState<>(trackPatients);
                             break;
                         case MEASUREOBSERVATION:
+                            measureObservationCriteria = pop;
+                            measureObservations = new MeasureObservations();
                             break;
                     }
                 }
             }
+        }
 
-            switch (measureScoring) {
-                case PROPORTION:
-                case RATIO: {
-
-                    // For each patient in the initial population
-                    for (Patient patient : patients) {
-
-                        // Are they in the initial population?
-                        boolean inInitialPopulation = evaluatePopulationCriteria(context, patient, initialPopulationCriteria,
-                                initialPopulation, initialPopulationPatients, null, null, null);
-                        populateResourceMap(context, MeasurePopulationType.INITIALPOPULATION, resources, codeToResourceMap);
-
-                        if (inInitialPopulation) {
-                            // Are they in the denominator?
-                            boolean inDenominator = evaluatePopulationCriteria(context, patient,
-                                    denominatorCriteria, denominator, denominatorPatients,
-                                    denominatorExclusionCriteria, denominatorExclusion, denominatorExclusionPatients);
-                            populateResourceMap(context, MeasurePopulationType.DENOMINATOR, resources, codeToResourceMap);
-
-                            if (inDenominator) {
-                                // Are they in the numerator?
-                                boolean inNumerator = evaluatePopulationCriteria(context, patient,
-                                        numeratorCriteria, numerator, numeratorPatients,
-                                        numeratorExclusionCriteria, numeratorExclusion, numeratorExclusionPatients);
-                                populateResourceMap(context, MeasurePopulationType.NUMERATOR, resources, codeToResourceMap);
-
-                                if (!inNumerator && inDenominator && (denominatorExceptionCriteria != null)) {
-                                    // Are they in the denominator exception?
-                                    boolean inException = false;
-                                    for (Resource resource : evaluateCriteria(context, patient, denominatorExceptionCriteria)) {
-                                        inException = true;
-                                        denominatorException.put(resource.getIdElement().getIdPart(), resource);
-                                        denominator.remove(resource.getIdElement().getIdPart());
-                                        populateResourceMap(context, MeasurePopulationType.DENOMINATOREXCEPTION, resources, codeToResourceMap);
-                                    }
-                                    if (inException) {
-                                        if (denominatorExceptionPatients != null) {
-                                            denominatorExceptionPatients.put(patient.getIdElement().getIdPart(), patient);
-                                        }
-                                        if (denominatorPatients != null) {
-                                            denominatorPatients.remove(patient.getIdElement().getIdPart());
-                                        }
-                                    }
-                                }
-                            }
-                        }
-                    }
-
-                    // Calculate actual measure score, Count(numerator) / Count(denominator)
-                    if (denominator != null && numerator != null && denominator.size() > 0) {
-                        reportGroup.setMeasureScore(numerator.size() / (double)denominator.size());
-                    }
+        // The size of each non-empty population, by population code
+        Map<String, Integer> getCounts() {
+            Map<String, Integer> counts = new HashMap<>();
+            addCount(counts, initialPopulationCriteria, initialPopulation);
+            addCount(counts, numeratorCriteria, numerator);
+            addCount(counts, numeratorExclusionCriteria, numeratorExclusion);
+            addCount(counts, denominatorCriteria, denominator);
+            addCount(counts, denominatorExclusionCriteria, denominatorExclusion);
+            addCount(counts, denominatorExceptionCriteria, denominatorException);
+            addCount(counts, measurePopulationCriteria, measurePopulation);
+            addCount(counts, measurePopulationExclusionCriteria, measurePopulationExclusion);
+            return counts;
+        }
 
-                    break;
-                }
-                case CONTINUOUSVARIABLE: {
-
-                    // For each patient in the patient list
-                    for (Patient patient : patients) {
-
-                        // Are they in the initial population?
-                        boolean inInitialPopulation = evaluatePopulationCriteria(context, patient, initialPopulationCriteria,
-                                initialPopulation, initialPopulationPatients, null, null, null);
-                        populateResourceMap(context, MeasurePopulationType.INITIALPOPULATION, resources, codeToResourceMap);
-
-                        if (inInitialPopulation) {
-                            // Are they in the measure population?
-                            boolean inMeasurePopulation = evaluatePopulationCriteria(context, patient,
-                                    measurePopulationCriteria, measurePopulation, measurePopulationPatients,
-                                    measurePopulationExclusionCriteria, measurePopulationExclusion, measurePopulationExclusionPatients);
-
-                            if (inMeasurePopulation) {
-                                // TODO: Evaluate measure observations
-                                for (Resource resource : evaluateCriteria(context, patient, measureObservationCriteria)) {
-                                    measureObservation.put(resource.getIdElement().getIdPart(), resource);
-                                }
-                            }
-                        }
-                    }
+        private static void addCount(Map<String, Integer> counts, Measure.MeasureGroupPopulationComponent criteria, PopulationState<Resource, Patient> population) {
+            if (criteria != null && population.getCount() > 0) {
+                counts.put(criteria.getCode().getCodingFirstRep().getCode(), population.getCount());
+            }
+        }
 
-                    break;
-                }
-                case COHORT: {
-
-                    // For each patient in the patient list
-                    for (Patient patient : patients) {
-                        // Are they in the initial population?
-                        boolean inInitialPopulation = evaluatePopulationCriteria(context, patient, initialPopulationCriteria,
-                                initialPopulation, initialPopulationPatients, null, null, null);
-                        populateResourceMap(context, MeasurePopulationType.INITIALPOPULATION, resources, codeToResourceMap);
-                    }
+        void merge(GroupState next) {
+            merge(initialPopulation, next.initialPopulation);
+            merge(numerator, next.numerator);
+            merge(numeratorExclusion, next.numeratorExclusion);
+            merge(denominator, next.denominator);
+            merge(denominatorExclusion, next.denominatorExclusion);
+            merge(denominatorException, next.denominatorException);
+            merge(measurePopulation, next.measurePopulation);
+            merge(measurePopulationExclusion, next.measurePopulationExclusion);
+            if (measureObservations != null && next.measureObservations != null) {
+                measureObservations.merge(next.measureObservations);
+            }
+        }
 
-                    break;
-                }
+        private static void merge(PopulationState<Resource, Patient> population, PopulationState<Resource, Patient> next) {
+            if (population != null && next != null) {
+                population.merge(next);
             }
+        }
+    }
 
-            // Add population reports for each group
-            addPopulationCriteriaReport(report, reportGroup, initialPopulationCriteria, initialPopulation != null ? initialPopulation.size() : 0, initialPopulationPatients != null ? initialPopulationPatients.values() : null);
-            addPopulationCriteriaReport(report, reportGroup, numeratorCriteria, numerator != null ? numerator.size() : 0, numeratorPatients != null ? numeratorPatients.values() : null);
-            addPopulationCriteriaReport(report, reportGroup, numeratorExclusionCriteria, numeratorExclusion != null ? numeratorExclusion.size() : 0, numeratorExclusionPatients != null ? numeratorExclusionPatients.values() : null);
-            addPopulationCriteriaReport(report, reportGroup, denominatorCriteria, denominator != null ? denominator.size() : 0, denominatorPatients != null ? denominatorPatients.values() : null);
-            addPopulationCriteriaReport(report, reportGroup, denominatorExclusionCriteria, denominatorExclusion != null ? denominatorExclusion.size() : 0, denominatorExclusionPatients != null ? denominatorExclusionPatients.values() : null);
-            addPopulationCriteriaReport(report, reportGroup, denominatorExceptionCriteria, denominatorException != null ? denominatorException.size() : 0, denominatorExceptionPatients != null ? denominatorExceptionPatients.values() : null);
-            addPopulationCriteriaReport(report, reportGroup, measurePopulationCriteria,  measurePopulation != null ? measurePopulation.size() : 0, measurePopulationPatients != null ? measurePopulationPatients.values() : null);
-            addPopulationCriteriaReport(report, reportGroup, measurePopulationExclusionCriteria,  measurePopulationExclusion != null ? measurePopulationExclusion.size() : 0, measurePopulationExclusionPatients != null ? measurePopulationExclusionPatients.values() : null);
-            // TODO: Measure Observations...
+    // The results of evaluating a set of patients against every group of a Measure
+    private static class EvaluationState {
+        List<GroupState> groups = new ArrayList<>();
+        HashMap<String,Resource> resources = new HashMap<>();
+        Measure measure;
+        MeasureReport.MeasureReportType type;
+        HashMap<String,HashSet<String>> codeToResourceMap = new HashMap<>();
+        int patientCount = 0;
+
+        // The population counts of each patient evaluated, only kept for incremental evaluations
+        Map<String, List<Map<String, Integer>>> memberships;
+
+        // Evaluated resources are not kept unless a mode is set
+        EvaluatedResourcesMode evaluatedResourcesMode = EvaluatedResourcesMode.NONE;
+        int maxEvaluatedResources;
+        boolean evaluatedResourcesTruncated = false;
+        NdjsonResourceWriter evaluatedResourceWriter;
+
+        // Only set on the state of the whole evaluation, not on the states of batches
+        EvaluationProgressListener progressListener;
+        Integer patientsTotal;
+
+        EvaluationState(Measure measure, MeasureReport.MeasureReportType type) {
+            this.measure = measure;
+            this.type = type;
+            for (Measure.MeasureGroupComponent group : measure.getGroup()) {
+                this.groups.add(new GroupState(group, type));
+            }
         }
 
-        for (String key : codeToResourceMap.keySet()) {
-            org.hl7.fhir.dstu3.model.ListResource list = new org.hl7.fhir.dstu3.model.ListResource();
-            for (String element : codeToResourceMap.get(key)) {
-                org.hl7.fhir.dstu3.model.ListResource.ListEntryComponent comp = new org.hl7.fhir.dstu3.model.ListResource.ListEntryComponent();
-                comp.setItem(new Reference('#' + element));
-                list.addEntry(comp);
+        // Merges the results of the batch of patients evaluated immediately after this one
+        void merge(EvaluationState next) {
+            for (int i = 0; i < this.groups.size(); i++) {
+                this.groups.get(i).merge(next.groups.get(i));
             }
 
-            if (!list.isEmpty()) {
-                list.setId(UUID.randomUUID().toString());
-                list.setTitle(key);
-                resources.put(list.getId(), list);
+            for (Map.Entry<String, Resource> entry : next.resources.entrySet()) {
+                this.addResource(entry.getKey(), entry.getValue());
             }
-        }
+            this.evaluatedResourcesTruncated |= next.evaluatedResourcesTruncated;
 
-        if (!resources.isEmpty()) {
-            FhirMeasureBundler bundler = new FhirMeasureBundler();
-            org.hl7.fhir.dstu3.model.Bundle evaluatedResources = bundler.bundle(resources.values());
-            evaluatedResources.setId(UUID.randomUUID().toString());
-            report.setEvaluatedResources(new Reference('#' + evaluatedResources.getId()));
-            report.addContained(evaluatedResources);
-        }
+            for (Map.Entry<String, HashSet<String>> entry : next.codeToResourceMap.entrySet()) {
+                this.codeToResourceMap.computeIfAbsent(entry.getKey(), x -> new HashSet<>()).addAll(entry.getValue());
+            }
 
-        return report;
-    }
+            if (this.memberships != null) {
+                this.memberships.putAll(next.memberships);
+            }
 
-    private void populateResourceMap(
-            Context context, MeasurePopulationType type, HashMap<String, Resource> resources,
-            HashMap<String,HashSet<String>> codeToResourceMap)
-    {
-        if (context.getEvaluatedResources().isEmpty()) {
-            return;
+            this.patientCount += next.patientCount;
+            this.reportProgress();
         }
 
-        if (!codeToResourceMap.containsKey(type.toCode())) {
-            codeToResourceMap.put(type.toCode(), new HashSet<>());
-        }
+        EvaluationState newBatchState() {
+            EvaluationState batchState = new EvaluationState(this.measure, this.type);
+            batchState.evaluatedResourcesMode = this.evaluatedResourcesMode;
+            batchState.maxEvaluatedResources = this.maxEvaluatedResources;
+            batchState.evaluatedResourceWriter = this.evaluatedResourceWriter;
+            if (this.memberships != null) {
+                batchState.memberships = new HashMap<>();
+            }
 
-        HashSet<String> codeHashSet = codeToResourceMap.get((type.toCode()));
+            return batchState;
+        }
 
-        for (Object o : context.getEvaluatedResources()) {
-            if (o instanceof Resource){
-                Resource r = (Resource)o;
-                String id = (r.getIdElement().getResourceType() != null ? (r.getIdElement().getResourceType()  + "/") : "")+ r.getIdElement().getIdPart();
-                if (!codeHashSet.contains(id)) {
-                    codeHashSet.add(id);
-                }
+        // Keeps the resource unless the maximum number of evaluated resources has been reached
+        void addResource(String id, Resource resource) {
+            if (this.resources.containsKey(id)) {
+                return;
+            }
 
-                if (!resources.containsKey(id)) {
-                    resources.put(id, r);
-                }
+            if (this.resources.size() >= this.maxEvaluatedResources) {
+                this.evaluatedResourcesTruncated = true;
+                return;
             }
+
+            this.resources.put(id, resource);
         }
 
-        context.clearEvaluatedResources();
+        void reportProgress() {
+            if (this.progressListener != null) {
+                this.progressListener.onProgress(this.patientCount, this.patientsTotal);
+            }
+        }
     }
-}
\ No newline at end of file
+}
@@ -16,6 +16,7 @@ import org.opencds.cqf.cql.runtime.Interval;
 import org.opencds.cqf.cql.terminology.TerminologyProvider;
 import org.opencds.cqf.dstu3.helpers.LibraryHelper;
 import org.opencds.cqf.common.evaluation.EvaluationProviderFactory;
+import org.opencds.cqf.common.evaluation.MeasureEvaluationContext;
 import org.opencds.cqf.common.helpers.DateHelper;
 import org.opencds.cqf.common.helpers.UsingHelper;
 import org.opencds.cqf.common.providers.LibraryResolutionProvider;
@@ -32,6 +33,10 @@ public class MeasureEvaluationSeed
     private LibraryResolutionProvider<org.hl7.fhir.dstu3.model.Library> libraryResourceProvider;
     private EvaluationProviderFactory providerFactory;
     private DataProvider dataProvider;
+    private String productLine;
+    private String source;
+    private String user;
+    private String pass;
 
     public MeasureEvaluationSeed(EvaluationProviderFactory providerFactory, LibraryLoader libraryLoader, LibraryResolutionProvider<org.hl7.fhir.dstu3.model.Library> libraryResourceProvider)
     {
@@ -45,14 +50,42 @@ public class MeasureEvaluationSeed
             String productLine, String source, String user, String pass)
     {
         this.measure = measure;
+        this.productLine = productLine;
+        this.source = source;
+        this.user = user;
+        this.pass = pass;
+        this.dataProvider = null;
 
         LibraryHelper.loadLibraries(measure, this.libraryLoader, this.libraryResourceProvider);
 
+        // resolve the measurement period
+        measurementPeriod = new Interval(DateHelper.resolveRequestDate(periodStart, true), true,
+                DateHelper.resolveRequestDate(periodEnd, false), true);
+
+        context = createContext(this.libraryLoader);
+    }
+
+    // Builds an independent Context (with its own LibraryLoader and data provider) for the Measure
+    // this seed was set up with, so that patients can be evaluated on another thread.
+    // Synchronized because loading the Measure libraries may write contained libraries to the server.
+    public synchronized Context createWorkerContext() {
+        if (this.measure == null) {
+            throw new IllegalStateException("The seed must be set up before worker contexts can be created.");
+        }
+
+        LibraryLoader workerLibraryLoader = LibraryHelper.createLibraryLoader(this.libraryResourceProvider);
+        LibraryHelper.loadLibraries(this.measure, workerLibraryLoader, this.libraryResourceProvider);
+        return createContext(workerLibraryLoader);
+    }
+
+    private Context createContext(LibraryLoader libraryLoader)
+    {
         // resolve primary library
-        Library library = LibraryHelper.resolvePrimaryLibrary(measure, libraryLoader, this.libraryResourceProvider);
+        Library library = LibraryHelper.resolvePrimaryLibrary(this.measure, libraryLoader, this.libraryResourceProvider);
 
         // resolve execution context
-        context = new Context(library);
+        // The expression cache is keyed by patient, so results are reused across populations and groups
+        Context context = new MeasureEvaluationContext(library);
         context.registerLibraryLoader(libraryLoader);
 
         List<Triple<String,String,String>> usingDefs = UsingHelper.getUsingUrlAndVersion(library.getUsings());
@@ -69,30 +102,33 @@ public class MeasureEvaluationSeed
             // server matches the FHIR version of the CQL.
             terminologyProvider = this.providerFactory.createTerminologyProvider(
                     usingDefs.get(0).getLeft(), usingDefs.get(0).getMiddle(),
-                        source, user, pass);
+                        this.source, this.user, this.pass);
             context.registerTerminologyProvider(terminologyProvider);
         }
 
         for (Triple<String,String,String> def : usingDefs)
         {
-            this.dataProvider = this.providerFactory.createDataProvider(def.getLeft(), def.getMiddle(), terminologyProvider);
+            DataProvider dataProvider = this.providerFactory.createDataProvider(def.getLeft(), def.getMiddle(), terminologyProvider);
             context.registerDataProvider(
                 def.getRight(), 
                 dataProvider);
-        }
 
-        // resolve the measurement period
-        measurementPeriod = new Interval(DateHelper.resolveRequestDate(periodStart, true), true,
-                DateHelper.resolveRequestDate(periodEnd, false), true);
+            // The seed exposes the data provider of its primary context
+            if (this.dataProvider == null) {
+                this.dataProvider = dataProvider;
+            }
+        }
 
         context.setParameter(null, "Measurement Period",
                 new Interval(DateTime.fromJavaDate((Date) measurementPeriod.getStart()), true,
                         DateTime.fromJavaDate((Date) measurementPeriod.getEnd()), true));
 
-        if (productLine != null) {
-            context.setParameter(null, "Product Line", productLine);
+        if (this.productLine != null) {
+            context.setParameter(null, "Product Line", this.productLine);
         }
 
         context.setExpressionCaching(true);
+
+        return context;
     }
 }
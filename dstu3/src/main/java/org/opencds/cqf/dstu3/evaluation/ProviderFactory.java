@@ -1,5 +1,7 @@
 package org.opencds.cqf.dstu3.evaluation;
 
+import java.util.concurrent.ExecutorService;
+
 import org.opencds.cqf.cql.data.CompositeDataProvider;
 import org.opencds.cqf.cql.data.DataProvider;
 import org.opencds.cqf.cql.model.Dstu3FhirModelResolver;
@@ -22,12 +24,20 @@ public class ProviderFactory implements EvaluationProviderFactory {
     TerminologyProvider defaultTerminologyProvider;
     FhirContext fhirContext;
     ISearchParamRegistry searchParamRegistry;
+    ExecutorService queryExecutor;
 
     public ProviderFactory(FhirContext fhirContext, DaoRegistry registry,
             TerminologyProvider defaultTerminologyProvider) {
+        this(fhirContext, registry, defaultTerminologyProvider, null);
+    }
+
+    // The query executor runs the queries of a retrieve concurrently, and is owned by the caller
+    public ProviderFactory(FhirContext fhirContext, DaoRegistry registry,
+            TerminologyProvider defaultTerminologyProvider, ExecutorService queryExecutor) {
         this.defaultTerminologyProvider = defaultTerminologyProvider;
         this.registry = registry;
         this.fhirContext = fhirContext;
+        this.queryExecutor = queryExecutor;
     }
 
     public DataProvider createDataProvider(String model, String version) {
@@ -42,7 +52,8 @@ public class ProviderFactory implements EvaluationProviderFactory {
     public DataProvider createDataProvider(String model, String version, TerminologyProvider terminologyProvider) {
         if (model.equals("FHIR") && version.equals("3.0.0")) {
             Dstu3FhirModelResolver modelResolver = new Dstu3FhirModelResolver();
-            JpaFhirRetrieveProvider retrieveProvider = new JpaFhirRetrieveProvider(this.registry, new SearchParameterResolver(this.fhirContext));
+            JpaFhirRetrieveProvider retrieveProvider = new JpaFhirRetrieveProvider(this.registry, new SearchParameterResolver(this.fhirContext),
+                this.queryExecutor);
             retrieveProvider.setTerminologyProvider(terminologyProvider);
             retrieveProvider.setExpandValueSets(true);
 
@@ -2,6 +2,7 @@ package org.opencds.cqf.dstu3.helpers;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
 
 import org.cqframework.cql.cql2elm.LibraryManager;
 import org.cqframework.cql.cql2elm.ModelManager;
@@ -14,6 +15,9 @@ import org.hl7.fhir.dstu3.model.RelatedArtifact;
 import org.hl7.fhir.dstu3.model.RelatedArtifact.RelatedArtifactType;
 import org.hl7.fhir.dstu3.model.Resource;
 import org.opencds.cqf.common.evaluation.LibraryLoader;
+import org.opencds.cqf.common.evaluation.ParallelLibraryManager;
+import org.opencds.cqf.common.evaluation.SharedModelManager;
+import org.opencds.cqf.common.helpers.TranslatorHelper;
 import org.opencds.cqf.common.providers.LibraryResolutionProvider;
 import org.opencds.cqf.common.providers.LibrarySourceProvider;
 
@@ -22,19 +26,36 @@ import org.opencds.cqf.common.providers.LibrarySourceProvider;
  */
 public class LibraryHelper {
 
+    // Translates the includes of a library concurrently. Owned by the servlet, which sets it on
+    // initialization and clears it before shutting it down.
+    private static volatile ExecutorService translationExecutor;
+
+    public static void setTranslationExecutor(ExecutorService executor) {
+        translationExecutor = executor;
+    }
+
     public static LibraryLoader createLibraryLoader(LibraryResolutionProvider<org.hl7.fhir.dstu3.model.Library> provider) {
-        ModelManager modelManager = new ModelManager();
-        LibraryManager libraryManager = new LibraryManager(modelManager);
-        libraryManager.getLibrarySourceLoader().clearProviders();
-        
-        libraryManager.getLibrarySourceLoader().registerProvider(
+        ModelManager modelManager = SharedModelManager.getInstance();
+        LibrarySourceProvider<org.hl7.fhir.dstu3.model.Library, org.hl7.fhir.dstu3.model.Attachment> librarySourceProvider =
             new LibrarySourceProvider<org.hl7.fhir.dstu3.model.Library, org.hl7.fhir.dstu3.model.Attachment>(
                 provider, 
                 x -> x.getContent(),
                 x -> x.getContentType(),
-                x -> x.getData()));
+                x -> x.getData(),
+                LibraryHelper::getExtensionValue);
+        LibraryManager libraryManager = new ParallelLibraryManager(modelManager, librarySourceProvider, translationExecutor);
+
+        return new LibraryLoader(libraryManager, modelManager, librarySourceProvider);
+    }
+
+    private static String getExtensionValue(org.hl7.fhir.dstu3.model.Attachment attachment, String url) {
+        for (org.hl7.fhir.dstu3.model.Extension extension : attachment.getExtension()) {
+            if (url.equals(extension.getUrl()) && extension.hasValue()) {
+                return extension.getValue().primitiveValue();
+            }
+        }
 
-        return new LibraryLoader(libraryManager, modelManager);
+        return null;
     }
 
 
@@ -6,11 +6,11 @@ import ca.uhn.fhir.rest.annotation.IdParam;
 import ca.uhn.fhir.rest.annotation.Operation;
 import ca.uhn.fhir.rest.annotation.OperationParam;
 import org.cqframework.cql.cql2elm.LibraryManager;
-import org.cqframework.cql.cql2elm.ModelManager;
 import org.cqframework.cql.elm.execution.Library;
 import org.hl7.fhir.dstu3.model.*;
 import org.hl7.fhir.exceptions.FHIRException;
 import org.opencds.cqf.common.evaluation.EvaluationProviderFactory;
+import org.opencds.cqf.common.evaluation.SharedModelManager;
 import org.opencds.cqf.common.helpers.TranslatorHelper;
 import org.opencds.cqf.cql.execution.Context;
 import org.opencds.cqf.cql.runtime.DateTime;
@@ -67,7 +67,7 @@ public class ApplyCqlOperationProvider {
                     List<String> extension = getExtension(base);
                     if (!extension.isEmpty()) {
                         String cql = String.format("using FHIR version '3.0.0' define x: %s", extension.get(1));
-                        library = TranslatorHelper.translateLibrary(cql, new LibraryManager(new ModelManager()), new ModelManager());
+                        library = TranslatorHelper.translateLibrary(cql, new LibraryManager(SharedModelManager.getInstance()), SharedModelManager.getInstance());
                         context = new Context(library);
                         context.registerDataProvider("http://hl7.org/fhir", this.providerFactory.createDataProvider("FHIR", "3.0.0"));
                         Object result = context.resolveExpressionRef("x").getExpression().evaluate(context);
@@ -176,8 +176,7 @@ public class CqlExecutionProvider {
 
         LibraryLoader libraryLoader = LibraryHelper.createLibraryLoader(this.libraryResolutionProvider);
 
-        org.cqframework.cql.elm.execution.Library library = TranslatorHelper.translateLibrary(source,
-                libraryLoader.getLibraryManager(), libraryLoader.getModelManager());
+        org.cqframework.cql.elm.execution.Library library = libraryLoader.translateLocalLibrary("LocalLibrary", source);
         Context context = new Context(library);
         context.setParameter(null, instance.fhirType(), instance);
         context.setParameter(null, "%context", instance);
@@ -1,9 +1,16 @@
 package org.opencds.cqf.dstu3.providers;
 
 import java.util.ArrayList;
+import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.locks.Lock;
 
 import javax.servlet.http.HttpServletRequest;
 
@@ -11,6 +18,7 @@ import org.hl7.fhir.dstu3.model.Bundle;
 import org.hl7.fhir.dstu3.model.CodeableConcept;
 import org.hl7.fhir.dstu3.model.Coding;
 import org.hl7.fhir.dstu3.model.Composition;
+import org.hl7.fhir.dstu3.model.DateTimeType;
 import org.hl7.fhir.dstu3.model.Extension;
 import org.hl7.fhir.dstu3.model.IdType;
 import org.hl7.fhir.dstu3.model.Library;
@@ -23,16 +31,29 @@ import org.hl7.fhir.dstu3.model.Reference;
 import org.hl7.fhir.dstu3.model.RelatedArtifact;
 import org.hl7.fhir.dstu3.model.Resource;
 import org.hl7.fhir.dstu3.model.StringType;
+import org.hl7.fhir.dstu3.model.Task;
 import org.hl7.fhir.exceptions.FHIRException;
 import org.hl7.fhir.instance.model.api.IAnyResource;
 import org.hl7.fhir.instance.model.api.IBase;
 import org.hl7.fhir.instance.model.api.IBaseResource;
 import org.hl7.fhir.utilities.xhtml.XhtmlNode;
+import org.opencds.cqf.common.config.HapiProperties;
+import org.opencds.cqf.common.evaluation.EvaluatedResourcesMode;
+import org.opencds.cqf.common.evaluation.EvaluationJobExecutor;
+import org.opencds.cqf.common.evaluation.EvaluationProgressListener;
 import org.opencds.cqf.common.evaluation.EvaluationProviderFactory;
+import org.opencds.cqf.common.evaluation.IncrementalEvaluationState;
+import org.opencds.cqf.common.evaluation.PatientPartition;
+import org.opencds.cqf.common.exceptions.AcceptedException;
 import org.opencds.cqf.common.providers.LibraryResolutionProvider;
+import org.opencds.cqf.cql.execution.Context;
 import org.opencds.cqf.cql.execution.LibraryLoader;
+import org.opencds.cqf.dstu3.builders.OperationOutcomeBuilder;
+import org.opencds.cqf.dstu3.evaluation.IncrementalEvaluationStore;
 import org.opencds.cqf.dstu3.evaluation.MeasureEvaluation;
+import org.opencds.cqf.dstu3.evaluation.MeasureEvaluationJobStore;
 import org.opencds.cqf.dstu3.evaluation.MeasureEvaluationSeed;
+import org.opencds.cqf.dstu3.evaluation.MeasureReportMerger;
 import org.opencds.cqf.dstu3.evaluation.ProviderFactory;
 import org.opencds.cqf.dstu3.helpers.LibraryHelper;
 import org.opencds.cqf.library.stu3.NarrativeProvider;
@@ -41,6 +62,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import ca.uhn.fhir.context.BaseRuntimeChildDefinition;
+import ca.uhn.fhir.context.ConfigurationException;
 import ca.uhn.fhir.jpa.dao.DaoRegistry;
 import ca.uhn.fhir.jpa.rp.dstu3.MeasureResourceProvider;
 import ca.uhn.fhir.jpa.searchparam.SearchParameterMap;
@@ -49,12 +71,14 @@ import ca.uhn.fhir.rest.annotation.Operation;
 import ca.uhn.fhir.rest.annotation.OperationParam;
 import ca.uhn.fhir.rest.annotation.OptionalParam;
 import ca.uhn.fhir.rest.annotation.RequiredParam;
+import ca.uhn.fhir.rest.api.Constants;
 import ca.uhn.fhir.rest.api.MethodOutcome;
 import ca.uhn.fhir.rest.api.RestOperationTypeEnum;
 import ca.uhn.fhir.rest.api.server.RequestDetails;
 import ca.uhn.fhir.rest.param.TokenParam;
 import ca.uhn.fhir.rest.param.TokenParamModifier;
 import ca.uhn.fhir.rest.server.exceptions.InternalErrorException;
+import ca.uhn.fhir.rest.server.exceptions.UnclassifiedServerFailureException;
 
 public class MeasureOperationsProvider {
 
@@ -66,20 +90,34 @@ public class MeasureOperationsProvider {
     private MeasureResourceProvider measureResourceProvider;
     private DaoRegistry registry;
     private EvaluationProviderFactory factory;
+    private MeasureEvaluationJobStore jobStore;
+    private IncrementalEvaluationStore incrementalStore;
+    private EvaluationJobExecutor jobExecutor;
+    private ExecutorService evaluationExecutor;
+
+    // Progress of asynchronous evaluations is written to their Task at most this often
+    private static final long PROGRESS_UPDATE_INTERVAL_MILLIS = 5000;
 
 
     private static final Logger logger = LoggerFactory.getLogger(MeasureOperationsProvider.class);
 
+    // Parallel evaluations run on the evaluation executor, which is owned by the servlet. Without one
+    // every evaluation runs on the calling thread.
     public MeasureOperationsProvider(DaoRegistry registry, EvaluationProviderFactory factory, NarrativeProvider narrativeProvider, HQMFProvider hqmfProvider, LibraryResolutionProvider<Library> libraryResolutionProvider,
-    MeasureResourceProvider measureResourceProvider) {
+    MeasureResourceProvider measureResourceProvider, ExecutorService evaluationExecutor) {
         this.registry = registry;
         this.factory = factory;
+        this.evaluationExecutor = evaluationExecutor;
 
         this.libraryResolutionProvider = libraryResolutionProvider;
         this.narrativeProvider = narrativeProvider;
         this.hqmfProvider = hqmfProvider;
         this.dataRequirementsProvider = new DataRequirementsProvider();
         this.measureResourceProvider = measureResourceProvider;
+        this.jobStore = new MeasureEvaluationJobStore(registry);
+        this.incrementalStore = new IncrementalEvaluationStore(registry);
+        this.jobExecutor = new EvaluationJobExecutor(HapiProperties.getMeasureEvaluationAsyncThreads(),
+            HapiProperties.getMeasureEvaluationAsyncQueueSize());
     }
 
     @Operation(name = "$hqmf", idempotent = true, type = Measure.class)
@@ -154,19 +192,185 @@ public class MeasureOperationsProvider {
             @OptionalParam(name = "practitioner") String practitionerRef,
             @OptionalParam(name = "lastReceivedOn") String lastReceivedOn,
             @OptionalParam(name = "source") String source, @OptionalParam(name = "user") String user,
-            @OptionalParam(name = "pass") String pass) throws InternalErrorException, FHIRException {
-        LibraryLoader libraryLoader = LibraryHelper.createLibraryLoader(this.libraryResolutionProvider);
-        MeasureEvaluationSeed seed = new MeasureEvaluationSeed(this.factory, libraryLoader, this.libraryResolutionProvider);
+            @OptionalParam(name = "pass") String pass,
+            @OptionalParam(name = "threads") String threads,
+            @OptionalParam(name = "incremental") String incremental,
+            @OptionalParam(name = "evaluatedResources") String evaluatedResources,
+            @OptionalParam(name = "partition") String partition,
+            @OptionalParam(name = "partitionCount") String partitionCount,
+            RequestDetails theRequestDetails) throws InternalErrorException, FHIRException {
         Measure measure = this.measureResourceProvider.getDao().read(theId);
 
         if (measure == null) {
             throw new RuntimeException("Could not find Measure/" + theId.getIdPart());
         }
 
+        int threadCount = resolveThreadCount(threads);
+        boolean isIncremental = Boolean.parseBoolean(incremental);
+        EvaluatedResourcesMode evaluatedResourcesMode = resolveEvaluatedResourcesMode(evaluatedResources);
+        PatientPartition patientPartition = resolvePartition(partition, partitionCount);
+        if (patientPartition != null && isIncremental) {
+            throw new IllegalArgumentException("Incremental evaluation does not support the partition parameter.");
+        }
+
+        if (!isAsyncRequested(theRequestDetails)) {
+            return evaluateMeasure(measure, periodStart, periodEnd, reportType, patientRef, productLine, practitionerRef,
+                lastReceivedOn, source, user, pass, threadCount, isIncremental, evaluatedResourcesMode,
+                patientPartition, null);
+        }
+
+        Task task = this.jobStore.create(measure);
+        String taskId = task.getIdElement().getIdPart();
+        try {
+            this.jobExecutor.submit(taskId, () -> runEvaluationJob(taskId, measure, periodStart, periodEnd, reportType,
+                patientRef, productLine, practitionerRef, lastReceivedOn, source, user, pass, threadCount, isIncremental,
+                evaluatedResourcesMode, patientPartition));
+        }
+        catch (RejectedExecutionException e) {
+            this.jobStore.fail(taskId, "Too many measure evaluations are queued.");
+            throw new UnclassifiedServerFailureException(429, "Too many measure evaluations are queued, please try again later.");
+        }
+
+        String message = String.format("Evaluation of Measure/%s accepted, poll Task/%s for its status.", measure.getIdElement().getIdPart(), taskId);
+        AcceptedException accepted = new AcceptedException(message,
+            new OperationOutcomeBuilder().buildIssue("information", "informational", message).build());
+        accepted.addResponseHeader(Constants.HEADER_CONTENT_LOCATION, theRequestDetails.getFhirServerBase() + "/Task/" + taskId);
+        throw accepted;
+    }
+
+    /*
+     *
+     * Evaluates several measures over the same population in a single pass over the
+     * patients, sharing the data retrieved for each batch of patients between the
+     * measures. Returns a Bundle with one MeasureReport per measure.
+     *
+     */
+    @Operation(name = "$evaluate-measures", idempotent = true, type = Measure.class)
+    public Bundle evaluateMeasures(
+            @OperationParam(name = "measure", min = 1, max = OperationParam.MAX_UNLIMITED) List<StringType> measureIds,
+            @OperationParam(name = "periodStart", min = 1, max = 1) String periodStart,
+            @OperationParam(name = "periodEnd", min = 1, max = 1) String periodEnd,
+            @OperationParam(name = "reportType") String reportType,
+            @OperationParam(name = "productLine") String productLine,
+            @OperationParam(name = "source") String source, @OperationParam(name = "user") String user,
+            @OperationParam(name = "pass") String pass,
+            @OperationParam(name = "evaluatedResources") String evaluatedResources) throws FHIRException {
+        MeasureReport.MeasureReportType type;
+        if (reportType == null || reportType.equals("population")) {
+            type = MeasureReport.MeasureReportType.SUMMARY;
+        }
+        else if (reportType.equals("patient-list")) {
+            type = MeasureReport.MeasureReportType.PATIENTLIST;
+        }
+        else {
+            throw new IllegalArgumentException("Batch evaluation only supports the population and patient-list report types.");
+        }
+
+        EvaluatedResourcesMode evaluatedResourcesMode = resolveEvaluatedResourcesMode(evaluatedResources);
+
+        // The measures share the library loader so that common libraries are only translated once
+        org.opencds.cqf.common.evaluation.LibraryLoader libraryLoader = LibraryHelper.createLibraryLoader(this.libraryResolutionProvider);
+        List<MeasureEvaluation> evaluations = new ArrayList<>();
+        List<Measure> measures = new ArrayList<>();
+        List<Context> contexts = new ArrayList<>();
+        Set<String> dataTypes = new HashSet<>();
+        for (StringType measureIdList : measureIds) {
+            // The measures may also be given as a comma-separated list
+            for (String measureId : measureIdList.getValue().split(",")) {
+                if (measureId.trim().isEmpty()) {
+                    continue;
+                }
+
+                Measure measure = this.measureResourceProvider.getDao().read(new IdType("Measure", measureId.trim()));
+                MeasureEvaluationSeed seed = new MeasureEvaluationSeed(this.factory, libraryLoader, this.libraryResolutionProvider);
+                seed.setup(measure, periodStart, periodEnd, productLine, source, user, pass);
+
+                MeasureEvaluation evaluation = new MeasureEvaluation(seed.getDataProvider(), this.registry, seed.getMeasurementPeriod());
+                evaluation.setEvaluatedResources(evaluatedResourcesMode, HapiProperties.getMeasureEvaluationEvaluatedResourcesMax());
+                evaluations.add(evaluation);
+                measures.add(seed.getMeasure());
+                contexts.add(seed.getContext());
+                dataTypes.addAll(this.dataRequirementsProvider.getRetrievedDataTypes(seed.getMeasure(), this.libraryResolutionProvider, libraryLoader));
+            }
+        }
+
+        if (evaluations.isEmpty()) {
+            throw new IllegalArgumentException("At least one measure is required.");
+        }
+
+        // Without prefetching the retrieves of each patient are still shared between the measures
+        int batchSize = Math.max(HapiProperties.getMeasureEvaluationPrefetchSize(), 1);
+        List<MeasureReport> reports = MeasureEvaluation.evaluateMeasures(evaluations, measures, contexts, dataTypes, batchSize, type);
+
+        Bundle bundle = new Bundle();
+        bundle.setType(Bundle.BundleType.COLLECTION);
+        for (MeasureReport report : reports) {
+            bundle.addEntry(new Bundle.BundleEntryComponent().setResource(report));
+        }
+
+        return bundle;
+    }
+
+    // Combines the MeasureReports of the partitions of a population or patient-list evaluation
+    @Operation(name = "$merge-measure-reports", idempotent = true, type = MeasureReport.class)
+    public MeasureReport mergeMeasureReports(
+            @OperationParam(name = "measure-report", min = 1, max = OperationParam.MAX_UNLIMITED, type = MeasureReport.class) List<MeasureReport> reports) {
+        return new MeasureReportMerger(HapiProperties.getMeasureEvaluationEvaluatedResourcesMax()).merge(reports);
+    }
+
+    @Operation(name = "$cancel", type = Task.class)
+    public Task cancelEvaluation(@IdParam IdType theId) {
+        // Mark the Task as cancelled first so that the job does not record a result
+        Task task = this.jobStore.cancel(theId.getIdPart());
+        this.jobExecutor.cancel(theId.getIdPart());
+        return task;
+    }
+
+    // Marks asynchronous evaluations left unfinished by a previous run of the server as failed
+    public void failInterruptedEvaluations() {
+        this.jobStore.failInterruptedJobs();
+    }
+
+    private MeasureReport evaluateMeasure(Measure measure, String periodStart, String periodEnd, String reportType,
+            String patientRef, String productLine, String practitionerRef, String lastReceivedOn, String source, String user,
+            String pass, int threadCount, boolean incremental, EvaluatedResourcesMode evaluatedResourcesMode,
+            PatientPartition partition, EvaluationProgressListener progressListener) {
+        org.opencds.cqf.common.evaluation.LibraryLoader libraryLoader = LibraryHelper.createLibraryLoader(this.libraryResolutionProvider);
+        MeasureEvaluationSeed seed = new MeasureEvaluationSeed(this.factory, libraryLoader, this.libraryResolutionProvider);
+
         seed.setup(measure, periodStart, periodEnd, productLine, source, user, pass);
 
         // resolve report type
         MeasureEvaluation evaluator = new MeasureEvaluation(seed.getDataProvider(), this.registry, seed.getMeasurementPeriod());
+        evaluator.setParallelism(this.evaluationExecutor, threadCount, HapiProperties.getMeasureEvaluationBatchSize(),
+            seed::createWorkerContext);
+        evaluator.setProgressListener(progressListener);
+        evaluator.setEvaluatedResources(evaluatedResourcesMode, HapiProperties.getMeasureEvaluationEvaluatedResourcesMax());
+
+        // Prefetching only pays off when more than one patient is evaluated
+        boolean individual = !incremental && (reportType == null || reportType.equals("patient")) && patientRef != null;
+        if (partition != null) {
+            if (individual) {
+                throw new IllegalArgumentException("The partition parameter only applies to population and patient-list reports.");
+            }
+
+            evaluator.setPartition(partition);
+        }
+
+        Set<String> dataTypes = null;
+        if (!individual && (incremental || HapiProperties.getMeasureEvaluationPrefetchSize() > 0)) {
+            dataTypes = this.dataRequirementsProvider.getRetrievedDataTypes(seed.getMeasure(), this.libraryResolutionProvider, libraryLoader);
+        }
+
+        if (!individual && HapiProperties.getMeasureEvaluationPrefetchSize() > 0) {
+            evaluator.setPrefetch(dataTypes, HapiProperties.getMeasureEvaluationPrefetchSize());
+        }
+
+        if (incremental) {
+            return evaluateIncrementalMeasure(evaluator, seed, libraryLoader, dataTypes, periodStart, periodEnd, reportType,
+                productLine, practitionerRef, lastReceivedOn);
+        }
+
         if (reportType != null) {
             switch (reportType) {
             case "patient":
@@ -193,6 +397,184 @@ public class MeasureOperationsProvider {
         return report;
     }
 
+    // Re-evaluates only the patients whose data changed since the last incremental evaluation of
+    // the same measure version, library content, period and product line, or since lastReceivedOn
+    // if it is given. Without a stored state every patient is evaluated, so lastReceivedOn is
+    // ignored, with a warning, and the state is stored for the next evaluation.
+    private MeasureReport evaluateIncrementalMeasure(MeasureEvaluation evaluator, MeasureEvaluationSeed seed,
+            org.opencds.cqf.common.evaluation.LibraryLoader libraryLoader, Set<String> dataTypes, String periodStart,
+            String periodEnd, String reportType, String productLine, String practitionerRef, String lastReceivedOn) {
+        MeasureReport.MeasureReportType type;
+        if (reportType == null || reportType.equals("population")) {
+            type = MeasureReport.MeasureReportType.SUMMARY;
+        }
+        else if (reportType.equals("patient-list")) {
+            type = MeasureReport.MeasureReportType.PATIENTLIST;
+        }
+        else {
+            throw new IllegalArgumentException("Incremental evaluation only supports the population and patient-list report types.");
+        }
+
+        if (practitionerRef != null) {
+            throw new IllegalArgumentException("Incremental evaluation does not support the practitioner parameter.");
+        }
+
+        String contentKey = this.dataRequirementsProvider.getLibraryContentKey(seed.getMeasure(), this.libraryResolutionProvider,
+            libraryLoader);
+        if (contentKey == null) {
+            logger.warn("The source of the libraries of Measure/{} is unknown, so it is evaluated in full and no incremental state is kept.",
+                seed.getMeasure().getIdElement().getIdPart());
+            warnIgnoredLastReceivedOn(seed.getMeasure(), lastReceivedOn);
+            return evaluator.evaluateIncrementalMeasure(seed.getMeasure(), seed.getContext(), new IncrementalEvaluationState(),
+                dataTypes, null, type);
+        }
+
+        String stateId = this.incrementalStore.getStateId(seed.getMeasure(), periodStart, periodEnd, productLine, contentKey);
+        Lock lock = this.incrementalStore.getLock(stateId);
+        lock.lock();
+        try {
+            // Changes made while this evaluation runs are picked up by the next one
+            Date evaluationStart = new Date();
+            IncrementalEvaluationState state = this.incrementalStore.load(stateId);
+            Date since = null;
+            if (state == null) {
+                warnIgnoredLastReceivedOn(seed.getMeasure(), lastReceivedOn);
+                state = new IncrementalEvaluationState();
+            }
+            else {
+                since = lastReceivedOn != null ? new DateTimeType(lastReceivedOn).getValue() : state.getLastEvaluated();
+            }
+
+            MeasureReport report = evaluator.evaluateIncrementalMeasure(seed.getMeasure(), seed.getContext(), state, dataTypes, since, type);
+            state.setLastEvaluated(evaluationStart);
+            this.incrementalStore.save(stateId, state);
+            return report;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    private void runEvaluationJob(String taskId, Measure measure, String periodStart, String periodEnd, String reportType,
+            String patientRef, String productLine, String practitionerRef, String lastReceivedOn, String source, String user,
+            String pass, int threadCount, boolean incremental, EvaluatedResourcesMode evaluatedResourcesMode,
+            PatientPartition partition) {
+        this.jobStore.start(taskId);
+        try {
+            MeasureReport report = evaluateMeasure(measure, periodStart, periodEnd, reportType, patientRef, productLine,
+                practitionerRef, lastReceivedOn, source, user, pass, threadCount, incremental, evaluatedResourcesMode,
+                partition, new EvaluationProgressListener() {
+                    private long lastUpdate = System.currentTimeMillis();
+
+                    @Override
+                    public void onProgress(int patientsEvaluated, Integer patientsTotal) {
+                        long now = System.currentTimeMillis();
+                        if (now - this.lastUpdate >= PROGRESS_UPDATE_INTERVAL_MILLIS) {
+                            this.lastUpdate = now;
+                            jobStore.updateProgress(taskId, patientsEvaluated, patientsTotal);
+                        }
+                    }
+                });
+
+            // The job may have been cancelled after the last patient was evaluated
+            if (Thread.currentThread().isInterrupted() || !this.jobStore.isInProgress(taskId)) {
+                logger.info("Measure evaluation job Task/{} was cancelled", taskId);
+                return;
+            }
+
+            this.jobStore.complete(taskId, report);
+        }
+        catch (Exception e) {
+            // A cancelled job has already been marked as such
+            if (e instanceof CancellationException || Thread.currentThread().isInterrupted()) {
+                logger.info("Measure evaluation job Task/{} was cancelled", taskId);
+                return;
+            }
+
+            logger.error("Measure evaluation job Task/{} failed", taskId, e);
+            this.jobStore.fail(taskId, e.getMessage());
+        }
+    }
+
+    private boolean isAsyncRequested(RequestDetails theRequestDetails) {
+        if (theRequestDetails == null) {
+            return false;
+        }
+
+        String prefer = theRequestDetails.getHeader(Constants.HEADER_PREFER);
+        return prefer != null && prefer.contains("respond-async");
+    }
+
+    private EvaluatedResourcesMode resolveEvaluatedResourcesMode(String evaluatedResources) {
+        if (evaluatedResources == null) {
+            String code = HapiProperties.getMeasureEvaluationEvaluatedResources();
+            EvaluatedResourcesMode mode = EvaluatedResourcesMode.fromCode(code);
+            if (mode == null) {
+                throw new ConfigurationException("Unknown measure.evaluation.evaluated_resources value: " + code);
+            }
+
+            return mode;
+        }
+
+        EvaluatedResourcesMode mode = EvaluatedResourcesMode.fromCode(evaluatedResources);
+        if (mode == null) {
+            throw new IllegalArgumentException("Invalid evaluatedResources parameter: " + evaluatedResources
+                + ", expected one of none, references, full or ndjson.");
+        }
+
+        return mode;
+    }
+
+    private void warnIgnoredLastReceivedOn(Measure measure, String lastReceivedOn) {
+        if (lastReceivedOn != null) {
+            logger.warn("Measure/{} has no incremental state for the period yet, so every patient is evaluated and lastReceivedOn {} is ignored.",
+                measure.getIdElement().getIdPart(), lastReceivedOn);
+        }
+    }
+
+    private PatientPartition resolvePartition(String partition, String partitionCount) {
+        if (partition == null && partitionCount == null) {
+            return null;
+        }
+
+        if (partition == null || partitionCount == null) {
+            throw new IllegalArgumentException("The partition and partitionCount parameters must be given together.");
+        }
+
+        try {
+            return new PatientPartition(Integer.parseInt(partition), Integer.parseInt(partitionCount));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid partition parameters: " + partition + " of " + partitionCount);
+        }
+    }
+
+    // An evaluation uses at most measure.evaluation.max_threads threads of the shared evaluation executor
+    private int resolveThreadCount(String threads) {
+        int threadCount;
+        if (threads == null) {
+            threadCount = HapiProperties.getMeasureEvaluationThreads();
+        }
+        else {
+            try {
+                threadCount = Integer.parseInt(threads);
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid threads parameter: " + threads);
+            }
+
+            if (threadCount < 1) {
+                throw new IllegalArgumentException("The threads parameter must be at least 1.");
+            }
+        }
+
+        int maxThreadCount = this.evaluationExecutor == null ? 1 : HapiProperties.getMeasureEvaluationMaxThreads();
+        if (threadCount > maxThreadCount) {
+            logger.debug("Limiting the evaluation to {} threads rather than {}", maxThreadCount, threadCount);
+            return maxThreadCount;
+        }
+
+        return threadCount;
+    }
+
     // @Operation(name = "$evaluate-measure-with-source", idempotent = true)
     // public MeasureReport evaluateMeasure(@IdParam IdType theId,
     //         @OperationParam(name = "sourceData", min = 1, max = 1, type = Bundle.class) Bundle sourceData,
@@ -257,6 +639,7 @@ public class MeasureOperationsProvider {
             MeasureEvaluationSeed seed = new MeasureEvaluationSeed(this.factory, libraryLoader, this.libraryResolutionProvider);
             seed.setup(measure, periodStart, periodEnd, null, null, null, null);
             MeasureEvaluation evaluator = new MeasureEvaluation(seed.getDataProvider(), this.registry, seed.getMeasurementPeriod());
+            evaluator.setEvaluatedResources(resolveEvaluatedResourcesMode(null), HapiProperties.getMeasureEvaluationEvaluatedResourcesMax());
             // TODO - this is configured for patient-level evaluation only
             report = evaluator.evaluatePatientMeasure(seed.getMeasure(), seed.getContext(), patientRef);
 
@@ -330,7 +713,8 @@ public class MeasureOperationsProvider {
         // TODO: Spec says that the periods are not required, but I am not sure what to
         // do when they aren't supplied so I made them required
         MeasureReport report = evaluateMeasure(theId, periodStart, periodEnd, null, null,  patientRef, null,
-                practitionerRef, lastReceivedOn, null, null, null);
+                practitionerRef, lastReceivedOn, null, null, null, null, null,
+                EvaluatedResourcesMode.FULL.toCode(), null, null, null);
         report.setGroup(null);
 
         Parameters parameters = new Parameters();
@@ -1,9 +1,15 @@
 package org.opencds.cqf.dstu3.servlet;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import javax.servlet.ServletException;
 
+import org.cqframework.cql.elm.execution.VersionedIdentifier;
 import org.hl7.fhir.dstu3.model.ActivityDefinition;
 import org.hl7.fhir.dstu3.model.Bundle;
 import org.hl7.fhir.dstu3.model.CodeSystem;
@@ -12,13 +18,19 @@ import org.hl7.fhir.dstu3.model.Library;
 import org.hl7.fhir.dstu3.model.Measure;
 import org.hl7.fhir.dstu3.model.Meta;
 import org.hl7.fhir.dstu3.model.PlanDefinition;
+import org.hl7.fhir.dstu3.model.Reference;
 import org.hl7.fhir.dstu3.model.ValueSet;
 import org.hl7.fhir.instance.model.api.IBaseResource;
 import org.opencds.cqf.common.config.HapiProperties;
 import org.opencds.cqf.common.evaluation.EvaluationProviderFactory;
+import org.opencds.cqf.common.evaluation.LibraryPrewarmer;
+import org.opencds.cqf.common.interceptors.LibraryStorageInterceptor;
+import org.opencds.cqf.common.providers.LibraryResolutionProvider;
 import org.opencds.cqf.common.retrieve.JpaFhirRetrieveProvider;
+import org.opencds.cqf.common.retrieve.PagedResourceIterable;
 import org.opencds.cqf.cql.searchparam.SearchParameterResolver;
 import org.opencds.cqf.dstu3.evaluation.ProviderFactory;
+import org.opencds.cqf.dstu3.helpers.LibraryHelper;
 import org.opencds.cqf.dstu3.providers.ActivityDefinitionApplyProvider;
 import org.opencds.cqf.dstu3.providers.ApplyCqlOperationProvider;
 import org.opencds.cqf.dstu3.providers.CacheValueSetsProvider;
@@ -38,6 +50,7 @@ import org.springframework.context.ApplicationContext;
 import org.springframework.web.cors.CorsConfiguration;
 
 import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.interceptor.api.IInterceptorService;
 import ca.uhn.fhir.jpa.dao.DaoConfig;
 import ca.uhn.fhir.jpa.dao.DaoRegistry;
 import ca.uhn.fhir.jpa.dao.IFhirResourceDao;
@@ -50,6 +63,7 @@ import ca.uhn.fhir.jpa.rp.dstu3.LibraryResourceProvider;
 import ca.uhn.fhir.jpa.rp.dstu3.MeasureResourceProvider;
 import ca.uhn.fhir.jpa.rp.dstu3.ValueSetResourceProvider;
 import ca.uhn.fhir.jpa.search.DatabaseBackedPagingProvider;
+import ca.uhn.fhir.jpa.searchparam.SearchParameterMap;
 import ca.uhn.fhir.jpa.term.api.ITermReadSvcDstu3;
 import ca.uhn.fhir.jpa.util.ResourceProviderFactory;
 import ca.uhn.fhir.narrative.DefaultThymeleafNarrativeGenerator;
@@ -59,10 +73,17 @@ import ca.uhn.fhir.rest.server.RestfulServer;
 import ca.uhn.fhir.rest.server.interceptor.CorsInterceptor;
 import ca.uhn.fhir.rest.server.interceptor.ResponseHighlighterInterceptor;
 
+import com.google.common.collect.Iterables;
+
 public class BaseServlet extends RestfulServer {
     DaoRegistry registry;
     FhirContext fhirContext;
 
+    // Shared by all requests and shut down with the servlet
+    private ExecutorService queryExecutor;
+    private ExecutorService translationExecutor;
+    private ExecutorService evaluationExecutor;
+
     @SuppressWarnings("unchecked")
     @Override
     protected void initialize() throws ServletException {
@@ -98,7 +119,12 @@ public class BaseServlet extends RestfulServer {
         setServerConformanceProvider(confProvider);
 
         JpaTerminologyProvider localSystemTerminologyProvider = new JpaTerminologyProvider(appCtx.getBean("terminologyService", ITermReadSvcDstu3.class), getFhirContext(), (ValueSetResourceProvider)this.getResourceProvider(ValueSet.class));
-        EvaluationProviderFactory providerFactory = new ProviderFactory(this.fhirContext, this.registry, localSystemTerminologyProvider);
+        this.queryExecutor = createExecutor(HapiProperties.getRetrieveQueryThreads(), "retrieve-query");
+        this.translationExecutor = createExecutor(HapiProperties.getLibraryTranslationThreads(), "library-translation");
+        LibraryHelper.setTranslationExecutor(this.translationExecutor);
+        this.evaluationExecutor = createExecutor(HapiProperties.getMeasureEvaluationMaxThreads(), "measure-evaluation");
+        EvaluationProviderFactory providerFactory = new ProviderFactory(this.fhirContext, this.registry, localSystemTerminologyProvider,
+            this.queryExecutor);
 
         resolveProviders(providerFactory, localSystemTerminologyProvider, this.registry);
 
@@ -153,6 +179,12 @@ public class BaseServlet extends RestfulServer {
 
         registerProvider(appCtx.getBean(TerminologyUploaderProvider.class));
 
+        /*
+         * This interceptor keeps the library name index and the shared library cache
+         * up to date when Library resources change.
+         */
+        appCtx.getBean(IInterceptorService.class).registerInterceptor(new LibraryStorageInterceptor(this.fhirContext));
+
         if (HapiProperties.getCorsEnabled())
         {
             CorsConfiguration config = new CorsConfiguration();
@@ -212,7 +244,8 @@ public class BaseServlet extends RestfulServer {
 
         // Measure processing
         MeasureOperationsProvider measureProvider = new MeasureOperationsProvider(this.registry, providerFactory, narrativeProvider, hqmfProvider, 
-            libraryProvider, (MeasureResourceProvider)this.getResourceProvider(Measure.class));
+            libraryProvider, (MeasureResourceProvider)this.getResourceProvider(Measure.class), this.evaluationExecutor);
+        measureProvider.failInterruptedEvaluations();
         this.registerProvider(measureProvider);
 
         // // ActivityDefinition processing
@@ -220,7 +253,8 @@ public class BaseServlet extends RestfulServer {
         this.registerProvider(actDefProvider);
 
 
-        JpaFhirRetrieveProvider localSystemRetrieveProvider = new JpaFhirRetrieveProvider(registry, new SearchParameterResolver(this.fhirContext));
+        JpaFhirRetrieveProvider localSystemRetrieveProvider = new JpaFhirRetrieveProvider(registry, new SearchParameterResolver(this.fhirContext),
+            this.queryExecutor);
 
         // PlanDefinition processing
         PlanDefinitionApplyProvider planDefProvider = new PlanDefinitionApplyProvider(this.fhirContext, actDefProvider, this.getDao(PlanDefinition.class), this.getDao(ActivityDefinition.class), cql);
@@ -230,6 +264,99 @@ public class BaseServlet extends RestfulServer {
         CdsHooksServlet.setLibraryResolutionProvider(libraryProvider);
         CdsHooksServlet.setSystemTerminologyProvider(localSystemTerminologyProvider);
         CdsHooksServlet.setSystemRetrieveProvider(localSystemRetrieveProvider);
+
+        // Library prewarming
+        if (HapiProperties.getLibraryPrewarmEnabled()) {
+            LibraryPrewarmer.getInstance().start(
+                this.getPrewarmLibraries(libraryProvider),
+                x -> x.hasName() ? new VersionedIdentifier().withId(x.getName()).withVersion(x.getVersion()) : null,
+                () -> LibraryHelper.createLibraryLoader(libraryProvider),
+                HapiProperties.getLibraryPrewarmThreads());
+        }
+
+        // /health reports not ready until this point
+        LibraryPrewarmer.getInstance().register();
+    }
+
+    // Every Library, or the libraries referenced by Measures and PlanDefinitions, per library.prewarm.resources
+    private Iterable<Library> getPrewarmLibraries(LibraryResolutionProvider<Library> libraryProvider) {
+        Set<String> resources = HapiProperties.getLibraryPrewarmResources();
+        int pageSize = HapiProperties.getMeasureEvaluationPageSize();
+        List<Iterable<Library>> libraries = new ArrayList<>();
+        if (resources.contains("Library")) {
+            libraries.add(new PagedResourceIterable<Library>(this.getDao(Library.class).search(new SearchParameterMap()), pageSize));
+        }
+
+        if (resources.contains("Measure")) {
+            libraries.add(Iterables.concat(Iterables.transform(
+                new PagedResourceIterable<Measure>(this.getDao(Measure.class).search(new SearchParameterMap()), pageSize),
+                x -> resolveLibraries(x.getLibrary(), libraryProvider))));
+        }
+
+        if (resources.contains("PlanDefinition")) {
+            libraries.add(Iterables.concat(Iterables.transform(
+                new PagedResourceIterable<PlanDefinition>(this.getDao(PlanDefinition.class).search(new SearchParameterMap()), pageSize),
+                x -> resolveLibraries(x.getLibrary(), libraryProvider))));
+        }
+
+        return Iterables.concat(libraries);
+    }
+
+    // Contained and unresolvable libraries are skipped; they are loaded when their resource is evaluated
+    private static List<Library> resolveLibraries(List<Reference> references, LibraryResolutionProvider<Library> libraryProvider) {
+        List<Library> libraries = new ArrayList<>();
+        for (Reference reference : references) {
+            if (!reference.hasReference()) {
+                continue;
+            }
+
+            String id = reference.getReferenceElement().getIdPart();
+            if (id == null || id.startsWith("#")) {
+                continue;
+            }
+
+            try {
+                libraries.add(libraryProvider.resolveLibraryById(id));
+            }
+            catch (Exception e) {
+                continue;
+            }
+        }
+
+        return libraries;
+    }
+
+    @Override
+    public void destroy() {
+        super.destroy();
+
+        LibraryPrewarmer.getInstance().unregister();
+
+        LibraryHelper.setTranslationExecutor(null);
+        if (this.translationExecutor != null) {
+            this.translationExecutor.shutdownNow();
+        }
+
+        if (this.queryExecutor != null) {
+            this.queryExecutor.shutdownNow();
+        }
+
+        if (this.evaluationExecutor != null) {
+            this.evaluationExecutor.shutdownNow();
+        }
+    }
+
+    // Null if the work is not worth running on more than one thread
+    private static ExecutorService createExecutor(int threadCount, String threadName) {
+        if (threadCount < 2) {
+            return null;
+        }
+
+        return Executors.newFixedThreadPool(threadCount, runnable -> {
+            Thread thread = new Thread(runnable, threadName);
+            thread.setDaemon(true);
+            return thread;
+        });
     }
 
     protected <T extends IBaseResource> IFhirResourceDao<T> getDao(Class<T> clazz) {
@@ -37,6 +37,7 @@ import org.opencds.cqf.common.config.HapiProperties;
 import org.opencds.cqf.common.exceptions.InvalidRequestException;
 import org.opencds.cqf.common.providers.LibraryResolutionProvider;
 import org.opencds.cqf.common.retrieve.JpaFhirRetrieveProvider;
+import org.opencds.cqf.common.retrieve.RetrieveCache;
 import org.opencds.cqf.cql.data.CompositeDataProvider;
 import org.opencds.cqf.cql.execution.Context;
 import org.opencds.cqf.cql.execution.LibraryLoader;
@@ -171,7 +172,10 @@ public class CdsHooksServlet extends HttpServlet
 
             Stu3HookEvaluator evaluator = new Stu3HookEvaluator();
 
-            String jsonResponse = toJsonResponse(evaluator.evaluate(evaluationContext));
+            String jsonResponse;
+            try (RetrieveCache retrieveCache = RetrieveCache.open()) {
+                jsonResponse = toJsonResponse(evaluator.evaluate(evaluationContext));
+            }
 
             logger.info(jsonResponse);
 
@@ -0,0 +1,188 @@
+package org.opencds.cqf.r4.evaluation;
+
+import java.util.Date;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.CodeableConcept;
+import org.hl7.fhir.r4.model.Coding;
+import org.hl7.fhir.r4.model.IdType;
+import org.hl7.fhir.r4.model.Measure;
+import org.hl7.fhir.r4.model.MeasureReport;
+import org.hl7.fhir.r4.model.Reference;
+import org.hl7.fhir.r4.model.Task;
+import org.opencds.cqf.common.config.HapiProperties;
+
+import ca.uhn.fhir.jpa.dao.DaoRegistry;
+import ca.uhn.fhir.jpa.dao.IFhirResourceDao;
+import ca.uhn.fhir.jpa.searchparam.SearchParameterMap;
+import ca.uhn.fhir.rest.api.server.IBundleProvider;
+import ca.uhn.fhir.rest.param.TokenOrListParam;
+import ca.uhn.fhir.rest.param.TokenParam;
+import ca.uhn.fhir.rest.server.exceptions.ResourceVersionConflictException;
+
+/**
+ * Persists asynchronous $evaluate-measure jobs as Task resources in the server's own
+ * database. Clients poll a job by reading its Task, which carries the job's status and
+ * progress and, once the job has completed, a reference to the stored MeasureReport.
+ *
+ * The job's worker and $cancel change the same Task, so every change is made to the version
+ * of the Task it was checked against, and is checked again and retried if the Task has
+ * changed since; a job that has been cancelled is never marked as running or completed.
+ *
+ * Each Task is tagged with the node id of the server running the job, so that a server sharing
+ * its database with others only fails its own interrupted jobs when it starts.
+ */
+public class MeasureEvaluationJobStore {
+
+    public static final String TASK_CODE_SYSTEM = "http://hl7.org/fhir/OperationDefinition";
+    public static final String TASK_CODE = "Measure-evaluate-measure";
+    public static final String NODE_TAG_SYSTEM = "http://cqframework.org/fhir/measure-evaluation-node";
+
+    private static final int MAX_UPDATE_ATTEMPTS = 5;
+
+    private IFhirResourceDao<Task> taskDao;
+    private IFhirResourceDao<MeasureReport> measureReportDao;
+    private String nodeId;
+
+    public MeasureEvaluationJobStore(DaoRegistry registry) {
+        this.taskDao = registry.getResourceDao(Task.class);
+        this.measureReportDao = registry.getResourceDao(MeasureReport.class);
+        this.nodeId = HapiProperties.getServerNodeId();
+    }
+
+    public Task create(Measure measure) {
+        Task task = new Task();
+        task.setStatus(Task.TaskStatus.ACCEPTED);
+        task.setIntent(Task.TaskIntent.ORDER);
+        task.setCode(new CodeableConcept().addCoding(new Coding().setSystem(TASK_CODE_SYSTEM).setCode(TASK_CODE)));
+        task.setFocus(new Reference("Measure/" + measure.getIdElement().getIdPart()));
+        task.setAuthoredOn(new Date());
+        task.setLastModified(task.getAuthoredOn());
+        task.getMeta().addTag(NODE_TAG_SYSTEM, this.nodeId, null);
+
+        task.setId(this.taskDao.create(task).getId().toUnqualifiedVersionless());
+        return task;
+    }
+
+    // Returns null if the Task does not exist or is not a measure evaluation job
+    public Task read(String taskId) {
+        Task task = this.taskDao.read(new IdType("Task", taskId));
+        return isJob(task) ? task : null;
+    }
+
+    public void start(String taskId) {
+        change(taskId, task -> task.getStatus() == Task.TaskStatus.ACCEPTED,
+            task -> task.setStatus(Task.TaskStatus.INPROGRESS));
+    }
+
+    public void updateProgress(String taskId, int patientsEvaluated, Integer patientsTotal) {
+        change(taskId, task -> task.getStatus() == Task.TaskStatus.INPROGRESS,
+            task -> task.setBusinessStatus(new CodeableConcept().setText(patientsTotal != null
+                ? String.format("Evaluated %d of %d patients", patientsEvaluated, patientsTotal)
+                : String.format("Evaluated %d patients", patientsEvaluated))));
+    }
+
+    public boolean isInProgress(String taskId) {
+        Task task = read(taskId);
+        return task != null && task.getStatus() == Task.TaskStatus.INPROGRESS;
+    }
+
+    public void complete(String taskId, MeasureReport report) {
+        if (!isInProgress(taskId)) {
+            return;
+        }
+
+        String reportId = this.measureReportDao.create(report).getId().getIdPart();
+        Task task = change(taskId, t -> t.getStatus() == Task.TaskStatus.INPROGRESS, t -> {
+            t.setStatus(Task.TaskStatus.COMPLETED);
+            t.addOutput()
+                .setType(new CodeableConcept().setText("MeasureReport"))
+                .setValue(new Reference("MeasureReport/" + reportId));
+        });
+
+        // The job was cancelled while the report was being stored
+        if (task == null) {
+            this.measureReportDao.delete(new IdType("MeasureReport", reportId));
+        }
+    }
+
+    public void fail(String taskId, String message) {
+        change(taskId, this::isActive, task -> {
+            task.setStatus(Task.TaskStatus.FAILED);
+            task.setStatusReason(new CodeableConcept().setText(message));
+        });
+    }
+
+    public Task cancel(String taskId) {
+        Task task = change(taskId, this::isActive, t -> t.setStatus(Task.TaskStatus.CANCELLED));
+        if (task != null) {
+            return task;
+        }
+
+        task = read(taskId);
+        if (task == null) {
+            throw new IllegalArgumentException("Could not find a measure evaluation job for Task/" + taskId);
+        }
+
+        throw new IllegalArgumentException(String.format("Task/%s is already %s.", taskId, task.getStatus().toCode()));
+    }
+
+    // Jobs that were running on this server when it stopped can never finish, so mark them as failed.
+    // The jobs of other servers sharing the database are left to run.
+    public void failInterruptedJobs() {
+        SearchParameterMap map = new SearchParameterMap();
+        map.setLoadSynchronous(true);
+        map.add("code", new TokenParam(TASK_CODE_SYSTEM, TASK_CODE));
+        map.add("_tag", new TokenParam(NODE_TAG_SYSTEM, this.nodeId));
+        map.add("status", new TokenOrListParam()
+            .add(null, Task.TaskStatus.ACCEPTED.toCode())
+            .add(null, Task.TaskStatus.INPROGRESS.toCode()));
+
+        IBundleProvider bundleProvider = this.taskDao.search(map);
+        List<IBaseResource> tasks = bundleProvider.getResources(0, bundleProvider.size());
+        for (IBaseResource resource : tasks) {
+            fail(resource.getIdElement().getIdPart(), "The server was restarted before the evaluation finished.");
+        }
+    }
+
+    private boolean isActive(Task task) {
+        return task.getStatus() == Task.TaskStatus.ACCEPTED || task.getStatus() == Task.TaskStatus.INPROGRESS;
+    }
+
+    private boolean isJob(Task task) {
+        for (Coding coding : task.getCode().getCoding()) {
+            if (TASK_CODE_SYSTEM.equals(coding.getSystem()) && TASK_CODE.equals(coding.getCode())) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    // Returns the changed Task, or null if the job does not exist or canChange is false for it
+    private Task change(String taskId, Predicate<Task> canChange, Consumer<Task> change) {
+        for (int attempt = 1; ; attempt++) {
+            Task task = read(taskId);
+            if (task == null || !canChange.test(task)) {
+                return null;
+            }
+
+            // Updating a versioned id fails if the Task has changed since it was read
+            task.setId(task.getIdElement().withVersion(task.getMeta().getVersionId()));
+            change.accept(task);
+            task.setLastModified(new Date());
+            try {
+                this.taskDao.update(task);
+                return task;
+            }
+            catch (ResourceVersionConflictException e) {
+                if (attempt >= MAX_UPDATE_ATTEMPTS) {
+                    throw e;
+                }
+            }
+        }
+    }
+}
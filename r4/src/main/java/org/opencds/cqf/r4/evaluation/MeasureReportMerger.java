@@ -0,0 +1,258 @@
+package org.opencds.cqf.r4.evaluation;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.UUID;
+
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Extension;
+import org.hl7.fhir.r4.model.ListResource;
+import org.hl7.fhir.r4.model.MeasureReport;
+import org.hl7.fhir.r4.model.Quantity;
+import org.hl7.fhir.r4.model.Reference;
+import org.hl7.fhir.r4.model.Resource;
+import org.opencds.cqf.common.evaluation.MeasurePopulationType;
+import org.opencds.cqf.common.evaluation.NdjsonResourceWriter;
+import org.opencds.cqf.common.evaluation.PatientPartition;
+import org.opencds.cqf.r4.helpers.FhirMeasureBundler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Combines the population and patient-list MeasureReports of the partitions of an evaluation
+ * into the report for all patients. Population counts are summed, subject lists and
+ * evaluated resources are concatenated and the measure score is recomputed from the merged
+ * numerator and denominator counts.
+ */
+public class MeasureReportMerger {
+
+    private static final Logger logger = LoggerFactory.getLogger(MeasureReportMerger.class);
+
+    private int maxEvaluatedResources;
+    private boolean evaluatedResourcesTruncated = false;
+
+    // A maximum below 1 means no limit
+    public MeasureReportMerger(int maxEvaluatedResources) {
+        this.maxEvaluatedResources = maxEvaluatedResources > 0 ? maxEvaluatedResources : Integer.MAX_VALUE;
+    }
+
+    public MeasureReport merge(List<MeasureReport> reports) {
+        if (reports == null || reports.isEmpty()) {
+            throw new IllegalArgumentException("At least one MeasureReport is required.");
+        }
+
+        MeasureReport first = reports.get(0);
+        if (first.getType() == MeasureReport.MeasureReportType.INDIVIDUAL) {
+            throw new IllegalArgumentException("Individual MeasureReports cannot be merged.");
+        }
+
+        for (MeasureReport report : reports) {
+            if (!Objects.equals(report.getMeasure(), first.getMeasure())) {
+                throw new IllegalArgumentException("MeasureReports of different measures cannot be merged.");
+            }
+
+            if (report.getType() != first.getType()) {
+                throw new IllegalArgumentException("MeasureReports of different types cannot be merged.");
+            }
+
+            if (!Objects.equals(report.getPeriod().getStartElement().getValueAsString(), first.getPeriod().getStartElement().getValueAsString())
+                    || !Objects.equals(report.getPeriod().getEndElement().getValueAsString(), first.getPeriod().getEndElement().getValueAsString())) {
+                throw new IllegalArgumentException("MeasureReports of different periods cannot be merged.");
+            }
+
+            if (report.getGroup().size() != first.getGroup().size()) {
+                throw new IllegalArgumentException("MeasureReports with different groups cannot be merged.");
+            }
+        }
+
+        checkPartitions(reports);
+
+        MeasureReport merged = first.copy();
+        merged.setId((String) null);
+        merged.getExtension().removeIf(extension -> PatientPartition.EXTENSION_URL.equals(extension.getUrl())
+            || NdjsonResourceWriter.EXTENSION_URL.equals(extension.getUrl()));
+        merged.setContained(new ArrayList<>());
+        merged.setEvaluatedResource(new ArrayList<>());
+        for (MeasureReport.MeasureReportGroupComponent group : merged.getGroup()) {
+            group.setMeasureScore(null);
+            for (MeasureReport.MeasureReportGroupPopulationComponent population : group.getPopulation()) {
+                population.setCount(0);
+                population.setSubjectResults(null);
+            }
+        }
+
+        // Population components do not override equals, so they are matched by identity
+        Map<MeasureReport.MeasureReportGroupPopulationComponent, ListResource> subjectLists = new IdentityHashMap<>();
+        Map<String, Resource> evaluatedResources = new LinkedHashMap<>();
+        Map<String, Set<String>> evaluatedResourceIds = new LinkedHashMap<>();
+        for (MeasureReport report : reports) {
+            Map<String, Resource> contained = new HashMap<>();
+            for (Resource resource : report.getContained()) {
+                contained.put(stripHash(resource.getIdElement().getIdPart()), resource);
+            }
+
+            for (int i = 0; i < report.getGroup().size(); i++) {
+                for (MeasureReport.MeasureReportGroupPopulationComponent population : report.getGroup().get(i).getPopulation()) {
+                    MeasureReport.MeasureReportGroupPopulationComponent mergedPopulation = getPopulation(merged.getGroup().get(i), getCode(population));
+                    if (mergedPopulation == null) {
+                        throw new IllegalArgumentException("MeasureReports with different populations cannot be merged.");
+                    }
+
+                    mergedPopulation.setCount(mergedPopulation.getCount() + population.getCount());
+                    Resource subjects = population.hasSubjectResults() ? contained.get(stripHash(population.getSubjectResults().getReference())) : null;
+                    if (subjects instanceof ListResource) {
+                        subjectLists.computeIfAbsent(mergedPopulation, x -> new ListResource()).getEntry().addAll(((ListResource) subjects).getEntry());
+                    }
+                }
+            }
+
+            for (Reference reference : report.getEvaluatedResource()) {
+                Resource bundle = contained.get(stripHash(reference.getReference()));
+                if (bundle instanceof Bundle) {
+                    addEvaluatedResources((Bundle) bundle, evaluatedResources, evaluatedResourceIds);
+                }
+            }
+
+            // Every partition evaluated to NDJSON has its own file
+            for (Extension extension : report.getExtension()) {
+                if (NdjsonResourceWriter.EXTENSION_URL.equals(extension.getUrl())) {
+                    merged.addExtension(extension.copy());
+                }
+            }
+        }
+
+        for (MeasureReport.MeasureReportGroupComponent group : merged.getGroup()) {
+            MeasureReport.MeasureReportGroupPopulationComponent numerator = getPopulation(group, MeasurePopulationType.NUMERATOR.toCode());
+            MeasureReport.MeasureReportGroupPopulationComponent denominator = getPopulation(group, MeasurePopulationType.DENOMINATOR.toCode());
+            if (numerator != null && denominator != null && denominator.getCount() > 0) {
+                group.setMeasureScore(new Quantity(numerator.getCount() / (double) denominator.getCount()));
+            }
+
+            for (MeasureReport.MeasureReportGroupPopulationComponent population : group.getPopulation()) {
+                ListResource subjectList = subjectLists.get(population);
+                if (subjectList != null) {
+                    subjectList.setId(UUID.randomUUID().toString());
+                    population.setSubjectResults(new Reference().setReference("#" + subjectList.getId()));
+                    merged.addContained(subjectList);
+                }
+            }
+        }
+
+        if (!evaluatedResourceIds.isEmpty()) {
+            List<Resource> bundleResources = new ArrayList<>(evaluatedResources.values());
+            for (Map.Entry<String, Set<String>> entry : evaluatedResourceIds.entrySet()) {
+                ListResource list = new ListResource();
+                list.setId(UUID.randomUUID().toString());
+                list.setTitle(entry.getKey());
+                for (String id : entry.getValue()) {
+                    list.addEntry(new ListResource.ListEntryComponent()
+                        .setItem(new Reference(evaluatedResources.containsKey(id) ? '#' + id : id)));
+                }
+                bundleResources.add(list);
+            }
+
+            Bundle bundle = new FhirMeasureBundler().bundle(bundleResources);
+            bundle.setId(UUID.randomUUID().toString());
+            merged.addEvaluatedResource(new Reference('#' + bundle.getId()));
+            merged.addContained(bundle);
+        }
+
+        return merged;
+    }
+
+    // The partitions of the reports, if any, must be distinct and complete
+    private void checkPartitions(List<MeasureReport> reports) {
+        Set<Integer> partitions = new HashSet<>();
+        int partitionCount = 0;
+        for (MeasureReport report : reports) {
+            PatientPartition partition = getPartition(report);
+            if (partition == null) {
+                continue;
+            }
+
+            if (partitionCount != 0 && partitionCount != partition.getPartitionCount()) {
+                throw new IllegalArgumentException("MeasureReports of different partition counts cannot be merged.");
+            }
+
+            partitionCount = partition.getPartitionCount();
+            if (!partitions.add(partition.getPartition())) {
+                throw new IllegalArgumentException("Partition " + partition + " is included more than once.");
+            }
+        }
+
+        if (partitions.isEmpty()) {
+            return;
+        }
+
+        if (partitions.size() != reports.size()) {
+            throw new IllegalArgumentException("Partitioned and unpartitioned MeasureReports cannot be merged.");
+        }
+
+        if (partitions.size() != partitionCount) {
+            throw new IllegalArgumentException(String.format("Only %d of %d partitions are included.", partitions.size(), partitionCount));
+        }
+    }
+
+    private static PatientPartition getPartition(MeasureReport report) {
+        for (Extension extension : report.getExtension()) {
+            if (PatientPartition.EXTENSION_URL.equals(extension.getUrl()) && extension.hasValue()) {
+                return PatientPartition.fromString(extension.getValue().primitiveValue());
+            }
+        }
+
+        return null;
+    }
+
+    private void addEvaluatedResources(Bundle bundle, Map<String, Resource> evaluatedResources, Map<String, Set<String>> evaluatedResourceIds) {
+        for (Bundle.BundleEntryComponent entry : bundle.getEntry()) {
+            Resource resource = entry.getResource();
+            if (resource instanceof ListResource) {
+                Set<String> ids = evaluatedResourceIds.computeIfAbsent(((ListResource) resource).getTitle(), x -> new LinkedHashSet<>());
+                for (ListResource.ListEntryComponent item : ((ListResource) resource).getEntry()) {
+                    ids.add(stripHash(item.getItem().getReference()));
+                }
+            }
+            else if (resource != null) {
+                String key = resource.fhirType() + "/" + resource.getIdElement().getIdPart();
+                if (evaluatedResources.containsKey(key)) {
+                    continue;
+                }
+
+                if (evaluatedResources.size() < this.maxEvaluatedResources) {
+                    evaluatedResources.put(key, resource);
+                }
+                else if (!this.evaluatedResourcesTruncated) {
+                    this.evaluatedResourcesTruncated = true;
+                    logger.warn("Only the first {} evaluated resources are contained in the merged report, the rest are referenced by id",
+                        this.maxEvaluatedResources);
+                }
+            }
+        }
+    }
+
+    private static MeasureReport.MeasureReportGroupPopulationComponent getPopulation(MeasureReport.MeasureReportGroupComponent group, String code) {
+        for (MeasureReport.MeasureReportGroupPopulationComponent population : group.getPopulation()) {
+            if (Objects.equals(getCode(population), code)) {
+                return population;
+            }
+        }
+
+        return null;
+    }
+
+    private static String getCode(MeasureReport.MeasureReportGroupPopulationComponent population) {
+        return population.getCode().getCodingFirstRep().getCode();
+    }
+
+    private static String stripHash(String reference) {
+        return reference != null && reference.startsWith("#") ? reference.substring(1) : reference;
+    }
+}
@@ -5,11 +5,11 @@ import ca.uhn.fhir.rest.annotation.IdParam;
 import ca.uhn.fhir.rest.annotation.Operation;
 import ca.uhn.fhir.rest.annotation.OperationParam;
 import org.cqframework.cql.cql2elm.LibraryManager;
-import org.cqframework.cql.cql2elm.ModelManager;
 import org.cqframework.cql.elm.execution.Library;
 import org.hl7.fhir.r4.model.*;
 import org.hl7.fhir.exceptions.FHIRException;
 import org.opencds.cqf.common.evaluation.EvaluationProviderFactory;
+import org.opencds.cqf.common.evaluation.SharedModelManager;
 import org.opencds.cqf.common.helpers.TranslatorHelper;
 import org.opencds.cqf.cql.execution.Context;
 import org.opencds.cqf.cql.runtime.DateTime;
@@ -63,7 +63,7 @@ public class ApplyCqlOperationProvider {
                     AbstractMap.SimpleEntry<String, String> extensions = getExtension(base);
                     if (extensions != null) {
                         String cql = String.format("using FHIR version '4.0.0' define x: %s", extensions.getValue());
-                        library = TranslatorHelper.translateLibrary(cql, new LibraryManager(new ModelManager()), new ModelManager());
+                        library = TranslatorHelper.translateLibrary(cql, new LibraryManager(SharedModelManager.getInstance()), SharedModelManager.getInstance());
                         context = new Context(library);
                         context.registerDataProvider("http://hl7.org/fhir", this.providerFactory.createDataProvider("FHIR", "4.0.0"));
                         Object result = context.resolveExpressionRef("x").getExpression().evaluate(context);
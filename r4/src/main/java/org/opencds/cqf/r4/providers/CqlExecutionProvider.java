@@ -170,8 +170,7 @@ public class CqlExecutionProvider {
         
         LibraryLoader libraryLoader = LibraryHelper.createLibraryLoader(this.getLibraryResourceProvider());
         
-        org.cqframework.cql.elm.execution.Library library = TranslatorHelper.translateLibrary(source,
-                libraryLoader.getLibraryManager(), libraryLoader.getModelManager());
+        org.cqframework.cql.elm.execution.Library library = libraryLoader.translateLocalLibrary("LocalLibrary", source);
         
         // resolve execution context
         Context context = setupContext(instance, patientId, libraryLoader, library);
@@ -2,16 +2,21 @@ package org.opencds.cqf.r4.providers;
 
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Base64;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.Deque;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
 import java.util.Objects;
 import java.util.stream.Collectors;
 
@@ -45,6 +50,7 @@ import org.cqframework.cql.tools.formatter.CqlFormatterVisitor.FormatResult;
 import org.hl7.elm.r1.ValueSetRef;
 import org.hl7.fhir.r4.model.Attachment;
 import org.hl7.fhir.r4.model.Base64BinaryType;
+import org.hl7.fhir.r4.model.CanonicalType;
 import org.hl7.fhir.r4.model.CodeableConcept;
 import org.hl7.fhir.r4.model.Coding;
 import org.hl7.fhir.r4.model.DataRequirement;
@@ -54,6 +60,7 @@ import org.hl7.fhir.r4.model.Measure;
 import org.hl7.fhir.r4.model.ParameterDefinition;
 import org.hl7.fhir.r4.model.RelatedArtifact;
 import org.hl7.fhir.r4.model.StringType;
+import org.opencds.cqf.common.config.HapiProperties;
 import org.opencds.cqf.common.helpers.TranslatorHelper;
 import org.opencds.cqf.common.providers.LibraryResolutionProvider;
 import org.opencds.cqf.cql.execution.LibraryLoader;
@@ -68,6 +75,15 @@ import org.opencds.cqf.r4.helpers.LibraryHelper;
 
 public class DataRequirementsProvider {
 
+    // The data types retrieved by the libraries of a Measure, by the content key of the libraries
+    private static final Map<String, Set<String>> retrievedDataTypesCache = Collections.synchronizedMap(
+        new LinkedHashMap<String, Set<String>>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Set<String>> eldest) {
+                return size() > HapiProperties.getLibraryCacheSize();
+            }
+        });
+
     // For creating the CQF measure we need to:
     // 1. Find the Primary Library Resource
     // 2. Load the Primary Library as ELM. This will recursively load the dependent libraries as ELM by Name
@@ -503,6 +519,84 @@ public class DataRequirementsProvider {
     }
 
 
+    // The data types retrieved by the logic of the Measure and every library it includes, found
+    // with the same retrieve analysis as ensureDataRequirements. The analysis translates the
+    // libraries again, so its result is cached until the source of any of them changes.
+    public Set<String> getRetrievedDataTypes(Measure measure, LibraryResolutionProvider<org.hl7.fhir.r4.model.Library> libraryResourceProvider,
+            org.opencds.cqf.common.evaluation.LibraryLoader libraryLoader) {
+        String contentKey = getLibraryContentKey(measure, libraryResourceProvider, libraryLoader);
+        Set<String> cached = contentKey == null ? null : retrievedDataTypesCache.get(contentKey);
+        if (cached != null) {
+            return new HashSet<>(cached);
+        }
+
+        Set<String> dataTypes = new HashSet<>();
+        Set<String> visited = new HashSet<>();
+        Deque<org.hl7.fhir.r4.model.Library> pending = new ArrayDeque<>();
+
+        for (CanonicalType ref : measure.getLibrary()) {
+            String id = CanonicalHelper.getId(ref);
+            if (id.startsWith("#")) {
+                id = id.substring(1);
+            }
+
+            pending.add(libraryResourceProvider.resolveLibraryById(id));
+        }
+
+        while (!pending.isEmpty()) {
+            org.hl7.fhir.r4.model.Library library = pending.poll();
+            if (library == null || !visited.add(library.getName() + "|" + library.getVersion())) {
+                continue;
+            }
+
+            CqlTranslator translator = getTranslator(library, libraryLoader.getLibraryManager(), libraryLoader.getModelManager());
+            if (translator == null) {
+                continue;
+            }
+
+            for (org.hl7.elm.r1.Retrieve retrieve : translator.toRetrieves()) {
+                dataTypes.add(retrieve.getDataType().getLocalPart());
+            }
+
+            org.hl7.elm.r1.Library elm = translator.toELM();
+            if (elm.getIncludes() != null) {
+                for (org.hl7.elm.r1.IncludeDef def : elm.getIncludes().getDef()) {
+                    pending.add(libraryResourceProvider.resolveLibraryByName(def.getPath(), def.getVersion()));
+                }
+            }
+        }
+
+        if (contentKey != null) {
+            retrievedDataTypesCache.put(contentKey, new HashSet<>(dataTypes));
+        }
+
+        return dataTypes;
+    }
+
+    // A key for the source of the Measure's libraries and every library they include. Null if the
+    // source of any of them is unknown, since they cannot be known to be unchanged.
+    public String getLibraryContentKey(Measure measure, LibraryResolutionProvider<org.hl7.fhir.r4.model.Library> libraryResourceProvider,
+            org.opencds.cqf.common.evaluation.LibraryLoader libraryLoader) {
+        List<String> contentKeys = new ArrayList<>();
+        for (CanonicalType ref : measure.getLibrary()) {
+            String id = CanonicalHelper.getId(ref);
+            if (id.startsWith("#")) {
+                id = id.substring(1);
+            }
+
+            org.hl7.fhir.r4.model.Library library = libraryResourceProvider.resolveLibraryById(id);
+            String contentKey = library == null ? null
+                : libraryLoader.getContentKey(new VersionedIdentifier().withId(library.getName()).withVersion(library.getVersion()));
+            if (contentKey == null) {
+                return null;
+            }
+
+            contentKeys.add(contentKey);
+        }
+
+        return String.join(",", contentKeys);
+    }
+
     public CqlTranslator getTranslator(org.hl7.fhir.r4.model.Library library, LibraryManager libraryManager, ModelManager modelManager) {
         Attachment cql = null;
         for (Attachment a : library.getContent()) {
@@ -548,6 +642,13 @@ public class DataRequirementsProvider {
         Attachment elm = new Attachment();
         elm.setContentType("application/elm+xml");
         elm.setData(xml.getBytes());
+        elm.addExtension().setUrl(TranslatorHelper.TRANSLATOR_INFO_EXTENSION_URL).setValue(new StringType(TranslatorHelper.getTranslatorInfo()));
+        for (Attachment cql : library.getContent()) {
+            if (cql.getContentType().equals("text/cql") && cql.getData() != null) {
+                elm.addExtension().setUrl(TranslatorHelper.CQL_HASH_EXTENSION_URL).setValue(new StringType(TranslatorHelper.getContentHash(cql.getData())));
+                break;
+            }
+        }
         library.getContent().add(elm);
     }
 
@@ -1,7 +1,7 @@
 package org.opencds.cqf.r4.providers;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.util.HashMap;
+import java.util.Map;
 
 import javax.servlet.http.HttpServletRequest;
 
@@ -13,6 +13,8 @@ import org.hl7.fhir.r4.model.Library;
 import org.hl7.fhir.r4.model.Narrative;
 import org.hl7.fhir.r4.model.Parameters;
 import org.hl7.fhir.r4.model.StringType;
+import org.opencds.cqf.common.evaluation.SharedModelManager;
+import org.opencds.cqf.common.providers.LibraryIndex;
 import org.opencds.cqf.common.providers.LibraryResolutionProvider;
 import org.opencds.cqf.common.providers.LibrarySourceProvider;
 import org.opencds.cqf.library.r4.NarrativeProvider;
@@ -26,6 +28,8 @@ import ca.uhn.fhir.rest.api.server.RequestDetails;
 import ca.uhn.fhir.jpa.rp.r4.LibraryResourceProvider;
 import ca.uhn.fhir.jpa.searchparam.SearchParameterMap;
 import ca.uhn.fhir.rest.param.StringParam;
+import ca.uhn.fhir.rest.server.exceptions.ResourceGoneException;
+import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
 
 import org.hl7.fhir.instance.model.api.IBaseResource;
 
@@ -42,7 +46,7 @@ public class LibraryOperationsProvider implements LibraryResolutionProvider<org.
     }
 
     private ModelManager getModelManager() {
-        return new ModelManager();
+        return SharedModelManager.getInstance();
     }
 
     private LibraryManager getLibraryManager(ModelManager modelManager)
@@ -150,35 +154,43 @@ public class LibraryOperationsProvider implements LibraryResolutionProvider<org.
 
     @Override
     public Library resolveLibraryByName(String libraryName, String libraryVersion) {
-        Iterable<org.hl7.fhir.r4.model.Library> libraries = getLibrariesByName(libraryName);
-        org.hl7.fhir.r4.model.Library library = LibraryResolutionProvider.selectFromList(libraries, libraryVersion, x -> x.getVersion());
+        LibraryIndex index = LibraryIndex.getInstance(this.libraryResourceProvider.getContext());
+        if (!index.contains(libraryName)) {
+            indexLibraries(libraryName);
+        }
 
-        if (library == null) {
+        String id = index.getId(libraryName, libraryVersion);
+        if (id == null) {
             throw new IllegalArgumentException(String.format("Could not resolve library name %s", libraryName));
         }
 
-        return library;
+        try {
+            return this.libraryResourceProvider.getDao().read(new IdType("Library", id));
+        }
+        catch (ResourceNotFoundException | ResourceGoneException e) {
+            // The index is out of date, e.g. because a change to the library was rolled back
+            index.invalidate(libraryName);
+            throw new IllegalArgumentException(String.format("Could not resolve library name %s", libraryName));
+        }
     }
 
-    private Iterable<org.hl7.fhir.r4.model.Library> getLibrariesByName(String name) {
+    private void indexLibraries(String name) {
+        LibraryIndex index = LibraryIndex.getInstance(this.libraryResourceProvider.getContext());
+        long generation = index.getGeneration(name);
+
         // Search for libraries by name
         SearchParameterMap map = new SearchParameterMap();
         map.add("name", new StringParam(name, true));
         ca.uhn.fhir.rest.api.server.IBundleProvider bundleProvider = this.libraryResourceProvider.getDao().search(map);
 
-        if (bundleProvider.size() == 0) {
-            return new ArrayList<>();
-        }
-        List<IBaseResource> resourceList = bundleProvider.getResources(0, bundleProvider.size());
-        return resolveLibraries(resourceList);
-    }
-    
-    private Iterable<org.hl7.fhir.r4.model.Library> resolveLibraries(List< IBaseResource > resourceList) {
-        List<org.hl7.fhir.r4.model.Library> ret = new ArrayList<>();
-        for (IBaseResource res : resourceList) {
-            Class<?> clazz = res.getClass();
-            ret.add((org.hl7.fhir.r4.model.Library)clazz.cast(res));
+        Map<String, String> idsByVersion = new HashMap<>();
+        if (bundleProvider.size() > 0) {
+            for (IBaseResource res : bundleProvider.getResources(0, bundleProvider.size())) {
+                org.hl7.fhir.r4.model.Library library = (org.hl7.fhir.r4.model.Library) res;
+                idsByVersion.put(library.getVersion(), library.getIdElement().getIdPart());
+            }
         }
-        return ret;
+
+        index.put(name, idsByVersion, generation);
     }
 }
\ No newline at end of file
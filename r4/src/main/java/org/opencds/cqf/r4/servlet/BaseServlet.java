@@ -1,12 +1,19 @@
 package org.opencds.cqf.r4.servlet;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import javax.servlet.ServletException;
 
+import org.cqframework.cql.elm.execution.VersionedIdentifier;
 import org.hl7.fhir.instance.model.api.IBaseResource;
 import org.hl7.fhir.r4.model.ActivityDefinition;
 import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.CanonicalType;
 import org.hl7.fhir.r4.model.CodeSystem;
 import org.hl7.fhir.r4.model.Endpoint;
 import org.hl7.fhir.r4.model.Library;
@@ -16,7 +23,11 @@ import org.hl7.fhir.r4.model.PlanDefinition;
 import org.hl7.fhir.r4.model.ValueSet;
 import org.opencds.cqf.common.config.HapiProperties;
 import org.opencds.cqf.common.evaluation.EvaluationProviderFactory;
+import org.opencds.cqf.common.evaluation.LibraryPrewarmer;
+import org.opencds.cqf.common.interceptors.LibraryStorageInterceptor;
+import org.opencds.cqf.common.providers.LibraryResolutionProvider;
 import org.opencds.cqf.common.retrieve.JpaFhirRetrieveProvider;
+import org.opencds.cqf.common.retrieve.PagedResourceIterable;
 import org.opencds.cqf.cql.searchparam.SearchParameterResolver;
 import org.opencds.cqf.library.r4.NarrativeProvider;
 import org.opencds.cqf.measure.r4.CodeTerminologyRef;
@@ -24,6 +35,8 @@ import org.opencds.cqf.measure.r4.CqfMeasure;
 import org.opencds.cqf.measure.r4.PopulationCriteriaMap;
 import org.opencds.cqf.measure.r4.VersionedTerminologyRef;
 import org.opencds.cqf.r4.evaluation.ProviderFactory;
+import org.opencds.cqf.r4.helpers.CanonicalHelper;
+import org.opencds.cqf.r4.helpers.LibraryHelper;
 import org.opencds.cqf.r4.providers.ActivityDefinitionApplyProvider;
 import org.opencds.cqf.r4.providers.ApplyCqlOperationProvider;
 import org.opencds.cqf.r4.providers.CacheValueSetsProvider;
@@ -38,6 +51,7 @@ import org.springframework.context.ApplicationContext;
 import org.springframework.web.cors.CorsConfiguration;
 
 import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.interceptor.api.IInterceptorService;
 import ca.uhn.fhir.jpa.dao.DaoConfig;
 import ca.uhn.fhir.jpa.dao.DaoRegistry;
 import ca.uhn.fhir.jpa.dao.IFhirResourceDao;
@@ -50,6 +64,7 @@ import ca.uhn.fhir.jpa.rp.r4.LibraryResourceProvider;
 import ca.uhn.fhir.jpa.rp.r4.MeasureResourceProvider;
 import ca.uhn.fhir.jpa.rp.r4.ValueSetResourceProvider;
 import ca.uhn.fhir.jpa.search.DatabaseBackedPagingProvider;
+import ca.uhn.fhir.jpa.searchparam.SearchParameterMap;
 import ca.uhn.fhir.jpa.term.api.ITermReadSvcR4;
 import ca.uhn.fhir.jpa.util.ResourceProviderFactory;
 import ca.uhn.fhir.narrative.DefaultThymeleafNarrativeGenerator;
@@ -59,10 +74,17 @@ import ca.uhn.fhir.rest.server.RestfulServer;
 import ca.uhn.fhir.rest.server.interceptor.CorsInterceptor;
 import ca.uhn.fhir.rest.server.interceptor.ResponseHighlighterInterceptor;
 
+import com.google.common.collect.Iterables;
+
 public class BaseServlet extends RestfulServer {
     DaoRegistry registry;
     FhirContext fhirContext;
 
+    // Shared by all requests and shut down with the servlet
+    private ExecutorService queryExecutor;
+    private ExecutorService translationExecutor;
+    private ExecutorService evaluationExecutor;
+
     @SuppressWarnings("unchecked")
     @Override
     protected void initialize() throws ServletException {
@@ -99,7 +121,12 @@ public class BaseServlet extends RestfulServer {
         setServerConformanceProvider(confProvider);
 
         JpaTerminologyProvider localSystemTerminologyProvider = new JpaTerminologyProvider(appCtx.getBean("terminologyService",  ITermReadSvcR4.class), getFhirContext(), (ValueSetResourceProvider)this.getResourceProvider(ValueSet.class));
-        EvaluationProviderFactory providerFactory = new ProviderFactory(this.fhirContext, this.registry, localSystemTerminologyProvider);
+        this.queryExecutor = createExecutor(HapiProperties.getRetrieveQueryThreads(), "retrieve-query");
+        this.translationExecutor = createExecutor(HapiProperties.getLibraryTranslationThreads(), "library-translation");
+        LibraryHelper.setTranslationExecutor(this.translationExecutor);
+        this.evaluationExecutor = createExecutor(HapiProperties.getMeasureEvaluationMaxThreads(), "measure-evaluation");
+        EvaluationProviderFactory providerFactory = new ProviderFactory(this.fhirContext, this.registry, localSystemTerminologyProvider,
+            this.queryExecutor);
 
         resolveProviders(providerFactory, localSystemTerminologyProvider, this.registry);
 
@@ -156,6 +183,12 @@ public class BaseServlet extends RestfulServer {
 
         registerProvider(appCtx.getBean(TerminologyUploaderProvider.class));
 
+        /*
+         * This interceptor keeps the library name index and the shared library cache
+         * up to date when Library resources change.
+         */
+        appCtx.getBean(IInterceptorService.class).registerInterceptor(new LibraryStorageInterceptor(this.fhirContext));
+
         if (HapiProperties.getCorsEnabled())
         {
             CorsConfiguration config = new CorsConfiguration();
@@ -215,14 +248,16 @@ public class BaseServlet extends RestfulServer {
 
         // Measure processing
         MeasureOperationsProvider measureProvider = new MeasureOperationsProvider(this.registry, providerFactory, narrativeProvider, hqmfProvider, 
-            libraryProvider, (MeasureResourceProvider)this.getResourceProvider(Measure.class));
+            libraryProvider, (MeasureResourceProvider)this.getResourceProvider(Measure.class), this.evaluationExecutor);
+        measureProvider.failInterruptedEvaluations();
         this.registerProvider(measureProvider);
 
         // // ActivityDefinition processing
         ActivityDefinitionApplyProvider actDefProvider = new ActivityDefinitionApplyProvider(this.fhirContext, cql, this.getDao(ActivityDefinition.class));
         this.registerProvider(actDefProvider);
 
-        JpaFhirRetrieveProvider localSystemRetrieveProvider = new JpaFhirRetrieveProvider(registry, new SearchParameterResolver(this.fhirContext));
+        JpaFhirRetrieveProvider localSystemRetrieveProvider = new JpaFhirRetrieveProvider(registry, new SearchParameterResolver(this.fhirContext),
+            this.queryExecutor);
 
         // PlanDefinition processing
         PlanDefinitionApplyProvider planDefProvider = new PlanDefinitionApplyProvider(this.fhirContext, actDefProvider, this.getDao(PlanDefinition.class), this.getDao(ActivityDefinition.class), cql);
@@ -232,6 +267,99 @@ public class BaseServlet extends RestfulServer {
         CdsHooksServlet.setLibraryResolutionProvider(libraryProvider);
         CdsHooksServlet.setSystemTerminologyProvider(localSystemTerminologyProvider);
         CdsHooksServlet.setSystemRetrieveProvider(localSystemRetrieveProvider);
+
+        // Library prewarming
+        if (HapiProperties.getLibraryPrewarmEnabled()) {
+            LibraryPrewarmer.getInstance().start(
+                this.getPrewarmLibraries(libraryProvider),
+                x -> x.hasName() ? new VersionedIdentifier().withId(x.getName()).withVersion(x.getVersion()) : null,
+                () -> LibraryHelper.createLibraryLoader(libraryProvider),
+                HapiProperties.getLibraryPrewarmThreads());
+        }
+
+        // /health reports not ready until this point
+        LibraryPrewarmer.getInstance().register();
+    }
+
+    // Every Library, or the libraries referenced by Measures and PlanDefinitions, per library.prewarm.resources
+    private Iterable<Library> getPrewarmLibraries(LibraryResolutionProvider<Library> libraryProvider) {
+        Set<String> resources = HapiProperties.getLibraryPrewarmResources();
+        int pageSize = HapiProperties.getMeasureEvaluationPageSize();
+        List<Iterable<Library>> libraries = new ArrayList<>();
+        if (resources.contains("Library")) {
+            libraries.add(new PagedResourceIterable<Library>(this.getDao(Library.class).search(new SearchParameterMap()), pageSize));
+        }
+
+        if (resources.contains("Measure")) {
+            libraries.add(Iterables.concat(Iterables.transform(
+                new PagedResourceIterable<Measure>(this.getDao(Measure.class).search(new SearchParameterMap()), pageSize),
+                x -> resolveLibraries(x.getLibrary(), libraryProvider))));
+        }
+
+        if (resources.contains("PlanDefinition")) {
+            libraries.add(Iterables.concat(Iterables.transform(
+                new PagedResourceIterable<PlanDefinition>(this.getDao(PlanDefinition.class).search(new SearchParameterMap()), pageSize),
+                x -> resolveLibraries(x.getLibrary(), libraryProvider))));
+        }
+
+        return Iterables.concat(libraries);
+    }
+
+    // Contained and unresolvable libraries are skipped; they are loaded when their resource is evaluated
+    private static List<Library> resolveLibraries(List<CanonicalType> references, LibraryResolutionProvider<Library> libraryProvider) {
+        List<Library> libraries = new ArrayList<>();
+        for (CanonicalType reference : references) {
+            if (!reference.hasValue()) {
+                continue;
+            }
+
+            String id = CanonicalHelper.getId(reference);
+            if (id == null || id.startsWith("#")) {
+                continue;
+            }
+
+            try {
+                libraries.add(libraryProvider.resolveLibraryById(id));
+            }
+            catch (Exception e) {
+                continue;
+            }
+        }
+
+        return libraries;
+    }
+
+    @Override
+    public void destroy() {
+        super.destroy();
+
+        LibraryPrewarmer.getInstance().unregister();
+
+        LibraryHelper.setTranslationExecutor(null);
+        if (this.translationExecutor != null) {
+            this.translationExecutor.shutdownNow();
+        }
+
+        if (this.queryExecutor != null) {
+            this.queryExecutor.shutdownNow();
+        }
+
+        if (this.evaluationExecutor != null) {
+            this.evaluationExecutor.shutdownNow();
+        }
+    }
+
+    // Null if the work is not worth running on more than one thread
+    private static ExecutorService createExecutor(int threadCount, String threadName) {
+        if (threadCount < 2) {
+            return null;
+        }
+
+        return Executors.newFixedThreadPool(threadCount, runnable -> {
+            Thread thread = new Thread(runnable, threadName);
+            thread.setDaemon(true);
+            return thread;
+        });
     }
 
     protected <T extends IBaseResource> IFhirResourceDao<T> getDao(Class<T> clazz) {
@@ -31,6 +31,7 @@ import org.opencds.cqf.common.config.HapiProperties;
 import org.opencds.cqf.common.exceptions.InvalidRequestException;
 import org.opencds.cqf.common.providers.LibraryResolutionProvider;
 import org.opencds.cqf.common.retrieve.JpaFhirRetrieveProvider;
+import org.opencds.cqf.common.retrieve.RetrieveCache;
 import org.opencds.cqf.r4.helpers.LibraryHelper;
 import org.opencds.cqf.r4.providers.JpaTerminologyProvider;
 import org.opencds.cqf.r4.providers.PlanDefinitionApplyProvider;
@@ -170,7 +171,10 @@ public class CdsHooksServlet extends HttpServlet
 
             R4HookEvaluator evaluator = new R4HookEvaluator();
 
-            String jsonResponse = toJsonResponse(evaluator.evaluate(evaluationContext));
+            String jsonResponse;
+            try (RetrieveCache retrieveCache = RetrieveCache.open()) {
+                jsonResponse = toJsonResponse(evaluator.evaluate(evaluationContext));
+            }
 
             logger.info(jsonResponse);
 
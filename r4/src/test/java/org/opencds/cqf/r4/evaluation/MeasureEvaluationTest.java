@@ -0,0 +1,335 @@
+package org.opencds.cqf.r4.evaluation;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.InputStream;
+import java.lang.reflect.Proxy;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.cqframework.cql.cql2elm.LibraryManager;
+import org.cqframework.cql.elm.execution.Library;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.CodeType;
+import org.hl7.fhir.r4.model.CodeableConcept;
+import org.hl7.fhir.r4.model.Coding;
+import org.hl7.fhir.r4.model.Condition;
+import org.hl7.fhir.r4.model.Encounter;
+import org.hl7.fhir.r4.model.Expression;
+import org.hl7.fhir.r4.model.ListResource;
+import org.hl7.fhir.r4.model.Measure;
+import org.hl7.fhir.r4.model.MeasureReport;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Procedure;
+import org.hl7.fhir.r4.model.Resource;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.opencds.cqf.common.evaluation.EvaluatedResourcesMode;
+import org.opencds.cqf.common.evaluation.MeasureEvaluationContext;
+import org.opencds.cqf.common.evaluation.MeasureObservations;
+import org.opencds.cqf.common.evaluation.PatientPartition;
+import org.opencds.cqf.common.evaluation.SharedModelManager;
+import org.opencds.cqf.common.helpers.TranslatorHelper;
+import org.opencds.cqf.cql.data.DataProvider;
+import org.opencds.cqf.cql.execution.Context;
+import org.opencds.cqf.cql.runtime.Interval;
+
+import ca.uhn.fhir.jpa.dao.DaoRegistry;
+import ca.uhn.fhir.jpa.dao.IFhirResourceDao;
+import ca.uhn.fhir.rest.server.SimpleBundleProvider;
+
+public class MeasureEvaluationTest {
+
+    private static final int PATIENTS = 20;
+
+    private static Library library;
+    private static ExecutorService executor;
+
+    @BeforeClass
+    public static void setUp() throws Exception {
+        try (InputStream cql = MeasureEvaluationTest.class.getResourceAsStream("PatientEvaluation.cql")) {
+            library = TranslatorHelper.translateLibrary(cql, new LibraryManager(SharedModelManager.getInstance()),
+                SharedModelManager.getInstance());
+        }
+
+        executor = Executors.newFixedThreadPool(4);
+    }
+
+    @AfterClass
+    public static void tearDown() {
+        executor.shutdownNow();
+    }
+
+    // Batches evaluated in parallel are merged in patient order, so the report is the same as a sequential one
+    @Test
+    public void parallelSubjectListReportMatchesSequentialReport() {
+        Measure measure = createProportionMeasure();
+        MeasureReport sequential = createEvaluation().evaluateSubjectListMeasure(measure, createContext(), null);
+
+        MeasureEvaluation parallelEvaluation = createEvaluation();
+        parallelEvaluation.setParallelism(executor, 4, 3, MeasureEvaluationTest::createContext);
+        MeasureReport parallel = parallelEvaluation.evaluateSubjectListMeasure(measure, createContext(), null);
+
+        assertEquals(describe(sequential), describe(parallel));
+    }
+
+    @Test
+    public void continuousVariableScoreAggregatesObservations() {
+        Measure measure = createContinuousVariableMeasure();
+        MeasureReport sequential = createEvaluation().evaluatePopulationMeasure(measure, createContext());
+
+        MeasureEvaluation parallelEvaluation = createEvaluation();
+        parallelEvaluation.setParallelism(executor, 4, 3, MeasureEvaluationTest::createContext);
+        MeasureReport parallel = parallelEvaluation.evaluatePopulationMeasure(measure, createContext());
+
+        // Patients with 1 or 2 observations are in the measure population
+        for (MeasureReport report : new MeasureReport[] { sequential, parallel }) {
+            MeasureReport.MeasureReportGroupComponent group = report.getGroupFirstRep();
+            assertEquals(0, new BigDecimal(19).compareTo(group.getMeasureScore().getValue()));
+            assertEquals(13, group.getPopulation().get(2).getCount());
+        }
+    }
+
+    // Measures evaluated together over one iteration of the patients report the same as when evaluated separately
+    @Test
+    public void batchReportsMatchSeparateReports() {
+        List<Measure> measures = Arrays.asList(createProportionMeasure(), createContinuousVariableMeasure());
+        List<MeasureEvaluation> evaluations = new ArrayList<>();
+        List<Context> contexts = new ArrayList<>();
+        for (int i = 0; i < measures.size(); i++) {
+            evaluations.add(createEvaluation());
+            contexts.add(createContext());
+        }
+
+        List<MeasureReport> reports = MeasureEvaluation.evaluateMeasures(evaluations, measures, contexts,
+            Collections.singleton("Observation"), 3, MeasureReport.MeasureReportType.SUBJECTLIST);
+
+        assertEquals(measures.size(), reports.size());
+        for (int i = 0; i < measures.size(); i++) {
+            MeasureReport separate = createEvaluation().evaluateSubjectListMeasure(measures.get(i), createContext(), null);
+            assertEquals(describe(separate), describe(reports.get(i)));
+        }
+    }
+
+    // The merged reports of every partition have the counts, scores and subjects of a report for all patients
+    @Test
+    public void mergedPartitionReportsMatchTheWholeReport() {
+        Measure measure = createProportionMeasure();
+        MeasureReport whole = createEvaluation().evaluateSubjectListMeasure(measure, createContext(), null);
+
+        List<MeasureReport> partitions = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            MeasureEvaluation evaluation = createEvaluation();
+            evaluation.setPartition(new PatientPartition(i, 3));
+            partitions.add(evaluation.evaluateSubjectListMeasure(measure, createContext(), null));
+        }
+        MeasureReport merged = new MeasureReportMerger(0).merge(partitions);
+
+        assertEquals(whole.getGroup().size(), merged.getGroup().size());
+        for (int i = 0; i < whole.getGroup().size(); i++) {
+            MeasureReport.MeasureReportGroupComponent wholeGroup = whole.getGroup().get(i);
+            MeasureReport.MeasureReportGroupComponent mergedGroup = merged.getGroup().get(i);
+            assertEquals(wholeGroup.getMeasureScore().getValue().doubleValue(), mergedGroup.getMeasureScore().getValue().doubleValue(), 1e-9);
+            for (int j = 0; j < wholeGroup.getPopulation().size(); j++) {
+                assertEquals(wholeGroup.getPopulation().get(j).getCount(), mergedGroup.getPopulation().get(j).getCount());
+                assertEquals(getSortedSubjects(whole, wholeGroup.getPopulation().get(j)), getSortedSubjects(merged, mergedGroup.getPopulation().get(j)));
+            }
+        }
+    }
+
+    private static MeasureEvaluation createEvaluation() {
+        MeasureEvaluation evaluation = new MeasureEvaluation(createDataProvider(), createRegistry(), new Interval(1, true, 2, true));
+        evaluation.setEvaluatedResources(EvaluatedResourcesMode.FULL, 0);
+        return evaluation;
+    }
+
+    private static Context createContext() {
+        Context context = new MeasureEvaluationContext(library);
+        context.registerDataProvider("http://hl7.org/fhir", createDataProvider());
+        return context;
+    }
+
+    // Patient i has i % 3 observations, a condition if i is even, an encounter if i is a multiple
+    // of 5 and a procedure if i % 4 is 1
+    private static DataProvider createDataProvider() {
+        return (DataProvider) Proxy.newProxyInstance(MeasureEvaluationTest.class.getClassLoader(),
+            new Class<?>[] { DataProvider.class }, (proxy, method, args) -> {
+                switch (method.getName()) {
+                    case "retrieve":
+                        String patientId = (String) args[2];
+                        int patient = Integer.parseInt(patientId.substring(1));
+                        List<Object> resources = new ArrayList<>();
+                        switch ((String) args[3]) {
+                            case "Observation":
+                                for (int i = 0; i < patient % 3; i++) {
+                                    resources.add(new Observation().setId("Observation/" + patientId + "-" + i));
+                                }
+                                break;
+                            case "Condition":
+                                if (patient % 2 == 0) {
+                                    resources.add(new Condition().setId("Condition/" + patientId));
+                                }
+                                break;
+                            case "Encounter":
+                                if (patient % 5 == 0) {
+                                    resources.add(new Encounter().setId("Encounter/" + patientId));
+                                }
+                                break;
+                            case "Procedure":
+                                if (patient % 4 == 1) {
+                                    resources.add(new Procedure().setId("Procedure/" + patientId));
+                                }
+                                break;
+                            default:
+                                break;
+                        }
+                        return resources;
+                    case "getPackageName":
+                        return "org.hl7.fhir.r4.model";
+                    default:
+                        return null;
+                }
+            });
+    }
+
+    private static DaoRegistry createRegistry() {
+        List<IBaseResource> patients = new ArrayList<>();
+        for (int i = 0; i < PATIENTS; i++) {
+            patients.add(new Patient().setId("Patient/p" + i));
+        }
+
+        IFhirResourceDao<?> dao = (IFhirResourceDao<?>) Proxy.newProxyInstance(MeasureEvaluationTest.class.getClassLoader(),
+            new Class<?>[] { IFhirResourceDao.class }, (proxy, method, args) -> {
+                switch (method.getName()) {
+                    case "search":
+                        return new SimpleBundleProvider(patients);
+                    default:
+                        throw new UnsupportedOperationException(method.getName());
+                }
+            });
+
+        return new DaoRegistry() {
+            @Override
+            public IFhirResourceDao<?> getResourceDao(String resourceType) {
+                return dao;
+            }
+        };
+    }
+
+    private static Measure createProportionMeasure() {
+        Measure measure = createMeasure("proportion");
+        addGroup(measure, "group-1",
+            population("initial-population", "Initial Population"),
+            population("denominator", "Denominator"),
+            population("denominator-exclusion", "Denominator Exclusion"),
+            population("denominator-exception", "Denominator Exception"),
+            population("numerator", "Has Condition"));
+        addGroup(measure, "group-2",
+            population("initial-population", "Initial Population"),
+            population("denominator", "Denominator"),
+            population("numerator", "Has Several Observations"));
+        return measure;
+    }
+
+    private static Measure createContinuousVariableMeasure() {
+        Measure measure = createMeasure("continuous-variable");
+        Measure.MeasureGroupPopulationComponent observation = population("measure-observation", "Observation Count");
+        observation.addExtension(MeasureObservations.AGGREGATE_METHOD_EXTENSION_URL, new CodeType("sum"));
+        addGroup(measure, "group-1",
+            population("initial-population", "Initial Population"),
+            population("measure-population", "Initial Population"),
+            observation);
+        return measure;
+    }
+
+    private static Measure createMeasure(String scoring) {
+        Measure measure = new Measure();
+        measure.setId("Measure/test");
+        measure.setScoring(new CodeableConcept().addCoding(new Coding().setCode(scoring)));
+        return measure;
+    }
+
+    private static void addGroup(Measure measure, String id, Measure.MeasureGroupPopulationComponent... populations) {
+        Measure.MeasureGroupComponent group = measure.addGroup();
+        group.setId(id);
+        for (Measure.MeasureGroupPopulationComponent population : populations) {
+            group.addPopulation(population);
+        }
+    }
+
+    private static Measure.MeasureGroupPopulationComponent population(String code, String expression) {
+        return new Measure.MeasureGroupPopulationComponent()
+            .setCode(new CodeableConcept().addCoding(new Coding().setCode(code)))
+            .setCriteria(new Expression().setLanguage("text/cql").setExpression(expression));
+    }
+
+    // The counts, scores, subject lists and evaluated resources of a report, in order, leaving out
+    // the random ids of its contained resources
+    private static String describe(MeasureReport report) {
+        StringBuilder description = new StringBuilder();
+        for (MeasureReport.MeasureReportGroupComponent group : report.getGroup()) {
+            description.append(group.getId()).append(" score ")
+                .append(group.hasMeasureScore() ? group.getMeasureScore().getValue() : null).append('\n');
+            for (MeasureReport.MeasureReportGroupPopulationComponent population : group.getPopulation()) {
+                description.append(population.getCode().getCodingFirstRep().getCode())
+                    .append(' ').append(population.getCount()).append(':');
+                if (population.hasSubjectResults()) {
+                    ListResource subjects = (ListResource) getContained(report, population.getSubjectResults().getReference());
+                    for (ListResource.ListEntryComponent entry : subjects.getEntry()) {
+                        description.append(' ').append(entry.getItem().getReference());
+                    }
+                }
+                description.append('\n');
+            }
+        }
+
+        if (report.hasEvaluatedResource()) {
+            Bundle bundle = (Bundle) getContained(report, report.getEvaluatedResourceFirstRep().getReference());
+            for (Bundle.BundleEntryComponent entry : bundle.getEntry()) {
+                Resource resource = entry.getResource();
+                if (resource instanceof ListResource) {
+                    description.append(((ListResource) resource).getTitle()).append(':');
+                    for (ListResource.ListEntryComponent item : ((ListResource) resource).getEntry()) {
+                        description.append(' ').append(item.getItem().getReference());
+                    }
+                }
+                else {
+                    description.append(resource.getIdElement().getResourceType()).append('/').append(resource.getIdElement().getIdPart());
+                }
+                description.append('\n');
+            }
+        }
+
+        return description.toString();
+    }
+
+    private static List<String> getSortedSubjects(MeasureReport report, MeasureReport.MeasureReportGroupPopulationComponent population) {
+        List<String> subjects = new ArrayList<>();
+        if (population.hasSubjectResults()) {
+            for (ListResource.ListEntryComponent entry : ((ListResource) getContained(report, population.getSubjectResults().getReference())).getEntry()) {
+                subjects.add(entry.getItem().getReference());
+            }
+        }
+
+        Collections.sort(subjects);
+        return subjects;
+    }
+
+    private static Resource getContained(MeasureReport report, String reference) {
+        for (Resource resource : report.getContained()) {
+            if (reference.equals("#" + resource.getIdElement().getIdPart())) {
+                return resource;
+            }
+        }
+
+        throw new IllegalArgumentException("No contained resource " + reference);
+    }
+}
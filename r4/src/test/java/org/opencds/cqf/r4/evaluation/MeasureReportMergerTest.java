@@ -0,0 +1,131 @@
+package org.opencds.cqf.r4.evaluation;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+import org.hl7.fhir.r4.model.CodeableConcept;
+import org.hl7.fhir.r4.model.Coding;
+import org.hl7.fhir.r4.model.DateTimeType;
+import org.hl7.fhir.r4.model.ListResource;
+import org.hl7.fhir.r4.model.MeasureReport;
+import org.hl7.fhir.r4.model.Period;
+import org.hl7.fhir.r4.model.Reference;
+import org.hl7.fhir.r4.model.Resource;
+import org.hl7.fhir.r4.model.StringType;
+import org.junit.Test;
+import org.opencds.cqf.common.evaluation.PatientPartition;
+
+public class MeasureReportMergerTest {
+
+    @Test
+    public void partitionReportsAreMerged() {
+        MeasureReport first = createReport("0/2", "Measure/test");
+        addPopulation(first, "denominator", "1", "2", "3");
+        addPopulation(first, "numerator", "1");
+        MeasureReport second = createReport("1/2", "Measure/test");
+        addPopulation(second, "denominator", "4");
+        addPopulation(second, "numerator", "4");
+
+        MeasureReport merged = new MeasureReportMerger(0).merge(Arrays.asList(first, second));
+
+        // The score is recomputed from the merged counts rather than taken from either partition
+        MeasureReport.MeasureReportGroupComponent group = merged.getGroupFirstRep();
+        assertEquals(0.5, group.getMeasureScore().getValue().doubleValue(), 0);
+        assertEquals(4, group.getPopulation().get(0).getCount());
+        assertEquals(2, group.getPopulation().get(1).getCount());
+        assertEquals(Arrays.asList("Patient/1", "Patient/2", "Patient/3", "Patient/4"), getSubjects(merged, group.getPopulation().get(0)));
+        assertEquals(Arrays.asList("Patient/1", "Patient/4"), getSubjects(merged, group.getPopulation().get(1)));
+        assertFalse(merged.hasExtension(PatientPartition.EXTENSION_URL));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void missingPartitionIsRejected() {
+        MeasureReport first = createReport("0/3", "Measure/test");
+        addPopulation(first, "denominator", "1");
+        MeasureReport second = createReport("1/3", "Measure/test");
+        addPopulation(second, "denominator", "2");
+
+        new MeasureReportMerger(0).merge(Arrays.asList(first, second));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void repeatedPartitionIsRejected() {
+        MeasureReport first = createReport("0/2", "Measure/test");
+        addPopulation(first, "denominator", "1");
+        MeasureReport second = createReport("0/2", "Measure/test");
+        addPopulation(second, "denominator", "1");
+
+        new MeasureReportMerger(0).merge(Arrays.asList(first, second));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void partitionedAndUnpartitionedReportsAreRejected() {
+        MeasureReport first = createReport("0/1", "Measure/test");
+        addPopulation(first, "denominator", "1");
+        MeasureReport second = createReport(null, "Measure/test");
+        addPopulation(second, "denominator", "2");
+
+        new MeasureReportMerger(0).merge(Arrays.asList(first, second));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void reportsOfDifferentMeasuresAreRejected() {
+        MeasureReport first = createReport("0/2", "Measure/test");
+        addPopulation(first, "denominator", "1");
+        MeasureReport second = createReport("1/2", "Measure/other");
+        addPopulation(second, "denominator", "2");
+
+        new MeasureReportMerger(0).merge(Arrays.asList(first, second));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void noReportsAreRejected() {
+        new MeasureReportMerger(0).merge(Collections.emptyList());
+    }
+
+    private static MeasureReport createReport(String partition, String measure) {
+        MeasureReport report = new MeasureReport();
+        report.setType(MeasureReport.MeasureReportType.SUBJECTLIST);
+        report.setMeasure(measure);
+        report.setPeriod(new Period().setStartElement(new DateTimeType("2019-01-01")).setEndElement(new DateTimeType("2019-12-31")));
+        report.addGroup().setId("group-1");
+        if (partition != null) {
+            report.addExtension(PatientPartition.EXTENSION_URL, new StringType(partition));
+        }
+
+        return report;
+    }
+
+    private static void addPopulation(MeasureReport report, String code, String... patientIds) {
+        ListResource subjects = new ListResource();
+        subjects.setId(UUID.randomUUID().toString());
+        for (String patientId : patientIds) {
+            subjects.addEntry().setItem(new Reference("Patient/" + patientId));
+        }
+        report.addContained(subjects);
+
+        report.getGroupFirstRep().addPopulation()
+            .setCode(new CodeableConcept().addCoding(new Coding().setCode(code)))
+            .setCount(patientIds.length)
+            .setSubjectResults(new Reference("#" + subjects.getId()));
+    }
+
+    private static List<String> getSubjects(MeasureReport report, MeasureReport.MeasureReportGroupPopulationComponent population) {
+        List<String> subjects = new ArrayList<>();
+        for (Resource resource : report.getContained()) {
+            if (population.getSubjectResults().getReference().equals("#" + resource.getIdElement().getIdPart())) {
+                for (ListResource.ListEntryComponent entry : ((ListResource) resource).getEntry()) {
+                    subjects.add(entry.getItem().getReference());
+                }
+            }
+        }
+
+        return subjects;
+    }
+}